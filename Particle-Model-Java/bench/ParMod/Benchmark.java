@@ -0,0 +1,184 @@
+package ParMod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single piece of code to be timed, with a fixed set of parameters, see {@link Benchmarks}. Measurement follows the same scheme as JMH's average time
+ * mode: after a number of warmup iterations, each measured iteration calls {@link #run()} repeatedly for a fixed length of time and records the mean time per
+ * call.
+ *
+ * @author Sebastian Troy
+ */
+abstract class Benchmark
+	{
+		/**
+		 * Results are added to this so that the JIT cannot remove work whose result is never used.
+		 */
+		static volatile double sink;
+
+		final String name;
+		final Map<String, String> params = new LinkedHashMap<String, String>();
+
+		// The time per call, in milliseconds, measured during each iteration
+		private double[] scores;
+
+		Benchmark(String name, String... params)
+			{
+				this.name = name;
+				for (int i = 0; i < params.length; i += 2)
+					this.params.put(params[i], params[i + 1]);
+			}
+
+		/**
+		 * Prepares the data used by {@link #run()}, not timed.
+		 */
+		abstract void setup();
+
+		/**
+		 * The code being timed.
+		 */
+		abstract void run();
+
+		/**
+		 * Releases anything created by {@link #setup()}, not timed.
+		 */
+		void tearDown()
+			{}
+
+		/**
+		 * @param warmupIterations
+		 *            - The number of iterations run before timing starts
+		 * @param iterations
+		 *            - The number of timed iterations
+		 * @param iterationTime
+		 *            - The length of each iteration in nanoseconds, at least one call is made per iteration however long it takes
+		 */
+		final void measure(int warmupIterations, int iterations, long iterationTime)
+			{
+				setup();
+
+				for (int i = 0; i < warmupIterations; i++)
+					iterate(iterationTime);
+
+				scores = new double[iterations];
+				for (int i = 0; i < iterations; i++)
+					scores[i] = iterate(iterationTime);
+
+				tearDown();
+			}
+
+		/**
+		 * @return - The time per call, in milliseconds, measured during each iteration
+		 */
+		final double[] getScores()
+			{
+				return scores;
+			}
+
+		/**
+		 * Sets the results of a measurement carried out elsewhere, i.e. in a forked JVM.
+		 */
+		final void setScores(double[] scores)
+			{
+				this.scores = scores;
+			}
+
+		/**
+		 * @return - The mean time per call in milliseconds
+		 */
+		private final double iterate(long iterationTime)
+			{
+				long calls = 0, start = System.nanoTime(), time;
+				do
+					{
+						run();
+						calls++;
+						time = System.nanoTime() - start;
+					}
+				while (time < iterationTime);
+
+				return time / 1e6 / calls;
+			}
+
+		final double getScore()
+			{
+				double sum = 0;
+				for (double score : scores)
+					sum += score;
+				return sum / scores.length;
+			}
+
+		/**
+		 * @return - Half the width of the 99.9% confidence interval of the score, using Student's t distribution as JMH does, or NaN if there was only one
+		 *         iteration
+		 */
+		final double getScoreError()
+			{
+				int n = scores.length;
+				if (n < 2)
+					return Double.NaN;
+
+				double mean = getScore(), sumOfSquares = 0;
+				for (double score : scores)
+					sumOfSquares += (score - mean) * (score - mean);
+
+				// The Cornish-Fisher expansion of the t distribution's 99.95th percentile about the normal distribution's, accurate for a few degrees of freedom
+				double z = 3.2905, df = n - 1;
+				double t = z + ((z * z * z) + z) / (4 * df) + ((5 * Math.pow(z, 5)) + (16 * z * z * z) + (3 * z)) / (96 * df * df);
+
+				return t * Math.sqrt(sumOfSquares / df / n);
+			}
+
+		/**
+		 * @return - The result as an element of a JMH style JSON results array
+		 */
+		final String toJSON(int threads, int forks, int warmupIterations, long iterationTime)
+			{
+				StringBuilder json = new StringBuilder();
+				json.append("  {\n");
+				json.append("    \"benchmark\" : \"ParMod.").append(name).append("\",\n");
+				json.append("    \"mode\" : \"avgt\",\n");
+				json.append("    \"threads\" : ").append(threads).append(",\n");
+				json.append("    \"forks\" : ").append(forks).append(",\n");
+				json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+				json.append("    \"warmupTime\" : \"").append(iterationTime / 1e9).append(" s\",\n");
+				json.append("    \"measurementIterations\" : ").append(scores.length).append(",\n");
+				json.append("    \"measurementTime\" : \"").append(iterationTime / 1e9).append(" s\",\n");
+				json.append("    \"params\" : {");
+				String separator = "\n";
+				for (Map.Entry<String, String> param : params.entrySet())
+					{
+						json.append(separator).append("      \"").append(param.getKey()).append("\" : \"").append(param.getValue()).append('"');
+						separator = ",\n";
+					}
+				json.append("\n    },\n");
+				json.append("    \"primaryMetric\" : {\n");
+				json.append("      \"score\" : ").append(number(getScore())).append(",\n");
+				json.append("      \"scoreError\" : ").append(number(getScoreError())).append(",\n");
+				json.append("      \"scoreConfidence\" : [ ").append(number(getScore() - getScoreError())).append(", ").append(number(getScore() + getScoreError()))
+						.append(" ],\n");
+				json.append("      \"scoreUnit\" : \"ms/op\",\n");
+				json.append("      \"rawData\" : [ [ ");
+				for (int i = 0; i < scores.length; i++)
+					json.append(i == 0 ? "" : ", ").append(number(scores[i]));
+				json.append(" ] ]\n");
+				json.append("    }\n");
+				json.append("  }");
+				return json.toString();
+			}
+
+		/**
+		 * JSON has no NaN, so it is written as a string as JMH does.
+		 */
+		private static String number(double value)
+			{
+				return Double.isNaN(value) ? "\"NaN\"" : Double.toString(value);
+			}
+
+		@Override
+		public String toString()
+			{
+				return String.format("%-32s %-48s %12.4f +/- %9.4f ms/op", name, params.toString(), getScore(), getScoreError());
+			}
+	}
@@ -0,0 +1,464 @@
+package ParMod;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Times the kernels that the speed of the model depends on, for a range of grid sizes and particle counts, so that changes to them can be checked for
+ * regressions. The results are printed and written to a JSON file in the same format as JMH's, so that runs can be compared over time with the usual tools.
+ * <p>
+ * The benchmarks live in their own source folder and are built along with the model:<br>
+ * javac -cp Model.jar -d bin src/ParMod/*.java bench/ParMod/*.java<br>
+ * java -cp bin:Model.jar ParMod.Benchmarks [options] [regex]
+ * <p>
+ * Options:<br>
+ * -o file - Where the JSON results are written, results.json by default<br>
+ * -wi n - The number of warmup iterations, 3 by default<br>
+ * -i n - The number of measured iterations, 5 by default<br>
+ * -r seconds - The length of each iteration, 1 by default<br>
+ * -t n - The number of worker threads, the number of processors by default<br>
+ * -f n - 1 to run each benchmark in a fresh JVM, so that the JIT's view of the code is not affected by earlier benchmarks, 0 to run them all in this one. 1
+ * by default<br>
+ * -p name=a,b - Replaces the values of a parameter, e.g. -p grid=100x50<br>
+ * -l - Lists the benchmarks without running them<br>
+ * Only benchmarks whose name matches the regex are run.
+ *
+ * @author Sebastian Troy
+ */
+public class Benchmarks
+	{
+		// The values of each parameter, each benchmark is run for every combination of the parameters it uses. Grids are width x depth in chunks.
+		private static final Map<String, String[]> PARAMS = new HashMap<String, String[]>();
+		static
+			{
+				PARAMS.put("grid", new String[] { "32x16", "64x32" });
+				PARAMS.put("precision", new String[] { "DOUBLE", "FLOAT" });
+				PARAMS.put("solver", new String[] { "SOR", "MULTIGRID", "SPECTRAL" });
+				PARAMS.put("particles", new String[] { "10000", "100000", "1000000" });
+				PARAMS.put("order", new String[] { "CHUNK", "MORTON" });
+				PARAMS.put("scalars", new String[] { "1", "4" });
+			}
+
+		private static WorkerPool workers;
+
+		// Printed by a forked JVM before the results of its benchmark
+		private static final String SCORES = "#scores ";
+
+		public static void main(String[] args) throws IOException, InterruptedException
+			{
+				String output = "results.json";
+				int warmupIterations = 3, iterations = 5, threads = Runtime.getRuntime().availableProcessors(), forks = 1, child = -1;
+				long iterationTime = 1000000000L;
+				boolean list = false;
+				Pattern filter = Pattern.compile(".*");
+
+				for (int i = 0; i < args.length; i++)
+					{
+						if (args[i].equals("-o"))
+							output = args[++i];
+						else if (args[i].equals("-wi"))
+							warmupIterations = Integer.parseInt(args[++i]);
+						else if (args[i].equals("-i"))
+							iterations = Integer.parseInt(args[++i]);
+						else if (args[i].equals("-r"))
+							iterationTime = (long) (Double.parseDouble(args[++i]) * 1e9);
+						else if (args[i].equals("-t"))
+							threads = Integer.parseInt(args[++i]);
+						else if (args[i].equals("-p"))
+							{
+								String[] param = args[++i].split("=", 2);
+								PARAMS.put(param[0], param[1].split(","));
+							}
+						else if (args[i].equals("-f"))
+							forks = Math.min(1, Integer.parseInt(args[++i]));
+						else if (args[i].equals("-child"))
+							child = Integer.parseInt(args[++i]);
+						else if (args[i].equals("-l"))
+							list = true;
+						else
+							filter = Pattern.compile(args[i]);
+					}
+
+				workers = new WorkerPool(threads);
+
+				List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+				for (Benchmark benchmark : createBenchmarks())
+					if (filter.matcher(benchmark.name).find())
+						benchmarks.add(benchmark);
+
+				// A forked JVM runs a single benchmark and hands the results back to its parent
+				if (child >= 0)
+					{
+						Benchmark benchmark = benchmarks.get(child);
+						benchmark.measure(warmupIterations, iterations, iterationTime);
+						StringBuilder scores = new StringBuilder(SCORES);
+						for (double score : benchmark.getScores())
+							scores.append(score).append(' ');
+						System.out.println(scores.toString().trim());
+						workers.shutdown();
+						return;
+					}
+
+				if (list)
+					{
+						for (Benchmark benchmark : benchmarks)
+							System.out.println(benchmark.name + " " + benchmark.params);
+						workers.shutdown();
+						return;
+					}
+
+				Writer json = new FileWriter(output);
+				try
+					{
+						json.write("[\n");
+						for (int i = 0; i < benchmarks.size(); i++)
+							{
+								Benchmark benchmark = benchmarks.get(i);
+								if (forks == 0)
+									benchmark.measure(warmupIterations, iterations, iterationTime);
+								else
+									benchmark.setScores(fork(args, i));
+								System.out.println(benchmark);
+
+								json.write(benchmark.toJSON(threads, forks, warmupIterations, iterationTime));
+								json.write(i < benchmarks.size() - 1 ? ",\n" : "\n");
+								json.flush();
+							}
+						json.write("]\n");
+					}
+				finally
+					{
+						json.close();
+						workers.shutdown();
+					}
+
+				System.out.println("Results written to " + output);
+			}
+
+		/**
+		 * Runs a benchmark in a new JVM, with the same class path and arguments as this one.
+		 *
+		 * @return - The time per call measured during each iteration
+		 */
+		private static double[] fork(String[] args, int index) throws IOException, InterruptedException
+			{
+				List<String> command = new ArrayList<String>();
+				command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(Benchmarks.class.getName());
+				command.addAll(Arrays.asList(args));
+				command.add("-child");
+				command.add(Integer.toString(index));
+
+				Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				double[] scores = null;
+				for (String line = reader.readLine(); line != null; line = reader.readLine())
+					if (line.startsWith(SCORES))
+						{
+							String[] values = line.substring(SCORES.length()).split(" ");
+							scores = new double[values.length];
+							for (int i = 0; i < values.length; i++)
+								scores[i] = Double.parseDouble(values[i]);
+						}
+					else
+						System.out.println(line);
+
+				if (process.waitFor() != 0 || scores == null)
+					throw new IllegalStateException("The forked JVM running benchmark " + index + " failed");
+
+				return scores;
+			}
+
+		/**
+		 * @return - Every benchmark, for every combination of its parameters
+		 */
+		private static List<Benchmark> createBenchmarks()
+			{
+				List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+				for (final String grid : PARAMS.get("grid"))
+					{
+						for (final String precision : PARAMS.get("precision"))
+							benchmarks.add(new Benchmark("VectorField.advect", "grid", grid, "precision", precision)
+								{
+									VectorField field;
+
+									@Override
+									void setup()
+										{
+											field = createField(grid, VectorField.Solver.SOR, FieldBuffer.Precision.valueOf(precision));
+										}
+
+									@Override
+									void run()
+										{
+											field.advect();
+										}
+								});
+
+						for (final String solver : PARAMS.get("solver"))
+							benchmarks.add(new Benchmark("VectorField.project", "grid", grid, "solver", solver)
+								{
+									VectorField field;
+
+									@Override
+									void setup()
+										{
+											field = createField(grid, VectorField.Solver.valueOf(solver), FieldBuffer.Precision.DOUBLE);
+										}
+
+									@Override
+									void run()
+										{
+											field.project();
+										}
+								});
+
+						for (final String solver : PARAMS.get("solver"))
+							benchmarks.add(new Benchmark("VectorField.stepSimulation", "grid", grid, "solver", solver)
+								{
+									VectorField field;
+
+									@Override
+									void setup()
+										{
+											field = createField(grid, VectorField.Solver.valueOf(solver), FieldBuffer.Precision.DOUBLE);
+										}
+
+									@Override
+									void run()
+										{
+											field.stepSimulation();
+										}
+								});
+
+						for (final String scalars : PARAMS.get("scalars"))
+							benchmarks.add(new Benchmark("ScalarField.step", "grid", grid, "scalars", scalars)
+								{
+									ScalarField field;
+
+									@Override
+									void setup()
+										{
+											// Chunks of 0.1m, as ParameterInput's defaults
+											field = new ScalarField(createField(grid, VectorField.Solver.SOR, FieldBuffer.Precision.DOUBLE), 0.1, workers);
+											RandomStream random = new RandomStream(1);
+											for (int s = 0; s < Integer.parseInt(scalars); s++)
+												{
+													double[] values = field.getValues(field.addScalar("Scalar " + s, Simulation.NUTRIENT_DIFFUSIVITY, 0, true));
+													for (int i = 0; i < values.length; i++)
+														values[i] = random.nextDouble();
+												}
+										}
+
+									@Override
+									void run()
+										{
+											field.step(0.5, 20);
+										}
+								});
+
+						for (final String solver : PARAMS.get("solver"))
+							{
+								String[] size = grid.split("x");
+								int width = Integer.parseInt(size[0]), depth = Integer.parseInt(size[1]);
+								benchmarks.add(createSolverBenchmark("PressureSolver.solve", new PoissonGrid(width, depth, width), solver, "grid", grid));
+							}
+
+						for (final String particles : PARAMS.get("particles"))
+							benchmarks.add(new Benchmark("VectorField.getVelocitiesAt", "grid", grid, "particles", particles)
+								{
+									VectorField field;
+									double[] x, y, z, velocities;
+
+									@Override
+									void setup()
+										{
+											String[] size = grid.split("x");
+											int width = Integer.parseInt(size[0]), depth = Integer.parseInt(size[1]);
+											field = createField(grid, VectorField.Solver.SOR, FieldBuffer.Precision.DOUBLE);
+
+											int n = Integer.parseInt(particles);
+											RandomStream random = new RandomStream(1);
+											x = new double[n];
+											y = new double[n];
+											z = new double[n];
+											for (int i = 0; i < n; i++)
+												{
+													x[i] = random.nextDouble(0, width);
+													y[i] = random.nextDouble(0, depth);
+													z[i] = random.nextDouble(0, width);
+												}
+											velocities = new double[3 * Simulation.PARTICLE_BLOCK_SIZE];
+										}
+
+									@Override
+									void run()
+										{
+											// A block at a time, as the simulation does
+											double sum = 0;
+											for (int start = 0; start < x.length; start += Simulation.PARTICLE_BLOCK_SIZE)
+												{
+													field.getVelocitiesAt(x, y, z, start, Math.min(start + Simulation.PARTICLE_BLOCK_SIZE, x.length), 1, velocities);
+													sum += velocities[0];
+												}
+											sink += sum;
+										}
+								});
+					}
+
+				for (final String particles : PARAMS.get("particles"))
+					benchmarks.add(new Benchmark("Simulation.moveParticles", "particles", particles)
+						{
+							Simulation sim;
+
+							@Override
+							void setup()
+								{
+									// The default parameters of ParameterInput
+									sim = new Simulation(1, 10, 5, 20, Integer.parseInt(particles), 0.1, workers.getThreads(), 1, VectorField.Solver.SOR,
+											FieldBuffer.Precision.DOUBLE, FieldBuffer.Storage.HEAP);
+								}
+
+							@Override
+							void run()
+								{
+									sim.moveParticles(20);
+									sim.removeSunkParticles();
+								}
+
+							@Override
+							void tearDown()
+								{
+									sim.workers.shutdown();
+								}
+						});
+
+				for (final String particles : PARAMS.get("particles"))
+					for (final String order : PARAMS.get("order"))
+						benchmarks.add(new Benchmark("ParticleSorter.sort", "particles", particles, "order", order)
+							{
+								Simulation sim;
+								ParticleSorter sorter;
+
+								@Override
+								void setup()
+									{
+										sim = new Simulation(1, 10, 5, 20, Integer.parseInt(particles), 0.1, workers.getThreads(), 1, VectorField.Solver.SOR,
+												FieldBuffer.Precision.DOUBLE, FieldBuffer.Storage.HEAP);
+										sorter = new ParticleSorter(ParticleSorter.Order.valueOf(order), 1, sim.chunks, sim.workers);
+									}
+
+								@Override
+								void run()
+									{
+										// Moving the particles between sorts keeps the store from already being in order
+										sim.moveParticles(20);
+										sim.removeSunkParticles();
+										sorter.sort(sim.particles);
+									}
+
+								@Override
+								void tearDown()
+									{
+										sim.workers.shutdown();
+									}
+							});
+
+				for (final String particles : PARAMS.get("particles"))
+					benchmarks.add(new Benchmark("ParticleRaster.draw", "particles", particles)
+						{
+							Simulation sim;
+							ParticleRaster raster;
+							Graphics2D g;
+
+							@Override
+							void setup()
+								{
+									sim = new Simulation(1, 10, 5, 20, Integer.parseInt(particles), 0.1, workers.getThreads(), 1, VectorField.Solver.SOR,
+											FieldBuffer.Precision.DOUBLE, FieldBuffer.Storage.HEAP);
+									// The size of the window and the graph when it first fills the window vertically
+									raster = new ParticleRaster(900, 700, sim.workers);
+									g = new BufferedImage(900, 700, BufferedImage.TYPE_INT_RGB).createGraphics();
+								}
+
+							@Override
+							void run()
+								{
+									raster.draw(g, sim.particles, true, 5, 33, 63, 63, 28);
+								}
+
+							@Override
+							void tearDown()
+								{
+									g.dispose();
+									sim.workers.shutdown();
+								}
+						});
+
+				// The 2D solve carried out by VectorFieldTester, using its grid and default number of iterations
+				for (final String solver : PARAMS.get("solver"))
+					benchmarks.add(createSolverBenchmark("VectorFieldTester.solve", new PoissonGrid(200, 200, 1), solver, "grid", "200x200"));
+
+				return benchmarks;
+			}
+
+		/**
+		 * Times a single solve from a pressure of 0, with random divergence.
+		 */
+		private static Benchmark createSolverBenchmark(String name, final PoissonGrid grid, final String solver, String... params)
+			{
+				String[] allParams = Arrays.copyOf(params, params.length + 2);
+				allParams[params.length] = "solver";
+				allParams[params.length + 1] = solver;
+
+				return new Benchmark(name, allParams)
+					{
+						PressureSolver pressureSolver;
+						double[] p, div;
+
+						@Override
+						void setup()
+							{
+								pressureSolver = VectorField.Solver.valueOf(solver).create(grid, workers);
+								if (grid.zSize == 1)
+									pressureSolver.setMaxIterations(6);
+								p = new double[grid.size];
+								div = new double[grid.size];
+								new RandomStream(1).fillUniform(div, 0, div.length, -1, 1);
+							}
+
+						@Override
+						void run()
+							{
+								Arrays.fill(p, 0);
+								pressureSolver.solve(p, div);
+								sink += p[grid.layerSize];
+							}
+					};
+			}
+
+		/**
+		 * @param grid
+		 *            - The size of the field, width x depth in chunks
+		 */
+		private static VectorField createField(String grid, VectorField.Solver solver, FieldBuffer.Precision precision)
+			{
+				String[] size = grid.split("x");
+				return new VectorField(Integer.parseInt(size[0]), Integer.parseInt(size[1]), new RandomStream(1), workers, solver, precision, FieldBuffer.Storage.HEAP);
+			}
+	}
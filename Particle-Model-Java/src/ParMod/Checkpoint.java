@@ -0,0 +1,559 @@
+package ParMod;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A copy of everything needed to carry on running a {@link Simulation} from a particular tick, exactly as if it had never stopped. A checkpoint is taken
+ * with {@link Simulation#checkpoint()}, and a simulation is recreated from one with {@link Simulation#Simulation(Checkpoint, int)}. Once taken a checkpoint
+ * shares nothing with the simulation, so it can be written to disk on another thread while the simulation carries on, see {@link CheckpointWriter}.
+ * <p>
+ * The file starts with a header of 3 ints, {@link #MAGIC}, the version of the format and a set of flags, all big-endian. The rest of the file is the state
+ * of the model, in the order it is written by {@link #write(File, boolean)}, followed by a CRC32 of that state. If the compressed flag is set everything
+ * after the header is compressed with the deflate algorithm. Velocities are written with the precision that they were stored with.
+ * <p>
+ * Version 2 added the id of each particle, particles read from a version 1 file are given ids in the order they are stored. Version 3 added the scalars of
+ * the {@link ScalarField}, earlier files have none. Version 4 added the number of ticks between steps of the vector field, earlier files use the
+ * default. Version 5 added how the length of each step of the vector field is chosen, with the time the field is yet to step through and its fastest
+ * velocity, earlier files step at a fixed rate. Version 6 added the order the particles are sorted into and the number of ticks between sorts, as the sort
+ * decides which block, and so which random stream, each particle is moved by. Earlier files are not sorted.
+ * <p>
+ * Every count read from a file is checked before any memory is allocated for it, against the size of the model and against the number of bytes left in
+ * the file, so a truncated or corrupt file is reported as such rather than running out of memory.
+ *
+ * @author Sebastian Troy
+ */
+final class Checkpoint
+	{
+		/**
+		 * "PMCK", the first 4 bytes of every checkpoint file
+		 */
+		static final int MAGIC = 0x504D434B;
+
+		/**
+		 * The version of the format written, increased whenever the format changes. Files written by earlier versions can still be read.
+		 */
+		static final int VERSION = 6;
+
+		private static final int FLAG_COMPRESSED = 1;
+		private static final int HEADER_SIZE = 12;
+		private static final int BUFFER_SIZE = 1 << 20;
+		private static final int MAX_DEFLATE_RATIO = 1032; // The most bytes that deflate can compress into a single byte
+
+		// The parameters of the Simulation
+		int width, depth, mixedLayerDepth, pace, fieldCadence = Simulation.DEFAULT_FIELD_CADENCE;
+		double chunkSize;
+		long ticks, sunkParticles;
+		VectorField.Stepping fieldStepping = VectorField.Stepping.FIXED;
+		ParticleSorter.Order particleOrder = ParticleSorter.Order.NONE;
+		int sortEvery;
+
+		// The state of every random stream, the Simulation's own first followed by one per block of particles
+		long[] randomSeeds, randomGammas;
+
+		// The particles, each array holds exactly numParticles values
+		int numParticles, nextId;
+		double[] x, y, z;
+		int[] ids;
+		float[][] attributes;
+
+		// The vector field
+		int fieldWidth, fieldDepth;
+		VectorField.Solver solver;
+		FieldBuffer.Precision precision;
+		FieldBuffer.Storage storage;
+		FieldBuffer xVel, yVel, zVel;
+		double[] pressure;
+		double fieldTime, fieldMaxSpeed = Double.NaN; // The fastest velocity is found from the velocities when not known
+
+		// The scalar field, the name of each scalar and its value in every chunk of the vector field
+		String[] scalarNames;
+		double[][] scalars;
+
+		/**
+		 * @param file
+		 *            - Where the checkpoint is written, any existing file is replaced
+		 * @param compress
+		 *            - True to compress the checkpoint, this is slower and saves little space, as positions and velocities vary down to their last bits
+		 */
+		final void write(File file, boolean compress) throws IOException
+			{
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try
+					{
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						header.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_COMPRESSED : 0);
+						header.flip();
+						while (header.hasRemaining())
+							channel.write(header);
+
+						Output out = new Output(channel, compress);
+
+						out.putInt(width);
+						out.putInt(depth);
+						out.putInt(mixedLayerDepth);
+						out.putInt(pace);
+						out.putDouble(chunkSize);
+						out.putLong(ticks);
+						out.putLong(sunkParticles);
+						out.putInt(fieldCadence);
+						out.putString(fieldStepping.name());
+						out.putString(particleOrder.name());
+						out.putInt(sortEvery);
+
+						out.putInt(randomSeeds.length);
+						for (int i = 0; i < randomSeeds.length; i++)
+							{
+								out.putLong(randomSeeds[i]);
+								out.putLong(randomGammas[i]);
+							}
+
+						out.putInt(numParticles);
+						out.putInt(attributes.length);
+						for (int i = 0; i < numParticles; i++)
+							out.putDouble(x[i]);
+						for (int i = 0; i < numParticles; i++)
+							out.putDouble(y[i]);
+						for (int i = 0; i < numParticles; i++)
+							out.putDouble(z[i]);
+						for (float[] attribute : attributes)
+							for (int i = 0; i < numParticles; i++)
+								out.putFloat(attribute[i]);
+						out.putInt(nextId);
+						for (int i = 0; i < numParticles; i++)
+							out.putInt(ids[i]);
+
+						out.putInt(fieldWidth);
+						out.putInt(fieldDepth);
+						out.putString(solver.name());
+						out.putString(precision.name());
+						out.putString(storage.name());
+						for (FieldBuffer velocity : new FieldBuffer[] { xVel, yVel, zVel })
+							for (long i = 0; i < velocity.size; i++)
+								if (precision == FieldBuffer.Precision.FLOAT)
+									out.putFloat(velocity.getFloat(i));
+								else
+									out.putDouble(velocity.get(i));
+						for (double p : pressure)
+							out.putDouble(p);
+						out.putDouble(fieldTime);
+						out.putDouble(fieldMaxSpeed);
+
+						out.putInt(scalars.length);
+						for (int s = 0; s < scalars.length; s++)
+							{
+								out.putString(scalarNames[s]);
+								for (double value : scalars[s])
+									out.putDouble(value);
+							}
+
+						out.finish();
+						channel.force(false);
+					}
+				finally
+					{
+						channel.close();
+					}
+			}
+
+		/**
+		 * @param file
+		 *            - A file written by {@link #write(File, boolean)}
+		 *
+		 * @return - The checkpoint stored in the file
+		 *
+		 * @throws IOException
+		 *             - If the file cannot be read, is not a checkpoint, was written by a later version or has been corrupted
+		 */
+		static Checkpoint read(File file) throws IOException
+			{
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				try
+					{
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						while (header.hasRemaining())
+							if (channel.read(header) < 0)
+								throw new IOException(file + " is not a checkpoint");
+						header.flip();
+
+						if (header.getInt() != MAGIC)
+							throw new IOException(file + " is not a checkpoint");
+						int version = header.getInt();
+						if (version > VERSION)
+							throw new IOException(file + " was written by a later version of the model (format " + version + ")");
+						int flags = header.getInt();
+
+						Input in = new Input(file, channel, (flags & FLAG_COMPRESSED) != 0);
+						Checkpoint checkpoint = new Checkpoint();
+
+						checkpoint.width = in.getInt();
+						checkpoint.depth = in.getInt();
+						checkpoint.mixedLayerDepth = in.getInt();
+						checkpoint.pace = in.getInt();
+						checkpoint.chunkSize = in.getDouble();
+						checkpoint.ticks = in.getLong();
+						checkpoint.sunkParticles = in.getLong();
+						if (version >= 4)
+							checkpoint.fieldCadence = in.getInt();
+						if (version >= 5)
+							checkpoint.fieldStepping = VectorField.Stepping.valueOf(in.getString());
+						if (version >= 6)
+							{
+								checkpoint.particleOrder = ParticleSorter.Order.valueOf(in.getString());
+								checkpoint.sortEvery = in.getInt();
+							}
+						if (checkpoint.width <= 0 || checkpoint.depth <= 0 || checkpoint.mixedLayerDepth <= 0 || checkpoint.pace <= 0 || !(checkpoint.chunkSize > 0)
+								|| checkpoint.ticks < 0 || checkpoint.sunkParticles < 0 || checkpoint.fieldCadence < 1 || checkpoint.sortEvery < 0)
+							throw new IOException(file + " is corrupt, the parameters of its simulation are invalid");
+
+						// The Simulation's own random stream is followed by at least one block of particles
+						int numRandoms = in.getInt();
+						if (numRandoms < 2)
+							throw new IOException(file + " is corrupt, it has " + numRandoms + " random streams");
+						in.require(numRandoms, 16, "random streams");
+						checkpoint.randomSeeds = new long[numRandoms];
+						checkpoint.randomGammas = new long[numRandoms];
+						for (int i = 0; i < numRandoms; i++)
+							{
+								checkpoint.randomSeeds[i] = in.getLong();
+								checkpoint.randomGammas[i] = in.getLong();
+							}
+
+						int numParticles = checkpoint.numParticles = in.getInt();
+						int numAttributes = in.getInt();
+						in.require(numAttributes, 4, "attributes");
+						in.require(numParticles, 24 + (4L * numAttributes) + (version >= 2 ? 4 : 0), "particles");
+						checkpoint.attributes = new float[numAttributes][numParticles];
+						checkpoint.x = new double[numParticles];
+						checkpoint.y = new double[numParticles];
+						checkpoint.z = new double[numParticles];
+						for (int i = 0; i < numParticles; i++)
+							checkpoint.x[i] = in.getDouble();
+						for (int i = 0; i < numParticles; i++)
+							checkpoint.y[i] = in.getDouble();
+						for (int i = 0; i < numParticles; i++)
+							checkpoint.z[i] = in.getDouble();
+						for (float[] attribute : checkpoint.attributes)
+							for (int i = 0; i < numParticles; i++)
+								attribute[i] = in.getFloat();
+						checkpoint.ids = new int[numParticles];
+						if (version >= 2)
+							{
+								checkpoint.nextId = in.getInt();
+								for (int i = 0; i < numParticles; i++)
+									checkpoint.ids[i] = in.getInt();
+							}
+						else
+							{
+								checkpoint.nextId = numParticles;
+								for (int i = 0; i < numParticles; i++)
+									checkpoint.ids[i] = i;
+							}
+
+						checkpoint.fieldWidth = in.getInt();
+						checkpoint.fieldDepth = in.getInt();
+						checkpoint.solver = VectorField.Solver.valueOf(in.getString());
+						checkpoint.precision = FieldBuffer.Precision.valueOf(in.getString());
+						checkpoint.storage = FieldBuffer.Storage.valueOf(in.getString());
+
+						// The vector field has to be the size of the simulation's mixed layer, whose depth is stored in chunks, with a surface and a thermocline
+						if (checkpoint.fieldWidth != (int) (checkpoint.width / checkpoint.chunkSize) || checkpoint.fieldDepth != checkpoint.mixedLayerDepth
+								|| checkpoint.fieldWidth < 1 || checkpoint.fieldDepth < 2)
+							throw new IOException(file + " is corrupt, its vector field of " + checkpoint.fieldWidth + " x " + checkpoint.fieldDepth + " x "
+									+ checkpoint.fieldWidth + " chunks doesn't fit its simulation");
+						long size = (long) checkpoint.fieldWidth * checkpoint.fieldWidth * checkpoint.fieldDepth;
+						if (size > FieldBuffer.MAX_SIZE)
+							throw new IOException(file + " is corrupt, its vector field of " + size + " chunks is too large");
+						in.require(size, (3L * checkpoint.precision.bytes) + 8, "chunks");
+						checkpoint.xVel = FieldBuffer.allocate(checkpoint.precision, checkpoint.storage, size);
+						checkpoint.yVel = FieldBuffer.allocate(checkpoint.precision, checkpoint.storage, size);
+						checkpoint.zVel = FieldBuffer.allocate(checkpoint.precision, checkpoint.storage, size);
+						for (FieldBuffer velocity : new FieldBuffer[] { checkpoint.xVel, checkpoint.yVel, checkpoint.zVel })
+							for (long i = 0; i < size; i++)
+								if (checkpoint.precision == FieldBuffer.Precision.FLOAT)
+									velocity.setFloat(i, in.getFloat());
+								else
+									velocity.set(i, in.getDouble());
+						checkpoint.pressure = new double[(int) size];
+						for (int i = 0; i < size; i++)
+							checkpoint.pressure[i] = in.getDouble();
+						if (version >= 5)
+							{
+								checkpoint.fieldTime = in.getDouble();
+								checkpoint.fieldMaxSpeed = in.getDouble();
+							}
+
+						int numScalars = version >= 3 ? in.getInt() : 0;
+						in.require(numScalars, 8 * size, "scalars");
+						checkpoint.scalarNames = new String[numScalars];
+						checkpoint.scalars = new double[numScalars][];
+						for (int s = 0; s < numScalars; s++)
+							{
+								checkpoint.scalarNames[s] = in.getString();
+								checkpoint.scalars[s] = new double[(int) size];
+								for (int i = 0; i < size; i++)
+									checkpoint.scalars[s][i] = in.getDouble();
+							}
+
+						in.finish();
+						return checkpoint;
+					}
+				catch (IllegalArgumentException e)
+					{
+						// An unknown stepping, order, solver, precision or storage
+						throw new IOException(file + " is corrupt", e);
+					}
+				finally
+					{
+						channel.close();
+					}
+			}
+
+		/**
+		 * Buffers the values being written, and compresses them if required, so that the channel is written to in large blocks.
+		 */
+		private static final class Output
+			{
+				private final FileChannel channel;
+				private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				private final Deflater deflater; // null if not compressing
+				private final byte[] compressed;
+				private final CRC32 crc = new CRC32();
+
+				private Output(FileChannel channel, boolean compress)
+					{
+						this.channel = channel;
+						deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+						compressed = compress ? new byte[BUFFER_SIZE] : null;
+					}
+
+				private final void putInt(int value) throws IOException
+					{
+						ensure(4);
+						buffer.putInt(value);
+					}
+
+				private final void putLong(long value) throws IOException
+					{
+						ensure(8);
+						buffer.putLong(value);
+					}
+
+				private final void putFloat(float value) throws IOException
+					{
+						ensure(4);
+						buffer.putFloat(value);
+					}
+
+				private final void putDouble(double value) throws IOException
+					{
+						ensure(8);
+						buffer.putDouble(value);
+					}
+
+				private final void putString(String value) throws IOException
+					{
+						byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+						putInt(bytes.length);
+						ensure(bytes.length);
+						buffer.put(bytes);
+					}
+
+				private final void ensure(int bytes) throws IOException
+					{
+						if (buffer.remaining() < bytes)
+							{
+								crc.update(buffer.array(), 0, buffer.position());
+								writeBuffer();
+							}
+					}
+
+				/**
+				 * Writes the CRC of everything written so far, followed by anything still buffered.
+				 */
+				private final void finish() throws IOException
+					{
+						crc.update(buffer.array(), 0, buffer.position());
+						if (buffer.remaining() < 8)
+							writeBuffer();
+						buffer.putLong(crc.getValue());
+						writeBuffer();
+
+						if (deflater != null)
+							{
+								deflater.finish();
+								while (!deflater.finished())
+									write(ByteBuffer.wrap(compressed, 0, deflater.deflate(compressed)));
+								deflater.end();
+							}
+					}
+
+				private final void writeBuffer() throws IOException
+					{
+						buffer.flip();
+						if (deflater == null)
+							write(buffer);
+						else
+							{
+								deflater.setInput(buffer.array(), 0, buffer.limit());
+								while (!deflater.needsInput())
+									write(ByteBuffer.wrap(compressed, 0, deflater.deflate(compressed)));
+							}
+						buffer.clear();
+					}
+
+				private final void write(ByteBuffer data) throws IOException
+					{
+						while (data.hasRemaining())
+							channel.write(data);
+					}
+			}
+
+		/**
+		 * Reads the values written by an {@link Output} a block at a time, decompressing them if required.
+		 */
+		private static final class Input
+			{
+				private final File file; // Named in every error
+				private final FileChannel channel;
+				private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				private final Inflater inflater; // null if not compressed
+				private final byte[] compressed;
+				private final CRC32 crc = new CRC32();
+
+				private Input(File file, FileChannel channel, boolean compressed)
+					{
+						this.file = file;
+						this.channel = channel;
+						inflater = compressed ? new Inflater() : null;
+						this.compressed = compressed ? new byte[BUFFER_SIZE] : null;
+						buffer.limit(0);
+					}
+
+				private final int getInt() throws IOException
+					{
+						ensure(4);
+						return buffer.getInt();
+					}
+
+				private final long getLong() throws IOException
+					{
+						ensure(8);
+						return buffer.getLong();
+					}
+
+				private final float getFloat() throws IOException
+					{
+						ensure(4);
+						return buffer.getFloat();
+					}
+
+				private final double getDouble() throws IOException
+					{
+						ensure(8);
+						return buffer.getDouble();
+					}
+
+				private final String getString() throws IOException
+					{
+						int length = getInt();
+						if (length < 0 || length > 256)
+							throw new IOException(file + " is corrupt, it has a string of length " + length);
+						ensure(length);
+						byte[] bytes = new byte[length];
+						buffer.get(bytes);
+						return new String(bytes, StandardCharsets.UTF_8);
+					}
+
+				/**
+				 * Checks that a number of values read from the file is not negative, and that there are enough bytes left in the file to hold them, before any
+				 * memory is allocated for them. A compressed file is only known to be too short if it couldn't hold the values even at the best ratio deflate
+				 * can achieve.
+				 *
+				 * @param count
+				 *            - The number of values
+				 * @param bytesEach
+				 *            - The number of bytes stored for each value, more than 0
+				 * @param values
+				 *            - What the values are, for the error message
+				 */
+				private final void require(long count, long bytesEach, String values) throws IOException
+					{
+						long available = channel.size() - channel.position();
+						if (inflater != null)
+							available = (available + inflater.getRemaining()) * MAX_DEFLATE_RATIO;
+						available += buffer.remaining();
+
+						if (count < 0 || count > available / bytesEach)
+							throw new IOException(file + " is corrupt, it cannot hold " + count + " " + values);
+					}
+
+				/**
+				 * Checks that the CRC stored after the values matches the values read.
+				 */
+				private final void finish() throws IOException
+					{
+						crc.update(buffer.array(), 0, buffer.position());
+						buffer.compact().flip();
+						ensure(8);
+						if (buffer.getLong() != crc.getValue())
+							throw new IOException(file + " is corrupt, its checksum does not match");
+
+						if (inflater != null)
+							inflater.end();
+					}
+
+				/**
+				 * Makes sure that at least the specified number of bytes can be read from the buffer. Every byte before the buffer's position has been read,
+				 * and is added to the CRC before it is discarded.
+				 */
+				private final void ensure(int bytes) throws IOException
+					{
+						if (buffer.remaining() >= bytes)
+							return;
+
+						crc.update(buffer.array(), 0, buffer.position());
+						buffer.compact();
+
+						while (buffer.position() < bytes)
+							{
+								if (inflater == null)
+									{
+										if (channel.read(buffer) < 0)
+											throw new EOFException(file + " is corrupt, it ends early");
+										continue;
+									}
+
+								if (inflater.finished())
+									throw new EOFException(file + " is corrupt, it ends early");
+								if (inflater.needsInput())
+									{
+										int read = channel.read(ByteBuffer.wrap(compressed));
+										if (read < 0)
+											throw new EOFException(file + " is corrupt, it ends early");
+										inflater.setInput(compressed, 0, read);
+									}
+
+								try
+									{
+										buffer.position(buffer.position() + inflater.inflate(buffer.array(), buffer.position(), buffer.remaining()));
+									}
+								catch (DataFormatException e)
+									{
+										throw new IOException(file + " is corrupt, it cannot be decompressed", e);
+									}
+							}
+
+						buffer.flip();
+					}
+			}
+	}
@@ -0,0 +1,112 @@
+package ParMod;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Checks that a {@link Checkpoint} file that has been truncated or corrupted is reported with an IOException when it is read, rather than any other
+ * exception or running out of memory. A small simulation is checkpointed, the file is damaged in a number of ways, each of which is read back in turn.
+ * The undamaged file is also checked to sort its particles the same way as the simulation it was taken from.
+ * <p>
+ * Usage: CheckpointValidator. Exits with a status of 1 if any damaged file is read without an IOException, or if the undamaged file can't be read or
+ * isn't sorted the same way.
+ *
+ * @author Sebastian Troy
+ */
+public class CheckpointValidator
+	{
+		private static boolean passed = true;
+
+		public static void main(String[] args) throws IOException
+			{
+				System.setProperty("java.awt.headless", "true");
+
+				Simulation sim = new Simulation(1, 2, 1, 20, 1000, 0.1, 1, 1, VectorField.Solver.SOR, FieldBuffer.Precision.DOUBLE, FieldBuffer.Storage.HEAP);
+				sim.setParticleOrder(ParticleSorter.Order.MORTON, 3);
+				sim.step(sim.pace);
+				Checkpoint checkpoint = sim.checkpoint();
+				sim.workers.shutdown();
+
+				File file = File.createTempFile("ParMod", ".checkpoint");
+				file.deleteOnExit();
+				checkpoint.write(file, false);
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				checkpoint.write(file, true);
+				byte[] compressed = Files.readAllBytes(file.toPath());
+
+				// The offsets of the counts that are read before anything is allocated, see Checkpoint.write(File, boolean)
+				int steppingLength = ByteBuffer.wrap(bytes).getInt(56);
+				int sortEveryOffset = 64 + steppingLength + ByteBuffer.wrap(bytes).getInt(60 + steppingLength);
+				int numRandomsOffset = sortEveryOffset + 4;
+				int numParticlesOffset = numRandomsOffset + 4 + (16 * ByteBuffer.wrap(bytes).getInt(numRandomsOffset));
+
+				System.out.println("damage\tresult");
+				check("none", bytes, file, false);
+				check("none, compressed", compressed, file, false);
+				check("truncated", Arrays.copyOf(bytes, bytes.length / 2), file, true);
+				check("truncated, compressed", Arrays.copyOf(compressed, compressed.length / 2), file, true);
+				check("header only", Arrays.copyOf(bytes, 12), file, true);
+				check("width of 0", setInt(bytes, 12, 0), file, true);
+				check("negative sort interval", setInt(bytes, sortEveryOffset, -1), file, true);
+				check("negative random streams", setInt(bytes, numRandomsOffset, -1), file, true);
+				check("too many random streams", setInt(bytes, numRandomsOffset, Integer.MAX_VALUE), file, true);
+				check("negative particles", setInt(bytes, numParticlesOffset, -5), file, true);
+				check("too many particles", setInt(bytes, numParticlesOffset, Integer.MAX_VALUE), file, true);
+				check("too many attributes", setInt(bytes, numParticlesOffset + 4, Integer.MAX_VALUE), file, true);
+				check("changed value", setInt(bytes, bytes.length - 100, 12345), file, true);
+
+				// The sort decides which block, and so which random stream, moves each particle, so the resumed simulation has to sort the same way
+				Files.write(file.toPath(), bytes);
+				Simulation resumed = new Simulation(Checkpoint.read(file), 1);
+				ParticleSorter sorter = resumed.getParticleSorter();
+				resumed.workers.shutdown();
+				boolean sorted = sorter != null && sorter.getOrder() == ParticleSorter.Order.MORTON && sorter.getEvery() == 3;
+				passed &= sorted;
+				System.out.println("sort order\t" + (sorted ? "passed" : "FAILED, " + (sorter == null ? "not sorted" : sorter.getOrder() + " every " + sorter.getEvery())));
+
+				if (!passed)
+					System.exit(1);
+			}
+
+		/**
+		 * @return - A copy of the bytes, with a big-endian int written at the offset
+		 */
+		private static byte[] setInt(byte[] bytes, int offset, int value)
+			{
+				byte[] copy = bytes.clone();
+				ByteBuffer.wrap(copy).putInt(offset, value);
+				return copy;
+			}
+
+		/**
+		 * Writes the bytes to the file and reads it as a checkpoint.
+		 *
+		 * @param damaged
+		 *            - True if reading should fail with an IOException, false if it should succeed
+		 */
+		private static void check(String damage, byte[] bytes, File file, boolean damaged) throws IOException
+			{
+				Files.write(file.toPath(), bytes);
+
+				String result;
+				try
+					{
+						Checkpoint.read(file);
+						result = damaged ? "FAILED, read without an error" : "passed";
+					}
+				catch (IOException e)
+					{
+						result = damaged ? "passed, " + e.getMessage() : "FAILED, " + e;
+					}
+				catch (Throwable e)
+					{
+						result = "FAILED, " + e;
+					}
+
+				passed &= result.startsWith("passed");
+				System.out.println(damage + "\t" + result);
+			}
+	}
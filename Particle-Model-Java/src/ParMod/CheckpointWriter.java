@@ -0,0 +1,129 @@
+package ParMod;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link Checkpoint}s of a running {@link Simulation} to a file in the background, so that the simulation only stops for as long as it takes to copy
+ * its state. Each checkpoint is written to a temporary file which then replaces the last one, so there is always a complete checkpoint on disk even if the
+ * program dies part way through writing one.
+ *
+ * @author Sebastian Troy
+ */
+final class CheckpointWriter
+	{
+		private final File file;
+		private final boolean compress;
+		private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "Checkpoint writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+			});
+		private Future<?> pending; // The checkpoint being written, if any
+
+		/**
+		 * @param file
+		 *            - Where the checkpoints are written, each replacing the last
+		 * @param compress
+		 *            - True to compress the checkpoints, see {@link Checkpoint#write(File, boolean)}
+		 */
+		CheckpointWriter(File file, boolean compress)
+			{
+				this.file = file;
+				this.compress = compress;
+			}
+
+		/**
+		 * Takes a checkpoint of the simulation and writes it in the background. This must be called between ticks, from the thread running the simulation.
+		 *
+		 * @return - False if the last checkpoint is still being written, in which case no checkpoint is taken
+		 */
+		final boolean checkpoint(Simulation sim)
+			{
+				if (pending != null && !pending.isDone())
+					return false;
+
+				final Checkpoint checkpoint = sim.checkpoint();
+				pending = executor.submit(new Runnable()
+					{
+						@Override
+						public void run()
+							{
+								write(checkpoint);
+							}
+					});
+				return true;
+			}
+
+		/**
+		 * Waits for the checkpoint being written, if any, to be finished.
+		 */
+		final void await()
+			{
+				if (pending == null)
+					return;
+
+				try
+					{
+						pending.get();
+					}
+				catch (Exception e)
+					{
+						// Failures are reported by write()
+					}
+			}
+
+		/**
+		 * Waits for the checkpoint being written, if any, and then stops the background thread.
+		 */
+		final void shutdown()
+			{
+				await();
+				executor.shutdown();
+				try
+					{
+						executor.awaitTermination(1, TimeUnit.MINUTES);
+					}
+				catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+			}
+
+		/**
+		 * A failed checkpoint is not worth stopping the simulation for, the last checkpoint is left in place and the failure is only reported.
+		 */
+		private void write(Checkpoint checkpoint)
+			{
+				File temp = new File(file.getPath() + ".tmp");
+				try
+					{
+						checkpoint.write(temp, compress);
+						try
+							{
+								Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+							}
+						catch (AtomicMoveNotSupportedException e)
+							{
+								Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+							}
+					}
+				catch (IOException e)
+					{
+						System.err.println("Unable to write the checkpoint " + file + ": " + e);
+					}
+			}
+	}
@@ -0,0 +1,94 @@
+package ParMod;
+
+/**
+ * The simulation is subdivided into chunks, cubes of water which each hold localised information. No object is kept per chunk, instead each part of the
+ * model that needs a value for every chunk keeps it in a primitive array, indexed the same way as the {@link VectorField}'s cells: x first, then z and then
+ * y, so that each layer of chunks is contiguous and the layers of the mixed layer come first.
+ * <p>
+ * Values that are only needed in the mixed layer, such as those of the {@link ScalarField}, only need an array of {@link #getMixedLayerSize()} values, and
+ * share their indices with the chunks of the whole water column. Only values that are needed all the way to the sea floor, such as those of the
+ * {@link LightField}, need an array of {@link #size()} values.
+ *
+ * @author Sebastian Troy
+ */
+final class ChunkGrid
+	{
+		/**
+		 * Where: <br>
+		 * xSize is width,<br>
+		 * ySize is depth from surface to sea floor,<br>
+		 * zSize is breadth,<br>
+		 * mixedLayerDepth is depth from surface to thermocline &<br>
+		 * layerSize is the number of chunks in a single layer of the model (xSize * zSize).
+		 */
+		final int xSize, ySize, zSize, mixedLayerDepth, layerSize;
+		final double chunkSize; // The size of a chunk in meters
+		private final double chunksPerMeter;
+
+		/**
+		 * @param width
+		 *            - The length of the simulation's short sides in meters
+		 * @param depth
+		 *            - The depth of the simulation in meters
+		 * @param mixedLayerDepth
+		 *            - The depth of the mixed layer in chunks
+		 * @param chunkSize
+		 *            - The size of a chunk in meters
+		 */
+		ChunkGrid(int width, int depth, int mixedLayerDepth, double chunkSize)
+			{
+				xSize = zSize = (int) (width / chunkSize);
+				ySize = (int) (depth / chunkSize);
+				layerSize = xSize * zSize;
+
+				if ((long) xSize * zSize * ySize > Integer.MAX_VALUE)
+					throw new IllegalArgumentException("Too many chunks to index: " + xSize + " x " + ySize + " x " + zSize);
+
+				this.mixedLayerDepth = mixedLayerDepth;
+				this.chunkSize = chunkSize;
+				chunksPerMeter = 1 / chunkSize;
+			}
+
+		/**
+		 * @return - The number of chunks from the surface to the sea floor
+		 */
+		final int size()
+			{
+				return layerSize * ySize;
+			}
+
+		/**
+		 * @return - The number of chunks from the surface to the thermocline, chunks with an index below this are in the mixed layer
+		 */
+		final int getMixedLayerSize()
+			{
+				return layerSize * mixedLayerDepth;
+			}
+
+		/**
+		 * @return - The index of the specified chunk
+		 */
+		final int getIndex(int x, int y, int z)
+			{
+				return x + (y * layerSize) + (z * xSize);
+			}
+
+		/**
+		 * This is called twice for every particle during every tick, so it only guards against points on the far edges of the simulation.
+		 *
+		 * @return - The index of the chunk containing the specified point in meters, which must not be negative
+		 */
+		final int getIndex(double x, double y, double z)
+			{
+				int xi = (int) (x * chunksPerMeter);
+				if (xi >= xSize)
+					xi = xSize - 1;
+				int yi = (int) (y * chunksPerMeter);
+				if (yi >= ySize)
+					yi = ySize - 1;
+				int zi = (int) (z * chunksPerMeter);
+				if (zi >= zSize)
+					zi = zSize - 1;
+				return xi + (yi * layerSize) + (zi * xSize);
+			}
+	}
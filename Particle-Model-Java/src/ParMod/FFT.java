@@ -0,0 +1,191 @@
+package ParMod;
+
+/**
+ * A fast Fourier transform of complex data of any length. Lengths that are a power of 2 are transformed directly, any other length is transformed using
+ * Bluestein's algorithm, which turns it into a convolution that can be carried out with power of 2 transforms.
+ * <p>
+ * All of the memory needed is allocated when the transform is created, so transforming data never allocates memory. An FFT holds working memory, so each
+ * thread must use its own.
+ *
+ * @author Sebastian Troy
+ */
+class FFT
+	{
+		final int n;
+
+		// Twiddle factors, cos & sin of (2 * PI * k / n), for power of 2 lengths
+		private final double[] cos, sin;
+
+		// For any other length, the chirp (e^(-PI * i * k^2 / n)), the transform of its conjugate and working memory for Bluestein's algorithm
+		private final FFT convolution;
+		private final double[] chirpRe, chirpIm, filterRe, filterIm, workRe, workIm;
+
+		/**
+		 * @param n
+		 *            - The length of the data that will be transformed
+		 */
+		FFT(int n)
+			{
+				this.n = n;
+
+				if (Integer.bitCount(n) == 1)
+					{
+						cos = new double[n / 2];
+						sin = new double[n / 2];
+						for (int k = 0; k < n / 2; k++)
+							{
+								cos[k] = Math.cos(2 * Math.PI * k / n);
+								sin[k] = Math.sin(2 * Math.PI * k / n);
+							}
+
+						convolution = null;
+						chirpRe = chirpIm = filterRe = filterIm = workRe = workIm = null;
+					}
+				else
+					{
+						cos = sin = null;
+
+						// The convolution must be at least 2n - 1 long to avoid wrapping around
+						int m = Integer.highestOneBit((2 * n) - 1) << 1;
+						convolution = new FFT(m);
+
+						chirpRe = new double[n];
+						chirpIm = new double[n];
+						for (int k = 0; k < n; k++)
+							{
+								// k^2 is reduced modulo 2n first, so that the angle stays accurate for large k
+								double angle = Math.PI * (((long) k * k) % (2L * n)) / n;
+								chirpRe[k] = Math.cos(angle);
+								chirpIm[k] = -Math.sin(angle);
+							}
+
+						filterRe = new double[m];
+						filterIm = new double[m];
+						filterRe[0] = chirpRe[0];
+						filterIm[0] = -chirpIm[0];
+						for (int k = 1; k < n; k++)
+							{
+								filterRe[k] = filterRe[m - k] = chirpRe[k];
+								filterIm[k] = filterIm[m - k] = -chirpIm[k];
+							}
+						convolution.forward(filterRe, filterIm);
+
+						workRe = new double[m];
+						workIm = new double[m];
+					}
+			}
+
+		/**
+		 * Replaces the data with its discrete Fourier transform, X[k] = sum over j of x[j] * e^(-2 * PI * i * j * k / n).
+		 *
+		 * @param re
+		 *            - The real part of the data, at least n long
+		 * @param im
+		 *            - The imaginary part of the data, at least n long
+		 */
+		final void forward(double[] re, double[] im)
+			{
+				if (convolution == null)
+					radix2(re, im);
+				else
+					bluestein(re, im);
+			}
+
+		/**
+		 * Replaces the data with its inverse discrete Fourier transform, without dividing by n. So transforming forwards and then back multiplies the data by
+		 * n.
+		 *
+		 * @param re
+		 *            - The real part of the data, at least n long
+		 * @param im
+		 *            - The imaginary part of the data, at least n long
+		 */
+		final void inverse(double[] re, double[] im)
+			{
+				// The inverse transform is the conjugate of the forward transform of the conjugate
+				for (int i = 0; i < n; i++)
+					im[i] = -im[i];
+				forward(re, im);
+				for (int i = 0; i < n; i++)
+					im[i] = -im[i];
+			}
+
+		/**
+		 * An in place, iterative Cooley-Tukey transform.
+		 */
+		private final void radix2(double[] re, double[] im)
+			{
+				// Reorder the data into bit reversed order
+				for (int i = 1, j = 0; i < n; i++)
+					{
+						int bit = n >> 1;
+						for (; (j & bit) != 0; bit >>= 1)
+							j ^= bit;
+						j ^= bit;
+
+						if (i < j)
+							{
+								double temp = re[i];
+								re[i] = re[j];
+								re[j] = temp;
+								temp = im[i];
+								im[i] = im[j];
+								im[j] = temp;
+							}
+					}
+
+				// Combine transforms of length 1 into length 2, then 2 into 4 e.t.c...
+				for (int length = 2; length <= n; length <<= 1)
+					{
+						int half = length >> 1, step = n / length;
+						for (int start = 0; start < n; start += length)
+							for (int k = 0; k < half; k++)
+								{
+									double wRe = cos[k * step], wIm = -sin[k * step];
+									int a = start + k, b = a + half;
+
+									double tRe = (re[b] * wRe) - (im[b] * wIm);
+									double tIm = (re[b] * wIm) + (im[b] * wRe);
+
+									re[b] = re[a] - tRe;
+									im[b] = im[a] - tIm;
+									re[a] += tRe;
+									im[a] += tIm;
+								}
+					}
+			}
+
+		/**
+		 * Bluestein's algorithm, X[k] = chirp[k] * (sum over j of (x[j] * chirp[j]) * conjugate(chirp[k - j])), where the sum is a convolution.
+		 */
+		private final void bluestein(double[] re, double[] im)
+			{
+				int m = workRe.length;
+
+				for (int j = 0; j < n; j++)
+					{
+						workRe[j] = (re[j] * chirpRe[j]) - (im[j] * chirpIm[j]);
+						workIm[j] = (re[j] * chirpIm[j]) + (im[j] * chirpRe[j]);
+					}
+				for (int j = n; j < m; j++)
+					workRe[j] = workIm[j] = 0;
+
+				// Convolve with the conjugate chirp by multiplying the transforms
+				convolution.forward(workRe, workIm);
+				for (int j = 0; j < m; j++)
+					{
+						double r = (workRe[j] * filterRe[j]) - (workIm[j] * filterIm[j]);
+						double i = (workRe[j] * filterIm[j]) + (workIm[j] * filterRe[j]);
+						workRe[j] = r;
+						workIm[j] = i;
+					}
+				convolution.inverse(workRe, workIm);
+
+				for (int k = 0; k < n; k++)
+					{
+						double r = workRe[k] / m, i = workIm[k] / m;
+						re[k] = (r * chirpRe[k]) - (i * chirpIm[k]);
+						im[k] = (r * chirpIm[k]) + (i * chirpRe[k]);
+					}
+			}
+	}
@@ -0,0 +1,479 @@
+package ParMod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores one value for every chunk of the {@link VectorField}, e.g. the velocity along a single axis. Calculations are always carried out using
+ * doubles, but the values may be stored with less precision to halve the memory used and the amount of data that has to be moved to and from memory.
+ * <p>
+ * The values may be stored on the Java heap, or outside of it in a memory-mapped file, which lets the operating system keep the parts of a very large model
+ * that are in use in memory and page the rest out to disk. Only the velocities are stored in buffers, the pressure, the divergence and the working memory
+ * of the {@link PressureSolver}s are still arrays, so mapping moves most of a model off of the heap but doesn't let it grow any larger. No buffer holds
+ * more than {@link #MAX_SIZE} values however it is stored.
+ * <p>
+ * Only one type of buffer is used by a model while it runs, so the methods below are cheap to call.
+ *
+ * @author Sebastian Troy
+ */
+abstract class FieldBuffer
+	{
+		/**
+		 * The precision with which the values are stored
+		 */
+		enum Precision
+			{
+				DOUBLE("Double (64 bit)", 8), FLOAT("Float (32 bit)", 4);
+
+				final String description;
+				final int bytes;
+
+				private Precision(String description, int bytes)
+					{
+						this.description = description;
+						this.bytes = bytes;
+					}
+			}
+
+		/**
+		 * Where the values are stored
+		 */
+		enum Storage
+			{
+				HEAP("Java heap"), MAPPED("Memory-mapped file");
+
+				final String description;
+
+				private Storage(String description)
+					{
+						this.description = description;
+					}
+			}
+
+		/**
+		 * The largest number of values that can be stored, the same as the largest Java array, as every buffer is the same size as the arrays used alongside
+		 * it by the model.
+		 */
+		static final long MAX_SIZE = Integer.MAX_VALUE - 8;
+
+		/**
+		 * Mapped buffers are split into regions of 2^REGION_BITS values, as a single mapping is limited to 2GB.
+		 */
+		private static final int REGION_BITS = 27;
+		private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+		final long size;
+
+		private FieldBuffer(long size)
+			{
+				this.size = size;
+			}
+
+		/**
+		 * @param precision
+		 *            - The precision with which the values will be stored
+		 * @param storage
+		 *            - Where the values will be stored
+		 * @param size
+		 *            - The number of values
+		 *
+		 * @return - A new buffer, with every value set to 0
+		 */
+		static FieldBuffer allocate(Precision precision, Storage storage, long size)
+			{
+				if (size > MAX_SIZE)
+					throw new IllegalArgumentException("Cannot store " + size + " values, the limit is " + MAX_SIZE);
+
+				if (storage == Storage.MAPPED)
+					return precision == Precision.FLOAT ? new MappedFloats(size) : new MappedDoubles(size);
+
+				return precision == Precision.FLOAT ? new FloatArray((int) size) : new DoubleArray((int) size);
+			}
+
+		/**
+		 * @return - The precision with which the values are stored
+		 */
+		abstract Precision getPrecision();
+
+		/**
+		 * @return - Where the values are stored
+		 */
+		abstract Storage getStorage();
+
+		abstract double get(long index);
+
+		abstract void set(long index, double value);
+
+		/**
+		 * For buffers that store floats this avoids converting the value to a double, otherwise the value is rounded to a float.
+		 */
+		float getFloat(long index)
+			{
+				return (float) get(index);
+			}
+
+		/**
+		 * For buffers that store floats this avoids converting the value from a double.
+		 */
+		void setFloat(long index, float value)
+			{
+				set(index, value);
+			}
+
+		final void add(long index, double value)
+			{
+				set(index, get(index) + value);
+			}
+
+		final void multiply(long index, double factor)
+			{
+				set(index, get(index) * factor);
+			}
+
+		/**
+		 * Copies a range of values to another part of this buffer, e.g. to copy a whole layer of the model.
+		 */
+		void copy(long from, long to, long length)
+			{
+				if (to < from)
+					for (long i = 0; i < length; i++)
+						set(to + i, get(from + i));
+				else
+					for (long i = length - 1; i >= 0; i--)
+						set(to + i, get(from + i));
+			}
+
+		/**
+		 * Sets every value to the value at the same index of another buffer of the same size.
+		 */
+		void copyFrom(FieldBuffer source)
+			{
+				for (long i = 0; i < size; i++)
+					set(i, source.get(i));
+			}
+
+		/**
+		 * @return - A new buffer with the same precision, storage and values as this one
+		 */
+		final FieldBuffer duplicate()
+			{
+				FieldBuffer copy = allocate(getPrecision(), getStorage(), size);
+				copy.copyFrom(this);
+				return copy;
+			}
+
+		/**
+		 * Sets every value to a uniformly distributed random number. The same numbers are taken from the stream whatever the precision, so buffers of
+		 * different precisions can be compared.
+		 */
+		void fillUniform(RandomStream random, double min, double max)
+			{
+				for (long i = 0; i < size; i++)
+					set(i, random.nextDouble(min, max));
+			}
+
+		/**
+		 * @return - The number of bytes used to store the values
+		 */
+		abstract long getBytes();
+
+		/**
+		 * @return - The number of bytes used to store the values on the Java heap
+		 */
+		long getHeapBytes()
+			{
+				return getBytes();
+			}
+
+		/**
+		 * Creates a temporary file of the specified size and maps it into memory a region at a time. The file is deleted straight away where the operating
+		 * system allows it, the mappings keep its contents available until they are no longer used.
+		 */
+		private static MappedByteBuffer[] map(long size, int bytesPerValue)
+			{
+				int numRegions = (int) ((size + REGION_MASK) >>> REGION_BITS);
+				MappedByteBuffer[] regions = new MappedByteBuffer[numRegions];
+
+				try
+					{
+						File file = File.createTempFile("ParMod", ".field");
+						file.deleteOnExit();
+
+						RandomAccessFile raf = new RandomAccessFile(file, "rw");
+						try
+							{
+								raf.setLength(size * bytesPerValue);
+								FileChannel channel = raf.getChannel();
+								for (int r = 0; r < numRegions; r++)
+									{
+										long start = (long) r << REGION_BITS;
+										long length = Math.min(size - start, 1L << REGION_BITS);
+										regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, start * bytesPerValue, length * bytesPerValue);
+										regions[r].order(ByteOrder.nativeOrder());
+									}
+							}
+						finally
+							{
+								raf.close();
+							}
+
+						file.delete();
+					}
+				catch (IOException e)
+					{
+						throw new IllegalStateException("Unable to create a memory-mapped file for " + size + " values", e);
+					}
+
+				return regions;
+			}
+
+		private static final class DoubleArray extends FieldBuffer
+			{
+				private final double[] data;
+
+				private DoubleArray(int size)
+					{
+						super(size);
+						data = new double[size];
+					}
+
+				@Override
+				final Precision getPrecision()
+					{
+						return Precision.DOUBLE;
+					}
+
+				@Override
+				final Storage getStorage()
+					{
+						return Storage.HEAP;
+					}
+
+				@Override
+				final double get(long index)
+					{
+						return data[(int) index];
+					}
+
+				@Override
+				final void set(long index, double value)
+					{
+						data[(int) index] = value;
+					}
+
+				@Override
+				final void copy(long from, long to, long length)
+					{
+						System.arraycopy(data, (int) from, data, (int) to, (int) length);
+					}
+
+				@Override
+				final void copyFrom(FieldBuffer source)
+					{
+						if (source instanceof DoubleArray)
+							System.arraycopy(((DoubleArray) source).data, 0, data, 0, data.length);
+						else
+							super.copyFrom(source);
+					}
+
+				@Override
+				final void fillUniform(RandomStream random, double min, double max)
+					{
+						random.fillUniform(data, 0, data.length, min, max);
+					}
+
+				@Override
+				final long getBytes()
+					{
+						return 8L * size;
+					}
+			}
+
+		private static final class FloatArray extends FieldBuffer
+			{
+				private final float[] data;
+
+				private FloatArray(int size)
+					{
+						super(size);
+						data = new float[size];
+					}
+
+				@Override
+				final Precision getPrecision()
+					{
+						return Precision.FLOAT;
+					}
+
+				@Override
+				final Storage getStorage()
+					{
+						return Storage.HEAP;
+					}
+
+				@Override
+				final double get(long index)
+					{
+						return data[(int) index];
+					}
+
+				@Override
+				final void set(long index, double value)
+					{
+						data[(int) index] = (float) value;
+					}
+
+				@Override
+				final float getFloat(long index)
+					{
+						return data[(int) index];
+					}
+
+				@Override
+				final void setFloat(long index, float value)
+					{
+						data[(int) index] = value;
+					}
+
+				@Override
+				final void copy(long from, long to, long length)
+					{
+						System.arraycopy(data, (int) from, data, (int) to, (int) length);
+					}
+
+				@Override
+				final void copyFrom(FieldBuffer source)
+					{
+						if (source instanceof FloatArray)
+							System.arraycopy(((FloatArray) source).data, 0, data, 0, data.length);
+						else
+							super.copyFrom(source);
+					}
+
+				@Override
+				final long getBytes()
+					{
+						return 4L * size;
+					}
+			}
+
+		private static final class MappedDoubles extends FieldBuffer
+			{
+				private final DoubleBuffer[] regions;
+
+				private MappedDoubles(long size)
+					{
+						super(size);
+
+						MappedByteBuffer[] mapped = map(size, 8);
+						regions = new DoubleBuffer[mapped.length];
+						for (int r = 0; r < mapped.length; r++)
+							regions[r] = mapped[r].asDoubleBuffer();
+					}
+
+				@Override
+				final Precision getPrecision()
+					{
+						return Precision.DOUBLE;
+					}
+
+				@Override
+				final Storage getStorage()
+					{
+						return Storage.MAPPED;
+					}
+
+				@Override
+				final double get(long index)
+					{
+						return regions[(int) (index >>> REGION_BITS)].get((int) (index & REGION_MASK));
+					}
+
+				@Override
+				final void set(long index, double value)
+					{
+						regions[(int) (index >>> REGION_BITS)].put((int) (index & REGION_MASK), value);
+					}
+
+				@Override
+				final long getBytes()
+					{
+						return 8L * size;
+					}
+
+				@Override
+				final long getHeapBytes()
+					{
+						return 0;
+					}
+			}
+
+		private static final class MappedFloats extends FieldBuffer
+			{
+				private final FloatBuffer[] regions;
+
+				private MappedFloats(long size)
+					{
+						super(size);
+
+						MappedByteBuffer[] mapped = map(size, 4);
+						regions = new FloatBuffer[mapped.length];
+						for (int r = 0; r < mapped.length; r++)
+							regions[r] = mapped[r].asFloatBuffer();
+					}
+
+				@Override
+				final Precision getPrecision()
+					{
+						return Precision.FLOAT;
+					}
+
+				@Override
+				final Storage getStorage()
+					{
+						return Storage.MAPPED;
+					}
+
+				@Override
+				final double get(long index)
+					{
+						return regions[(int) (index >>> REGION_BITS)].get((int) (index & REGION_MASK));
+					}
+
+				@Override
+				final void set(long index, double value)
+					{
+						regions[(int) (index >>> REGION_BITS)].put((int) (index & REGION_MASK), (float) value);
+					}
+
+				@Override
+				final float getFloat(long index)
+					{
+						return regions[(int) (index >>> REGION_BITS)].get((int) (index & REGION_MASK));
+					}
+
+				@Override
+				final void setFloat(long index, float value)
+					{
+						regions[(int) (index >>> REGION_BITS)].put((int) (index & REGION_MASK), value);
+					}
+
+				@Override
+				final long getBytes()
+					{
+						return 4L * size;
+					}
+
+				@Override
+				final long getHeapBytes()
+					{
+						return 0;
+					}
+			}
+	}
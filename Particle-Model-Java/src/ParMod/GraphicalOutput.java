@@ -6,8 +6,6 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.awt.event.KeyEvent;
-import java.util.Arrays;
-import java.util.Collections;
 
 import ParMod.VectorField.Axis;
 import tComponents.components.TScrollBar;
@@ -37,6 +35,9 @@ public class GraphicalOutput
 		private TScrollBar graphScroller = new TScrollBar(0, 0, Main.canvasHeight, Main.canvasHeight, true, new Rectangle(0, 0, Main.canvasWidth, Main.canvasHeight));
 		private boolean usingScrollBar = false;
 		
+		// Draws the particles straight into the pixels of an image, in order of colour in graph mode, sharing the simulation's threads so none outlive it
+		private final ParticleRaster raster = new ParticleRaster(Main.canvasWidth, Main.canvasHeight, Main.sim.workers);
+
 		// Used to draw dotted lines for the graph mode
 		Stroke frontOfCubeStroke = new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0);
 		Stroke backOfCubeStroke = new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{9}, 0);
@@ -111,9 +112,12 @@ public class GraphicalOutput
 
 		/**
 		 * This method compartmentalises the code used to visualise the simulation. It is compartmentalised to reduce code bloat.
+		 * <p>
+		 * The simulation runs on its own thread, so only the latest {@link SimulationSnapshot} of it is drawn.
 		 */
 		final void drawWaterColumn(Graphics2D g)
 			{
+				SimulationSnapshot snapshot = Main.sim.snapshots.latest();
 				int graphTilt = (int) this.graphTilt;
 				int roundedGraphWidth = Math.round(Math.round(graphWidth));
 
@@ -146,39 +150,28 @@ public class GraphicalOutput
 					{
 						case VIEW_PARTICLES:
 							{
-								g.setColor(Color.WHITE);
-								for (Particle p : Main.sim.particles)
-									{
-										/*
-										 * The simulation is drawn as if looking in through an edge of the water column, and slightly from above. The screenX
-										 * and screenY variables are used to convert the particles 3D location in the simulation into 2D coordinates on the
-										 * graph.
-										 */
-										int screenX = (int) Math.round(((graphWidth * p.x) + (graphWidth * p.z)) + graphX);
-										int screenY = (int) ((graphHeight / Main.sim.depth * p.y) - (graphTilt * p.x) + (graphTilt * p.z)) + graphY;
-
-										// Draw the particle as a single pixel, a particle is drawn over all previous particles regardless of actual position.
-										g.drawLine(screenX, screenY, screenX, screenY);
-									}
+								// Draw each particle as a single white pixel, see ParticleRaster for how the particles are positioned on the graph
+								raster.draw(g, snapshot.particles, false, graphX, graphY, graphWidth, graphHeight / Main.sim.depth, graphTilt);
 								break; // Once that is drawn, ignore any further options
 							}
 						case VIEW_CURRENTS:
 							{
-								double xSpacing = graphWidth / (Main.sim.chunks.length);
-								double ySpacing = graphHeight / (Main.sim.chunks[0].length);
-								double tiltSpacing = this.graphTilt / (Main.sim.chunks[0][0].length);
+								ChunkGrid chunks = Main.sim.chunks;
+								double xSpacing = graphWidth / (chunks.xSize);
+								double ySpacing = graphHeight / (chunks.ySize);
+								double tiltSpacing = this.graphTilt / (chunks.zSize);
 
 								g.setColor(Color.WHITE);
-								for (int x = 0; x < Main.sim.chunks.length; x++)
-									for (int y = 0; y < Main.sim.chunks[0].length; y++)
-										for (int z = 0; z < Main.sim.chunks[0][0].length; z++)
+								for (int x = 0; x < chunks.xSize; x++)
+									for (int y = 0; y < chunks.ySize; y++)
+										for (int z = 0; z < chunks.zSize; z++)
 											{
 												int screenX = (int) ((xSpacing * x + (0.5 * xSpacing)) + (xSpacing * z + (0.5 * xSpacing))) + graphX;
 												int screenY = (int) ((ySpacing * y + (0.5 * ySpacing)) - (tiltSpacing * x + (0.5 * xSpacing)) + (tiltSpacing * z + (0.5 * xSpacing))) + graphY;
 
-												double xVel = Main.sim.vecField.getVelocityAt(x, y, z, Axis.x);
-												double yVel = Main.sim.vecField.getVelocityAt(x, y, z, Axis.y);
-												double zVel = Main.sim.vecField.getVelocityAt(x, y, z, Axis.z);
+												double xVel = snapshot.getVelocityAt(x, y, z, Axis.x);
+												double yVel = snapshot.getVelocityAt(x, y, z, Axis.y);
+												double zVel = snapshot.getVelocityAt(x, y, z, Axis.z);
 
 												int velocityX = (int) ((xSpacing * (x + 10 * xVel) + (0.5 * xSpacing)) + (xSpacing * (z + 10 * zVel) + (0.5 * xSpacing))) + graphX;
 												int velocityY = (int) ((ySpacing * (y + 10 * yVel) + (0.5 * ySpacing)) - (tiltSpacing * (x + 10 * xVel) + (0.5 * xSpacing)) + (tiltSpacing
@@ -191,25 +184,8 @@ public class GraphicalOutput
 							}
 						case VIEW_GRAPH:
 							{
-								for (Particle p : Main.sim.particles)
-									p.calculateColour();
-
-								Collections.sort(Main.sim.particles);
-
-								for (Particle p : Main.sim.particles)
-									{
-										g.setColor(new Color(p.colour, p.colour, p.colour));
-										/*
-										 * The simulation is drawn as if looking in through an edge of the water column, and slightly from above. The screenX
-										 * and screenY variables are used to convert the particles 3D location in the simulation into 2D coordinates on the
-										 * graph.
-										 */
-										int screenX = (int) Math.round(((graphWidth * p.x) + (graphWidth * p.z)) + graphX);
-										int screenY = (int) ((graphHeight / Main.sim.depth * p.y) - (graphTilt * p.x) + (graphTilt * p.z)) + graphY;
-
-										// Draw the particle as a single pixel, a particle is drawn over all previous particles regardless of actual position.
-										g.drawLine(screenX, screenY, screenX, screenY);
-									}
+								// Particles nearer the viewer are drawn lighter, and over those further away
+								raster.draw(g, snapshot.particles, true, graphX, graphY, graphWidth, graphHeight / Main.sim.depth, graphTilt);
 								break; // Once that is drawn, ignore any further options
 							}
 
@@ -256,6 +232,16 @@ public class GraphicalOutput
 						case '3':
 							Main.graphicalOutput.currentViewMode = GraphicalOutput.VIEW_GRAPH;
 							return; // Once that is done, ignore the rest of the options
+						// Start measuring the time taken by each phase of the simulation, or print what has been measured and stop
+						case 'm':
+							if (Main.sim.getMetrics().isEnabled())
+								{
+									System.out.print(Main.sim.getMetrics());
+									Main.sim.setMetrics(Metrics.NOOP);
+								}
+							else
+								Main.sim.setMetrics(new HistogramMetrics());
+							return;
 					}
 			}
 
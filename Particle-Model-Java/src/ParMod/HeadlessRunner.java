@@ -0,0 +1,317 @@
+package ParMod;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a {@link Simulation} from the command line, without a window or any rendering, as fast as it will go. Once finished the number of ticks per second
+ * and the distribution of the time spent on each phase of a tick are printed, see {@link HistogramMetrics}.
+ * <p>
+ * Usage: HeadlessRunner [options] [depth] [mixed layer depth] [pace] [particles] [chunks per meter] [ticks] [seed] [threads] [solver] [precision]
+ * [storage]
+ * <p>
+ * The first five are the same as the parameters chosen on the {@link ParameterInput} screen, any that are left out take the same default values. Each tick
+ * advances the model by the full pace, in minutes.
+ * <p>
+ * Options:<br>
+ * -checkpoint file - Writes a {@link Checkpoint} to the file once the run is complete<br>
+ * -every n - Also writes a checkpoint every n ticks, in the background<br>
+ * -compress - Compresses the checkpoints and trajectories<br>
+ * -trajectory file - Records the trajectories of the particles to the file, see {@link TrajectoryWriter}<br>
+ * -trajectory-every n - Records a frame every n ticks, 1 by default<br>
+ * -trajectory-stride n - Only records particles whose id is a multiple of n, 1 by default<br>
+ * -trajectory-ids min:max - Only records particles with ids from min to max - 1<br>
+ * -sort order - Sorts the particles by their position, CHUNK or MORTON, see {@link ParticleSorter}, or the same as the checkpoint when resuming<br>
+ * -sort-every n - Sorts the particles every n ticks, rather than whenever it is worth it, or the same as the checkpoint when resuming<br>
+ * -field-every n - Steps the vector field every n ticks, 10 by default or the same as the checkpoint when resuming<br>
+ * -field-stepping mode - FIXED to step the vector field every n ticks, or ADAPTIVE to step it through the same time in as few steps as stay stable<br>
+ * -resume file - Carries on from a checkpoint, only the number of ticks and threads are used from the parameters above
+ * <p>
+ * Unknown options, missing values and values that can't be read print the usage and exit with a status of 1.
+ *
+ * @author Sebastian Troy
+ */
+public class HeadlessRunner
+	{
+		// The number of trajectory frames that can wait to be written before frames are dropped
+		private static final int TRAJECTORY_QUEUE_SIZE = 16;
+
+		private static final String USAGE = "Usage: HeadlessRunner [options] [depth] [mixed layer depth] [pace] [particles] [chunks per meter] [ticks] [seed]"
+				+ " [threads] [solver] [precision] [storage]\n"
+				+ "Options: -checkpoint file, -every n, -compress, -resume file, -trajectory file, -trajectory-every n, -trajectory-stride n,"
+				+ " -trajectory-ids min:max, -sort order, -sort-every n, -field-every n, -field-stepping mode";
+		private static final int MAX_PARAMETERS = 11;
+
+		public static void main(String[] args)
+			{
+				System.setProperty("java.awt.headless", "true");
+
+				// Separate the options from the parameters
+				File checkpointFile = null, resumeFile = null, trajectoryFile = null;
+				int checkpointEvery = 0, trajectoryEvery = 1, trajectoryStride = 1, minId = 0, maxId = Integer.MAX_VALUE;
+				boolean compress = false;
+				ParticleSorter.Order particleOrder = null;
+				Integer sortEvery = null;
+				int fieldEvery = 0;
+				VectorField.Stepping fieldStepping = null;
+				List<String> parameters = new ArrayList<String>();
+				for (int i = 0; i < args.length; i++)
+					{
+						if (args[i].equals("-checkpoint"))
+							checkpointFile = new File(value(args, ++i));
+						else if (args[i].equals("-every"))
+							checkpointEvery = parseInt(value(args, ++i), "-every");
+						else if (args[i].equals("-compress"))
+							compress = true;
+						else if (args[i].equals("-resume"))
+							resumeFile = new File(value(args, ++i));
+						else if (args[i].equals("-trajectory"))
+							trajectoryFile = new File(value(args, ++i));
+						else if (args[i].equals("-trajectory-every"))
+							trajectoryEvery = parseInt(value(args, ++i), "-trajectory-every");
+						else if (args[i].equals("-trajectory-stride"))
+							trajectoryStride = parseInt(value(args, ++i), "-trajectory-stride");
+						else if (args[i].equals("-sort"))
+							particleOrder = parseEnum(ParticleSorter.Order.class, value(args, ++i), "-sort");
+						else if (args[i].equals("-sort-every"))
+							sortEvery = parseInt(value(args, ++i), "-sort-every");
+						else if (args[i].equals("-field-every"))
+							fieldEvery = parseInt(value(args, ++i), "-field-every");
+						else if (args[i].equals("-field-stepping"))
+							fieldStepping = parseEnum(VectorField.Stepping.class, value(args, ++i), "-field-stepping");
+						else if (args[i].equals("-trajectory-ids"))
+							{
+								String[] ids = value(args, ++i).split(":");
+								if (ids.length != 2)
+									usage("-trajectory-ids must be given as min:max");
+								minId = parseInt(ids[0], "-trajectory-ids");
+								maxId = parseInt(ids[1], "-trajectory-ids");
+							}
+						// Anything else starting with '-' is an unknown option, unless it is a negative number such as a seed
+						else if (args[i].startsWith("-") && !args[i].matches("-\\d+"))
+							usage("Unknown option " + args[i]);
+						else
+							parameters.add(args[i]);
+					}
+				if (parameters.size() > MAX_PARAMETERS)
+					usage("Too many parameters, expected at most " + MAX_PARAMETERS);
+				args = parameters.toArray(new String[parameters.size()]);
+
+				int depth = args.length > 0 ? parseInt(args[0], "depth") : 10;
+				int mixedLayerDepth = args.length > 1 ? parseInt(args[1], "mixed layer depth") : 5;
+				int pace = args.length > 2 ? parseInt(args[2], "pace") : 20;
+				int numParticles = args.length > 3 ? parseInt(args[3], "particles") : 10000;
+				int chunks = args.length > 4 ? parseInt(args[4], "chunks per meter") : 10;
+				int ticks = args.length > 5 ? parseInt(args[5], "ticks") : 1000;
+				long seed = args.length > 6 ? parseLong(args[6], "seed") : 1;
+				int threads = args.length > 7 ? parseInt(args[7], "threads") : Runtime.getRuntime().availableProcessors();
+				VectorField.Solver solver = args.length > 8 ? parseEnum(VectorField.Solver.class, args[8], "solver") : VectorField.Solver.SOR;
+				FieldBuffer.Precision precision = args.length > 9 ? parseEnum(FieldBuffer.Precision.class, args[9], "precision") : FieldBuffer.Precision.DOUBLE;
+				FieldBuffer.Storage storage = args.length > 10 ? parseEnum(FieldBuffer.Storage.class, args[10], "storage") : FieldBuffer.Storage.HEAP;
+
+				// The same checks as ParameterInput
+				if (depth <= 0)
+					exit("The depth must be greater than 0m");
+				if (mixedLayerDepth > depth)
+					exit("The depth of the mixed layer must be less than or equal to the depth of the Simulation");
+				if (pace <= 0)
+					exit("The pace must be greater than 0");
+				if (numParticles < 1)
+					exit("The number of particles must be greater than 0");
+				if (chunks < 1)
+					exit("The number of chunks must be greater than 0");
+				if ((long) mixedLayerDepth * chunks < 2)
+					exit("The mixed layer must be at least 2 chunks deep, for the surface and the thermocline");
+				if ((double) chunks * chunks * chunks * mixedLayerDepth > FieldBuffer.MAX_SIZE)
+					exit("The number of chunks in the mixed layer must be no more than " + FieldBuffer.MAX_SIZE);
+				if (ticks < 1)
+					exit("The number of ticks must be greater than 0");
+				if (threads < 1)
+					exit("The number of threads must be greater than 0");
+				if (checkpointEvery < 0 || (checkpointEvery > 0 && checkpointFile == null))
+					exit("Checkpoints can only be written every n > 0 ticks, to the file given by -checkpoint");
+				if (trajectoryEvery < 1 || trajectoryStride < 1)
+					exit("Trajectories can only be recorded every n > 0 ticks, with a stride > 0");
+				if (sortEvery != null && sortEvery < 0)
+					exit("Particles can only be sorted every n > 0 ticks");
+				if (fieldEvery < 0)
+					exit("The vector field can only step every n > 0 ticks");
+
+				long time = System.nanoTime();
+				Simulation sim;
+				if (resumeFile != null)
+					{
+						try
+							{
+								sim = new Simulation(Checkpoint.read(resumeFile), threads);
+							}
+						catch (IOException e)
+							{
+								exit("Unable to resume from " + resumeFile + ", " + e.getMessage());
+								return;
+							}
+						System.out.println("Resumed from " + resumeFile + " after " + sim.getTicks() + " ticks, depth " + sim.depth + "m, pace " + sim.pace
+								+ " minutes, " + sim.particles.size + " particles, " + Math.round(1 / sim.chunkSize) + " chunks per meter");
+						System.out.println(ticks + " ticks, " + threads + " threads");
+					}
+				else
+					{
+						System.out.println("Depth " + depth + "m, mixed layer " + mixedLayerDepth + "m, pace " + pace + " minutes, " + numParticles + " particles, "
+								+ chunks + " chunks per meter");
+						System.out.println(ticks + " ticks, seed " + seed + ", " + threads + " threads, " + solver.description + " solver, " + precision.description
+								+ ", " + storage.description);
+
+						sim = new Simulation(1/* width set to 1 meter */, depth, mixedLayerDepth, pace, numParticles, 1.0 / chunks, threads, seed, solver,
+								precision, storage);
+					}
+				Main.sim = sim;
+				// A resumed simulation is already sorted as it was when the checkpoint was taken, so only the options given change that
+				if (particleOrder != null || sortEvery != null)
+					{
+						ParticleSorter sorter = sim.getParticleSorter();
+						if (particleOrder == null)
+							particleOrder = sorter == null ? ParticleSorter.Order.NONE : sorter.getOrder();
+						if (sortEvery == null)
+							sortEvery = sorter == null ? 0 : sorter.getEvery();
+						sim.setParticleOrder(particleOrder, sortEvery);
+					}
+				if (fieldEvery > 0)
+					sim.setFieldCadence(fieldEvery);
+				if (fieldStepping != null)
+					sim.setFieldStepping(fieldStepping);
+				if (sim.fieldStepping == VectorField.Stepping.ADAPTIVE)
+					System.out.println("Vector field steps adaptively, through the time of a fixed step every " + sim.fieldCadence + " ticks");
+				else
+					System.out.println("Vector field steps every " + sim.fieldCadence + " ticks");
+				HistogramMetrics metrics = new HistogramMetrics();
+				sim.setMetrics(metrics);
+				sim.registerMBeans();
+				double setupSeconds = (System.nanoTime() - time) / 1e9;
+
+				CheckpointWriter checkpointWriter = checkpointFile == null ? null : new CheckpointWriter(checkpointFile, compress);
+				TrajectoryWriter trajectoryWriter = null;
+				if (trajectoryFile != null)
+					{
+						try
+							{
+								trajectoryWriter = new TrajectoryWriter(trajectoryFile, trajectoryEvery, trajectoryStride, minId, maxId, compress, TRAJECTORY_QUEUE_SIZE);
+							}
+						catch (IOException e)
+							{
+								exit("Unable to create " + trajectoryFile + ", " + e.getMessage());
+							}
+						sim.setTrajectoryWriter(trajectoryWriter);
+					}
+
+				time = System.nanoTime();
+				for (int tick = 1; tick <= ticks; tick++)
+					{
+						sim.step(sim.pace);
+
+						if (checkpointEvery > 0 && tick % checkpointEvery == 0 && tick < ticks && !checkpointWriter.checkpoint(sim))
+							System.err.println("Skipped the checkpoint at tick " + tick + ", the last one is still being written");
+					}
+				double runSeconds = (System.nanoTime() - time) / 1e9;
+
+				if (trajectoryWriter != null)
+					{
+						try
+							{
+								trajectoryWriter.close();
+								System.out.println("Trajectories written to " + trajectoryFile + ", " + trajectoryWriter.getFramesDropped() + " frames dropped");
+							}
+						catch (IOException e)
+							{
+								System.err.println("Unable to write the trajectories to " + trajectoryFile + ", " + e.getMessage());
+							}
+					}
+
+				if (checkpointWriter != null)
+					{
+						// The final checkpoint must not be skipped
+						checkpointWriter.await();
+						checkpointWriter.checkpoint(sim);
+						checkpointWriter.shutdown();
+						System.out.println("Checkpoint written to " + checkpointFile + " after " + sim.getTicks() + " ticks");
+					}
+
+				sim.workers.shutdown();
+
+				System.out.println(String.format("Setup: %.3fs", setupSeconds));
+				System.out.println(String.format("Run: %.3fs, %.1f ticks/s, %d particles remaining", runSeconds, ticks / runSeconds, sim.particles.size));
+				ParticleSorter sorter = sim.getParticleSorter();
+				if (sorter != null)
+					System.out.println("Particles sorted " + sorter.getOrder().description + " " + sorter.getNumSorts() + " times, the last "
+							+ sorter.getInterval() + " ticks apart");
+				System.out.println("Vector field stepped " + sim.getFieldSteps() + " times");
+				System.out.print(metrics);
+			}
+
+		private static void exit(String message)
+			{
+				System.err.println("Cannot start Simulation - " + message);
+				System.exit(1);
+			}
+
+		/**
+		 * Prints what was wrong with the arguments, followed by how they should be given, and exits.
+		 */
+		private static void usage(String message)
+			{
+				System.err.println(message);
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+
+		/**
+		 * @return - The argument at index i, the value of the option before it
+		 */
+		private static String value(String[] args, int i)
+			{
+				if (i >= args.length)
+					usage(args[i - 1] + " needs a value");
+				return args[i];
+			}
+
+		private static int parseInt(String value, String name)
+			{
+				try
+					{
+						return Integer.parseInt(value);
+					}
+				catch (NumberFormatException e)
+					{
+						usage(name + " must be a whole number, not \"" + value + "\"");
+						return 0;
+					}
+			}
+
+		private static long parseLong(String value, String name)
+			{
+				try
+					{
+						return Long.parseLong(value);
+					}
+				catch (NumberFormatException e)
+					{
+						usage(name + " must be a whole number, not \"" + value + "\"");
+						return 0;
+					}
+			}
+
+		private static <E extends Enum<E>> E parseEnum(Class<E> type, String value, String name)
+			{
+				try
+					{
+						return Enum.valueOf(type, value);
+					}
+				catch (IllegalArgumentException e)
+					{
+						usage(name + " must be one of " + Arrays.toString(type.getEnumConstants()) + ", not \"" + value + "\"");
+						return null;
+					}
+			}
+	}
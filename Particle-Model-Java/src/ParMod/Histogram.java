@@ -0,0 +1,143 @@
+package ParMod;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a series of non-negative values, e.g. the number of nanoseconds taken by each tick, in the same way as HdrHistogram. Values
+ * below 2^SUB_BUCKET_BITS are counted exactly, larger values are counted in buckets that double in width with each power of 2, so every value is recorded to
+ * within 1% of its true value using a few kilobytes of memory, however large it is.
+ * <p>
+ * Values may be recorded from any thread. Recording a value never allocates memory or takes a lock.
+ *
+ * @author Sebastian Troy
+ */
+final class Histogram
+	{
+		private static final int SUB_BUCKET_BITS = 7;
+		private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+		// Enough buckets for every positive long, the largest shift is 63 - SUB_BUCKET_BITS
+		private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF + SUB_BUCKET_COUNT;
+
+		private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong count = new AtomicLong(), total = new AtomicLong();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE), max = new AtomicLong(Long.MIN_VALUE);
+
+		/**
+		 * @param value
+		 *            - The value to be recorded, negative values are recorded as 0
+		 */
+		final void record(long value)
+			{
+				if (value < 0)
+					value = 0;
+
+				counts.incrementAndGet(getIndex(value));
+				count.incrementAndGet();
+				total.addAndGet(value);
+
+				for (long current = min.get(); value < current && !min.compareAndSet(current, value); current = min.get())
+					;
+				for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get())
+					;
+			}
+
+		/**
+		 * Forgets every value recorded so far. Values recorded at the same time from other threads may or may not be forgotten.
+		 */
+		final void reset()
+			{
+				for (int i = 0; i < NUM_BUCKETS; i++)
+					counts.set(i, 0);
+				count.set(0);
+				total.set(0);
+				min.set(Long.MAX_VALUE);
+				max.set(Long.MIN_VALUE);
+			}
+
+		/**
+		 * @return - A copy of the values recorded so far, that is not affected by values recorded later
+		 */
+		final Snapshot snapshot()
+			{
+				long[] copy = new long[NUM_BUCKETS];
+				for (int i = 0; i < NUM_BUCKETS; i++)
+					copy[i] = counts.get(i);
+				return new Snapshot(copy, count.get(), total.get(), min.get(), max.get());
+			}
+
+		/**
+		 * @return - The index of the bucket that counts the specified value
+		 */
+		private static int getIndex(long value)
+			{
+				if (value < SUB_BUCKET_COUNT)
+					return (int) value;
+
+				// Keep the top SUB_BUCKET_BITS bits of the value, the top bit is always set so the sub bucket is in the upper half
+				int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+				return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+			}
+
+		/**
+		 * @return - The largest value counted by the specified bucket
+		 */
+		private static long getHighestValue(int index)
+			{
+				if (index < SUB_BUCKET_COUNT)
+					return index;
+
+				int shift = index / SUB_BUCKET_HALF - 1;
+				long lowest = (long) (index - shift * SUB_BUCKET_HALF) << shift;
+				return lowest + (1L << shift) - 1;
+			}
+
+		/**
+		 * The values recorded by a {@link Histogram} at a single point in time.
+		 */
+		static final class Snapshot
+			{
+				private final long[] counts;
+				final long count, total, min, max;
+
+				private Snapshot(long[] counts, long count, long total, long min, long max)
+					{
+						this.counts = counts;
+						this.count = count;
+						this.total = total;
+						this.min = count == 0 ? 0 : min;
+						this.max = count == 0 ? 0 : max;
+					}
+
+				/**
+				 * @return - The mean of the recorded values, or 0 if nothing was recorded
+				 */
+				final double getMean()
+					{
+						return count == 0 ? 0 : (double) total / count;
+					}
+
+				/**
+				 * @param percentile
+				 *            - From 0 to 100, e.g. 99 for the value that 99% of the recorded values are no larger than
+				 *
+				 * @return - The value at the specified percentile, to within the precision of the histogram, or 0 if nothing was recorded
+				 */
+				final long getValueAtPercentile(double percentile)
+					{
+						long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+
+						long sum = 0;
+						for (int i = 0; i < counts.length; i++)
+							{
+								sum += counts[i];
+								if (sum >= countAtPercentile)
+									return Math.min(max, getHighestValue(i));
+							}
+
+						return max;
+					}
+			}
+	}
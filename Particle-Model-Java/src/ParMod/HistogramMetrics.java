@@ -0,0 +1,83 @@
+package ParMod;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Records every measurement reported by the model in a {@link Histogram}, so that the typical and the worst cases can be seen as well as the average.
+ *
+ * @author Sebastian Troy
+ */
+final class HistogramMetrics implements Metrics
+	{
+		private final Histogram[] histograms = new Histogram[Metric.values().length];
+
+		HistogramMetrics()
+			{
+				for (int i = 0; i < histograms.length; i++)
+					histograms[i] = new Histogram();
+			}
+
+		@Override
+		public final boolean isEnabled()
+			{
+				return true;
+			}
+
+		@Override
+		public final long startTimer()
+			{
+				return System.nanoTime();
+			}
+
+		@Override
+		public final void stopTimer(Metric metric, long start)
+			{
+				histograms[metric.ordinal()].record(System.nanoTime() - start);
+			}
+
+		@Override
+		public final void record(Metric metric, long value)
+			{
+				histograms[metric.ordinal()].record(value);
+			}
+
+		@Override
+		public final Map<Metric, Histogram.Snapshot> snapshot()
+			{
+				Map<Metric, Histogram.Snapshot> snapshots = new EnumMap<Metric, Histogram.Snapshot>(Metric.class);
+				for (Metric metric : Metric.values())
+					{
+						Histogram.Snapshot snapshot = histograms[metric.ordinal()].snapshot();
+						if (snapshot.count > 0)
+							snapshots.put(metric, snapshot);
+					}
+				return snapshots;
+			}
+
+		/**
+		 * Forgets everything recorded so far, e.g. once the model has warmed up.
+		 */
+		final void reset()
+			{
+				for (Histogram histogram : histograms)
+					histogram.reset();
+			}
+
+		/**
+		 * @return - A table of the measurements recorded so far, times in milliseconds
+		 */
+		@Override
+		public String toString()
+			{
+				StringBuilder table = new StringBuilder(String.format("%-18s %8s %12s %10s %10s %10s %10s%n", "Metric", "Count", "Total", "Mean", "p50", "p99", "Max"));
+				for (Map.Entry<Metric, Histogram.Snapshot> entry : snapshot().entrySet())
+					{
+						Histogram.Snapshot s = entry.getValue();
+						double unit = entry.getKey().timed ? 1e6 : 1;
+						table.append(String.format("%-18s %8d %12.3f %10.3f %10.3f %10.3f %10.3f%n", entry.getKey().description, s.count, s.total / unit, s.getMean()
+								/ unit, s.getValueAtPercentile(50) / unit, s.getValueAtPercentile(99) / unit, s.max / unit));
+					}
+				return table.toString();
+			}
+	}
@@ -0,0 +1,160 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * Works out how much of the light reaching the surface makes it down to each chunk of the water column. Light is absorbed by the water and by the
+ * particles in every chunk it passes through (Beer-Lambert), so the light reaching a chunk is the product of how much each chunk above it lets through.
+ * <p>
+ * The number of particles in each chunk is kept up to date by {@link #add(int, int)}, as particles move between chunks. Only the columns of chunks whose
+ * number of particles has changed are recalculated by {@link #update()}, and only from the highest chunk that changed downwards, as nothing above it is
+ * affected. The columns are shared between the worker threads.
+ * <p>
+ * Chunks are indexed by the {@link ChunkGrid}, over the whole depth of the simulation, as particles sink by the light at every depth.
+ *
+ * @author Sebastian Troy
+ */
+final class LightField
+	{
+		/**
+		 * An arbitrary value for the fraction of light absorbed by a meter of clear water.
+		 */
+		static final double WATER_ATTENUATION = 0.04;
+
+		/**
+		 * An arbitrary value for the light absorbed by each particle, in square meters, i.e. the attenuation added per meter by a concentration of 1 particle
+		 * per cubic meter.
+		 */
+		static final double PARTICLE_ATTENUATION = 0.0001;
+
+		private final ChunkGrid grid;
+		private final int xSize, ySize, layerSize;
+		private final double chunkSize, chunkVolume;
+		private final WorkerPool workers;
+
+		private final int[] counts; // The number of particles in each chunk
+		private final double[] light; // The fraction of the surface light reaching the centre of each chunk
+		private final int[] dirtyFrom; // The highest chunk of each column that has changed since the last update, ySize if none have
+
+		private final WorkerPool.Task updateTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int z)
+					{
+						for (int x = 0; x < xSize; x++)
+							{
+								int column = x + z * xSize;
+								if (dirtyFrom[column] < ySize)
+									{
+										updateColumn(column, dirtyFrom[column]);
+										dirtyFrom[column] = ySize;
+									}
+							}
+					}
+			};
+
+		/**
+		 * Every chunk starts with no particles, and is lit accordingly.
+		 *
+		 * @param grid
+		 *            - The chunks the water column is divided into
+		 * @param workers
+		 *            - The threads that the columns will be shared between
+		 */
+		LightField(ChunkGrid grid, WorkerPool workers)
+			{
+				this.grid = grid;
+				xSize = grid.xSize;
+				ySize = grid.ySize;
+				layerSize = grid.layerSize;
+				chunkSize = grid.chunkSize;
+				chunkVolume = chunkSize * chunkSize * chunkSize;
+				this.workers = workers;
+
+				counts = new int[grid.size()];
+				light = new double[grid.size()];
+				dirtyFrom = new int[layerSize];
+
+				// Every column needs calculating
+				update();
+			}
+
+		/**
+		 * Changes the number of particles in a chunk. The light is not recalculated until the next {@link #update()}.
+		 *
+		 * @param chunk
+		 *            - The index of the chunk
+		 * @param particles
+		 *            - The number of particles added, negative to remove them
+		 */
+		final void add(int chunk, int particles)
+			{
+				counts[chunk] += particles;
+
+				int column = chunk % layerSize, y = chunk / layerSize;
+				if (y < dirtyFrom[column])
+					dirtyFrom[column] = y;
+			}
+
+		/**
+		 * Replaces the number of particles in every chunk with those in the store, and recalculates all of the light.
+		 */
+		final void count(ParticleStore particles)
+			{
+				Arrays.fill(counts, 0);
+				for (int i = 0; i < particles.size; i++)
+					counts[grid.getIndex(particles.x[i], particles.y[i], particles.z[i])]++;
+
+				Arrays.fill(dirtyFrom, 0);
+				update();
+			}
+
+		/**
+		 * Recalculates the light in every column whose number of particles has changed, from the highest change downwards.
+		 */
+		final void update()
+			{
+				workers.run(grid.zSize, updateTask);
+			}
+
+		/**
+		 * Multiplies the light down a column, starting from the light leaving the chunk above the specified one.
+		 */
+		private final void updateColumn(int column, int fromY)
+			{
+				int k = column + fromY * layerSize;
+				// The light leaving the bottom of a chunk isn't stored, as it is cheaper to work it out again for the one chunk above than to keep it for every chunk
+				double above = fromY == 0 ? 1 : light[k - layerSize] * getHalfTransmittance(k - layerSize);
+
+				for (int y = fromY; y < ySize; y++, k += layerSize)
+					{
+						double halfTransmittance = getHalfTransmittance(k);
+						light[k] = above * halfTransmittance;
+						above = light[k] * halfTransmittance;
+					}
+			}
+
+		/**
+		 * @return - The fraction of light let through by half of the chunk, so the light at its centre can be found as well as the light leaving it
+		 */
+		private final double getHalfTransmittance(int chunk)
+			{
+				return Math.exp(-(WATER_ATTENUATION + PARTICLE_ATTENUATION * counts[chunk] / chunkVolume) * chunkSize / 2);
+			}
+
+		/**
+		 * @return - The fraction of the light at the surface that reaches the centre of the specified chunk, as of the last {@link #update()}
+		 */
+		final double getLight(int chunk)
+			{
+				return light[chunk];
+			}
+
+		/**
+		 * @return - The number of particles in the specified chunk
+		 */
+		final int getCount(int chunk)
+			{
+				return counts[chunk];
+			}
+	}
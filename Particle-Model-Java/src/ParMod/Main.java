@@ -49,6 +49,17 @@ public class Main extends TCode
 				DEBUG = true;
 				FORCE_SINGLE_THREAD = true;
 
+				// Closing the window exits the program, the simulation's threads are stopped first so that any checkpoint being written is finished
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+							{
+								if (sim != null)
+									sim.shutdown();
+							}
+					}, "Shutdown"));
+
 				begin(new ParameterInput());
 			}
 	}
\ No newline at end of file
@@ -0,0 +1,101 @@
+package ParMod;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Receives measurements of how long each phase of the model takes and how much work it does, so that the cause of a slow tick can be found. The model
+ * reports to {@link #NOOP} unless it is given something else, which costs nothing more than a call to an empty method, see {@link HistogramMetrics} for
+ * an implementation that records the distribution of every measurement.
+ * <p>
+ * Timing a phase looks like:<br>
+ * long start = metrics.startTimer();<br>
+ * ...<br>
+ * metrics.stopTimer(Metric.ADVECT, start);
+ *
+ * @author Sebastian Troy
+ */
+interface Metrics
+	{
+		/**
+		 * The measurements that are reported, phases are timed in nanoseconds and the rest are counts
+		 */
+		enum Metric
+			{
+				TICK("Tick", true), PARTICLES("Particles", true), REMOVAL("Removal", true), VECTOR_FIELD("Vector field", true), ADVECT("Advect", true), PROJECT(
+						"Project", true), SOLVE("Pressure solve", true), SORT("Particle sort", true), SCALARS("Scalar field", true), LIGHT("Light",
+						true), RENDER("Render", true), PARTICLE_COUNT("Particle count", false), REMOVED_PARTICLES("Particles removed", false), SOLVER_ITERATIONS("Solver iterations", false);
+
+				final String description;
+				final boolean timed;
+
+				private Metric(String description, boolean timed)
+					{
+						this.description = description;
+						this.timed = timed;
+					}
+			}
+
+		/**
+		 * Ignores everything reported to it.
+		 */
+		Metrics NOOP = new Metrics()
+			{
+				@Override
+				public boolean isEnabled()
+					{
+						return false;
+					}
+
+				@Override
+				public long startTimer()
+					{
+						return 0;
+					}
+
+				@Override
+				public void stopTimer(Metric metric, long start)
+					{}
+
+				@Override
+				public void record(Metric metric, long value)
+					{}
+
+				@Override
+				public Map<Metric, Histogram.Snapshot> snapshot()
+					{
+						return new EnumMap<Metric, Histogram.Snapshot>(Metric.class);
+					}
+			};
+
+		/**
+		 * @return - False if everything reported is ignored, so that measurements that are expensive to make can be skipped
+		 */
+		boolean isEnabled();
+
+		/**
+		 * @return - The start time to be passed to {@link #stopTimer(Metric, long)} once the phase is complete
+		 */
+		long startTimer();
+
+		/**
+		 * @param metric
+		 *            - The phase that has completed
+		 * @param start
+		 *            - The value returned by {@link #startTimer()} when the phase began
+		 */
+		void stopTimer(Metric metric, long start);
+
+		/**
+		 * @param metric
+		 *            - The count being reported
+		 * @param value
+		 *            - The value counted during this tick
+		 */
+		void record(Metric metric, long value);
+
+		/**
+		 * @return - The distribution of every measurement recorded so far, in nanoseconds for phases. Measurements that are not recorded are left out.
+		 */
+		Map<Metric, Histogram.Snapshot> snapshot();
+	}
@@ -0,0 +1,412 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * Solves for pressure using geometric multigrid. Relaxation, as used by {@link RedBlackSORSolver}, quickly smooths out small scale errors in the pressure
+ * field but takes a very long time to remove large scale errors, which get worse the more chunks the model has. Multigrid relaxes the error a few
+ * times, then moves it onto a grid with half as many cells along each axis where the large scale errors become small scale ones, and repeats this until the
+ * grid is tiny. The corrections found on each coarse grid are then interpolated back onto the finer grids. The number of cycles needed is roughly the same
+ * however large the grid is.
+ * <p>
+ * Each grid is halved along an axis only while that axis has an even number of cells, so grids whose sizes have many factors of 2 work best. The x & z axes
+ * wrap, and the surface and thermocline layers of every grid copy the layer next to them.
+ * <p>
+ * Every operation is split into one task per layer, so the results do not depend on the number of threads used.
+ *
+ * @author Sebastian Troy
+ */
+class MultigridSolver implements PressureSolver
+	{
+		/**
+		 * Grids with fewer cells than this are not coarsened any further.
+		 */
+		private static final int MIN_COARSE_CELLS = 64;
+
+		private final WorkerPool workers;
+		private final Level[] levels;
+
+		private double tolerance = 1e-3;
+		private int maxIterations = 10;
+
+		// How many coarse grid cycles are carried out per cycle (1 is a V-cycle, 2 is a W-cycle) and the number of relaxations before and after each one
+		private int cycleType = 1;
+		private int preSmoothing = 2, postSmoothing = 2;
+
+		// The results of the last solve
+		private int iterations = 0;
+		private double[] residuals = new double[maxIterations];
+
+		// The level and colour being worked on by the tasks below, and the sums calculated by each task (one per layer)
+		private Level level;
+		private int colour;
+		private double w;
+		private final double[] layerSums, layerSquares;
+
+		private final WorkerPool.Task relaxTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						level.grid.relax(level.p, level.div, level.meanDiv, task + 1, colour, w);
+					}
+			};
+
+		private final WorkerPool.Task residualTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = level.grid.residual(level.p, level.div, level.meanDiv, level.residual, task + 1);
+					}
+			};
+
+		private final WorkerPool.Task divergenceTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = level.grid.sum(level.div, task + 1);
+						layerSquares[task] = level.grid.sumOfSquares(level.div, task + 1);
+					}
+			};
+
+		private final WorkerPool.Task restrictTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = restrict(level, levels[level.depth + 1], task + 1);
+					}
+			};
+
+		private final WorkerPool.Task prolongTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						prolong(levels[level.depth + 1], level, task + 1);
+					}
+			};
+
+		/**
+		 * @param grid
+		 *            - The grid to be solved
+		 * @param workers
+		 *            - The threads that the layers of each grid will be shared between
+		 */
+		MultigridSolver(PoissonGrid grid, WorkerPool workers)
+			{
+				this.workers = workers;
+
+				// Keep halving the grid until it is small, or no axis can be halved
+				Level[] levels = new Level[] { new Level(grid, 0) };
+				while (true)
+					{
+						Level fine = levels[levels.length - 1];
+						PoissonGrid fineGrid = fine.grid;
+
+						/*
+						 * An axis is only halved if its cells are among the most strongly coupled, otherwise relaxation stops smoothing the error along the
+						 * other axes. This keeps every grid close to evenly spaced even when one axis can no longer be halved.
+						 */
+						double strongest = Math.max(fineGrid.xCoupling, Math.max(fineGrid.yCoupling, fineGrid.zCoupling)) / 2;
+						fine.xHalved = fineGrid.xSize % 2 == 0 && fineGrid.xSize >= 4 && fineGrid.xCoupling >= strongest;
+						fine.yHalved = fineGrid.getInteriorLayers() % 2 == 0 && fineGrid.getInteriorLayers() >= 4 && fineGrid.yCoupling >= strongest;
+						fine.zHalved = fineGrid.zSize % 2 == 0 && fineGrid.zSize >= 4 && fineGrid.zCoupling >= strongest;
+
+						if (fineGrid.size <= MIN_COARSE_CELLS || !(fine.xHalved || fine.yHalved || fine.zHalved))
+							break;
+
+						// Cells twice as far apart are coupled a quarter as strongly
+						PoissonGrid coarseGrid = new PoissonGrid(fine.xHalved ? fineGrid.xSize / 2 : fineGrid.xSize,
+								(fine.yHalved ? fineGrid.getInteriorLayers() / 2 : fineGrid.getInteriorLayers()) + 2, fine.zHalved ? fineGrid.zSize / 2 : fineGrid.zSize,
+								fine.xHalved ? fineGrid.xCoupling / 4 : fineGrid.xCoupling, fine.yHalved ? fineGrid.yCoupling / 4 : fineGrid.yCoupling,
+								fine.zHalved ? fineGrid.zCoupling / 4 : fineGrid.zCoupling);
+
+						Level coarse = new Level(coarseGrid, levels.length);
+						coarse.p = new double[coarseGrid.size];
+						coarse.div = new double[coarseGrid.size];
+
+						levels = Arrays.copyOf(levels, levels.length + 1);
+						levels[levels.length - 1] = coarse;
+					}
+				this.levels = levels;
+
+				for (Level level : levels)
+					level.residual = new double[level.grid.size];
+
+				layerSums = new double[grid.getInteriorLayers()];
+				layerSquares = new double[grid.getInteriorLayers()];
+			}
+
+		@Override
+		public int solve(double[] p, double[] div)
+			{
+				Level fine = levels[0];
+				fine.p = p;
+				fine.div = div;
+
+				// Residuals are measured relative to the size of the divergence, once its mean has been removed
+				level = fine;
+				int layers = fine.grid.getInteriorLayers();
+				workers.run(layers, divergenceTask);
+				int cells = layers * fine.grid.layerSize;
+				fine.meanDiv = sum(layerSums, layers) / cells;
+				double divergenceNorm = Math.sqrt(Math.max(0, sum(layerSquares, layers) - (cells * fine.meanDiv * fine.meanDiv)));
+
+				iterations = 0;
+				if (divergenceNorm == 0)
+					return 0;
+
+				if (residuals.length < maxIterations)
+					residuals = new double[maxIterations];
+
+				while (iterations < maxIterations)
+					{
+						cycle(fine);
+
+						level = fine;
+						workers.run(layers, residualTask);
+						residuals[iterations] = Math.sqrt(sum(layerSums, layers)) / divergenceNorm;
+						if (residuals[iterations++] <= tolerance)
+							break;
+					}
+
+				return iterations;
+			}
+
+		@Override
+		public int getIterations()
+			{
+				return iterations;
+			}
+
+		@Override
+		public double getResidual(int iteration)
+			{
+				return residuals[iteration];
+			}
+
+		@Override
+		public double getResidual()
+			{
+				return iterations == 0 ? 0 : residuals[iterations - 1];
+			}
+
+		@Override
+		public void setTolerance(double tolerance)
+			{
+				this.tolerance = tolerance;
+			}
+
+		@Override
+		public void setMaxIterations(int maxIterations)
+			{
+				this.maxIterations = Math.max(1, maxIterations);
+			}
+
+		/**
+		 * @param cycleType
+		 *            - 1 for V-cycles, 2 for W-cycles, which are more robust but do more work on the coarse grids
+		 */
+		final void setCycleType(int cycleType)
+			{
+				this.cycleType = Math.max(1, cycleType);
+			}
+
+		/**
+		 * @param preSmoothing
+		 *            - The number of relaxations before moving to a coarser grid
+		 * @param postSmoothing
+		 *            - The number of relaxations after returning from a coarser grid
+		 */
+		final void setSmoothing(int preSmoothing, int postSmoothing)
+			{
+				this.preSmoothing = preSmoothing;
+				this.postSmoothing = postSmoothing;
+			}
+
+		/**
+		 * @return - The number of grids used, including the finest
+		 */
+		final int getLevels()
+			{
+				return levels.length;
+			}
+
+		/**
+		 * Reduces the error in the pressure at the specified level, using the coarser levels to remove the large scale errors.
+		 */
+		private final void cycle(Level fine)
+			{
+				if (fine.depth == levels.length - 1)
+					{
+						// The coarsest grid is small, so simply relax it many times
+						int n = Math.max(fine.grid.xSize, Math.max(fine.grid.ySize, fine.grid.zSize));
+						relax(fine, 4 * n, 2 / (1 + Math.sin(Math.PI / n)));
+						return;
+					}
+
+				relax(fine, preSmoothing, 1);
+
+				// Work out how far the pressure is from satisfying the equation, then move that onto the coarser grid
+				level = fine;
+				workers.run(fine.grid.getInteriorLayers(), residualTask);
+
+				Level coarse = levels[fine.depth + 1];
+				int coarseLayers = coarse.grid.getInteriorLayers();
+				level = fine;
+				workers.run(coarseLayers, restrictTask);
+				coarse.meanDiv = sum(layerSums, coarseLayers) / (coarseLayers * coarse.grid.layerSize);
+				coarse.grid.copySurfaceAndThermocline(coarse.p);
+
+				// Find the correction on the coarse grid
+				for (int i = 0; i < cycleType; i++)
+					cycle(coarse);
+
+				// Interpolate the correction back onto this grid
+				level = fine;
+				workers.run(fine.grid.getInteriorLayers(), prolongTask);
+				fine.grid.copySurfaceAndThermocline(fine.p);
+
+				relax(fine, postSmoothing, 1);
+			}
+
+		/**
+		 * Carries out red-black relaxation of a level a number of times.
+		 */
+		private final void relax(Level level, int times, double w)
+			{
+				this.level = level;
+				this.w = w;
+				for (int i = 0; i < times; i++)
+					{
+						colour = 0;
+						workers.run(level.grid.getInteriorLayers(), relaxTask);
+						colour = 1;
+						workers.run(level.grid.getInteriorLayers(), relaxTask);
+						level.grid.copySurfaceAndThermocline(level.p);
+					}
+			}
+
+		/**
+		 * Sets the divergence of one layer of the coarse grid to the average of the residuals of the fine cells it covers, and sets the coarse pressure to 0
+		 * as no correction has been found yet.
+		 *
+		 * @return - The sum of the coarse divergence in the layer
+		 */
+		private static double restrict(Level fine, Level coarse, int coarseY)
+			{
+				PoissonGrid fineGrid = fine.grid, coarseGrid = coarse.grid;
+				int xChildren = fine.xHalved ? 2 : 1, yChildren = fine.yHalved ? 2 : 1, zChildren = fine.zHalved ? 2 : 1;
+				double scale = 1.0 / (xChildren * yChildren * zChildren);
+				int fineY = fine.yHalved ? (2 * coarseY) - 1 : coarseY;
+				double sum = 0;
+
+				for (int z = 0; z < coarseGrid.zSize; z++)
+					for (int x = 0; x < coarseGrid.xSize; x++)
+						{
+							double total = 0;
+							for (int cy = 0; cy < yChildren; cy++)
+								for (int cz = 0; cz < zChildren; cz++)
+									for (int cx = 0; cx < xChildren; cx++)
+										total += fine.residual[fineGrid.getIndex((x * xChildren) + cx, fineY + cy, (z * zChildren) + cz)];
+
+							int k = coarseGrid.getIndex(x, coarseY, z);
+							coarse.div[k] = total * scale;
+							coarse.p[k] = 0;
+							sum += coarse.div[k];
+						}
+
+				return sum;
+			}
+
+		/**
+		 * Adds the correction found on the coarse grid to one layer of the fine grid. Along each halved axis a fine cell takes 3/4 of the coarse cell that
+		 * covers it and 1/4 of the next nearest coarse cell.
+		 */
+		private static void prolong(Level coarse, Level fine, int fineY)
+			{
+				PoissonGrid fineGrid = fine.grid, coarseGrid = coarse.grid;
+
+				// The coarse layers nearest to this fine layer, and how much of each to take
+				int y0 = fineY, y1 = fineY;
+				double wy0 = 1, wy1 = 0;
+				if (fine.yHalved)
+					{
+						y0 = ((fineY - 1) / 2) + 1;
+						y1 = (fineY - 1) % 2 == 0 ? y0 - 1 : y0 + 1; // may be the surface or thermocline, which copy their neighbour
+						wy0 = 0.75;
+						wy1 = 0.25;
+					}
+
+				for (int z = 0; z < fineGrid.zSize; z++)
+					{
+						int z0 = z, z1 = z;
+						double wz0 = 1, wz1 = 0;
+						if (fine.zHalved)
+							{
+								z0 = z / 2;
+								z1 = z % 2 == 0 ? (z0 == 0 ? coarseGrid.zSize - 1 : z0 - 1) : (z0 == coarseGrid.zSize - 1 ? 0 : z0 + 1);
+								wz0 = 0.75;
+								wz1 = 0.25;
+							}
+
+						for (int x = 0; x < fineGrid.xSize; x++)
+							{
+								int x0 = x, x1 = x;
+								double wx0 = 1, wx1 = 0;
+								if (fine.xHalved)
+									{
+										x0 = x / 2;
+										x1 = x % 2 == 0 ? (x0 == 0 ? coarseGrid.xSize - 1 : x0 - 1) : (x0 == coarseGrid.xSize - 1 ? 0 : x0 + 1);
+										wx0 = 0.75;
+										wx1 = 0.25;
+									}
+
+								double[] e = coarse.p;
+								double correction = wy0
+										* (wz0 * (wx0 * e[coarseGrid.getIndex(x0, y0, z0)] + wx1 * e[coarseGrid.getIndex(x1, y0, z0)]) + wz1
+												* (wx0 * e[coarseGrid.getIndex(x0, y0, z1)] + wx1 * e[coarseGrid.getIndex(x1, y0, z1)]))
+										+ wy1
+										* (wz0 * (wx0 * e[coarseGrid.getIndex(x0, y1, z0)] + wx1 * e[coarseGrid.getIndex(x1, y1, z0)]) + wz1
+												* (wx0 * e[coarseGrid.getIndex(x0, y1, z1)] + wx1 * e[coarseGrid.getIndex(x1, y1, z1)]));
+
+								fine.p[fineGrid.getIndex(x, fineY, z)] += correction;
+							}
+					}
+			}
+
+		/**
+		 * Adds up the sums calculated by each layer, always in the same order so that the total is the same whichever threads calculated them.
+		 */
+		private static double sum(double[] layerSums, int layers)
+			{
+				double sum = 0;
+				for (int i = 0; i < layers; i++)
+					sum += layerSums[i];
+				return sum;
+			}
+
+		/**
+		 * One of the grids used, along with the data stored on it.
+		 */
+		private static class Level
+			{
+				final PoissonGrid grid;
+				final int depth; // 0 is the finest grid
+
+				double[] p, div, residual;
+				double meanDiv;
+
+				// Whether each axis is halved to create the next coarser level
+				boolean xHalved, yHalved, zHalved;
+
+				Level(PoissonGrid grid, int depth)
+					{
+						this.grid = grid;
+						this.depth = depth;
+					}
+			}
+	}
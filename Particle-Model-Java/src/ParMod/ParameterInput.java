@@ -3,6 +3,10 @@ package ParMod;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JFileChooser;
 
 import tCode.RenderableObject;
 import tComponents.components.TButton;
@@ -31,6 +35,18 @@ public class ParameterInput extends RenderableObject
 		private TNumberField chunkNumberField;
 		private TLabel totalChunks = new TLabel(" (Total chunks: 50000) ");
 
+		// Performance & reproducibility
+		private TNumberField threadNumberField;
+		private TNumberField seedNumberField;
+		private TNumberField ticksPerSecondNumberField;
+		private TNumberField fieldCadenceNumberField;
+		private VectorField.Stepping fieldStepping = VectorField.Stepping.FIXED;
+		private StepScheduler.Policy behindPolicy = StepScheduler.Policy.CATCH_UP;
+		private VectorField.Solver solver = VectorField.Solver.SOR;
+		private FieldBuffer.Precision precision = FieldBuffer.Precision.DOUBLE;
+		private FieldBuffer.Storage storage = FieldBuffer.Storage.HEAP;
+		private ParticleSorter.Order particleOrder = ParticleSorter.Order.NONE;
+
 		@Override
 		protected void initiate()
 			{
@@ -55,6 +71,16 @@ public class ParameterInput extends RenderableObject
 				chunkNumberField = new TNumberField(0, 0, 125, 25, 4); // limited to 4 digits long
 				chunkNumberField.setText("10");
 
+				// Performance & reproducibility
+				threadNumberField = new TNumberField(0, 0, 125, 25, 3); // limited to 3 digits long
+				threadNumberField.setText("" + Runtime.getRuntime().availableProcessors());
+				seedNumberField = new TNumberField(0, 0, 125, 25, 9); // limited to 9 digits long
+				seedNumberField.setText("1");
+				ticksPerSecondNumberField = new TNumberField(0, 0, 125, 25, 4); // limited to 4 digits long
+				ticksPerSecondNumberField.setText("" + (int) StepScheduler.DEFAULT_TICKS_PER_SECOND);
+				fieldCadenceNumberField = new TNumberField(0, 0, 125, 25, 4); // limited to 4 digits long
+				fieldCadenceNumberField.setText("" + Simulation.DEFAULT_FIELD_CADENCE);
+
 				// Add the components to a menu that automatically arranges everything on screen ~~~~~~~~~~
 
 				// Simulation parameters
@@ -74,6 +100,82 @@ public class ParameterInput extends RenderableObject
 				menu.add(chunkNumberField, false);
 				menu.add(totalChunks, false);
 
+				// Performance & reproducibility
+				menu.add(new TLabel(" Number of Worker Threads: "), false);
+				menu.add(threadNumberField, false);
+				menu.add(new TLabel(" Random Seed: "), false);
+				menu.add(seedNumberField, false);
+				menu.add(new TLabel(" Ticks per Second (0 for unlimited): "), false);
+				menu.add(ticksPerSecondNumberField, false);
+				menu.add(new TLabel(" Ticks per Vector Field Step: "), false);
+				menu.add(fieldCadenceNumberField, false);
+				menu.add(new TLabel(" Vector Field Stepping: "), false);
+				menu.add(new TButton(fieldStepping.description)
+					{
+						// Each press selects the next way of choosing the length of each step of the vector field
+						@Override
+						public void pressed()
+							{
+								fieldStepping = VectorField.Stepping.values()[(fieldStepping.ordinal() + 1) % VectorField.Stepping.values().length];
+								setLabel(fieldStepping.description);
+							}
+					});
+				menu.add(new TLabel(" When Running Behind: "), false);
+				menu.add(new TButton(behindPolicy.description)
+					{
+						// Each press selects the next way of dealing with ticks that the simulation couldn't keep up with
+						@Override
+						public void pressed()
+							{
+								behindPolicy = StepScheduler.Policy.values()[(behindPolicy.ordinal() + 1) % StepScheduler.Policy.values().length];
+								setLabel(behindPolicy.description);
+							}
+					});
+				menu.add(new TLabel(" Pressure Solver: "), false);
+				menu.add(new TButton(solver.description)
+					{
+						// Each press selects the next solver
+						@Override
+						public void pressed()
+							{
+								solver = VectorField.Solver.values()[(solver.ordinal() + 1) % VectorField.Solver.values().length];
+								setLabel(solver.description);
+							}
+					});
+				menu.add(new TLabel(" Vector Field Precision: "), false);
+				menu.add(new TButton(precision.description)
+					{
+						// Each press selects the next precision
+						@Override
+						public void pressed()
+							{
+								precision = FieldBuffer.Precision.values()[(precision.ordinal() + 1) % FieldBuffer.Precision.values().length];
+								setLabel(precision.description);
+							}
+					});
+				menu.add(new TLabel(" Vector Field Storage: "), false);
+				menu.add(new TButton(storage.description)
+					{
+						// Each press selects the next place to store the vector field
+						@Override
+						public void pressed()
+							{
+								storage = FieldBuffer.Storage.values()[(storage.ordinal() + 1) % FieldBuffer.Storage.values().length];
+								setLabel(storage.description);
+							}
+					});
+				menu.add(new TLabel(" Particle Order: "), false);
+				menu.add(new TButton(particleOrder.description)
+					{
+						// Each press selects the next order to sort the particles into, they are sorted whenever it is worth it
+						@Override
+						public void pressed()
+							{
+								particleOrder = ParticleSorter.Order.values()[(particleOrder.ordinal() + 1) % ParticleSorter.Order.values().length];
+								setLabel(particleOrder.description);
+							}
+					});
+
 				// Add a button that will begin the simulation when pressed.
 				menu.add(new TButton("Start")
 					{
@@ -86,6 +188,9 @@ public class ParameterInput extends RenderableObject
 								double pace = paceNumberField.getValue();
 								double numParticles = particleNumberField.getValue();
 								double chunks = chunkNumberField.getValue();
+								double threads = threadNumberField.getValue();
+								double seed = seedNumberField.getValue();
+								double fieldCadence = fieldCadenceNumberField.getValue();
 								// Check that all parameters are reasonable, if not warn user
 
 								// Depth of Simulation
@@ -124,13 +229,101 @@ public class ParameterInput extends RenderableObject
 										return; // Don't start the simulation yet
 									}
 
+								// Depth of the vector field, which needs a layer of chunks for the surface and another for the thermocline
+								if ((int) mixedLayerDepth * chunks < 2)
+									{
+										WindowTools.informationWindow("Warning - The mixed layer must be: \n -At least 2 chunks deep", "Cannot start Simulation");
+										return; // Don't start the simulation yet
+									}
+
+								// Size of the vector field, the pressure solvers store a value for every chunk of the mixed layer in an array
+								if (chunks * chunks * chunks * mixedLayerDepth > FieldBuffer.MAX_SIZE)
+									{
+										WindowTools.informationWindow("Warning - The number of chunks in the mixed layer must be: \n -No more than " + FieldBuffer.MAX_SIZE,
+												"Cannot start Simulation");
+										return; // Don't start the simulation yet
+									}
+
+								// Thread number
+								if (threads != Math.floor(threads)/* not a whole number */|| /* or less than 1 */threads < 1)
+									{
+										WindowTools.informationWindow("Warning - The number of threads must be: \n -A whole number \n -Greater than 0", "Cannot start Simulation");
+										return; // Don't start the simulation yet
+									}
+
+								// Random seed
+								if (seed != Math.floor(seed)/* not a whole number */)
+									{
+										WindowTools.informationWindow("Warning - The random seed must be: \n -A whole number", "Cannot start Simulation");
+										return; // Don't start the simulation yet
+									}
+
+								// Vector field cadence
+								if (fieldCadence != Math.floor(fieldCadence)/* not a whole number */|| /* or less than 1 */fieldCadence < 1)
+									{
+										WindowTools.informationWindow("Warning - The number of ticks per vector field step must be: \n -A whole number \n -Greater than 0",
+												"Cannot start Simulation");
+										return; // Don't start the simulation yet
+									}
+
+								StepScheduler scheduler = createScheduler("Cannot start Simulation");
+								if (scheduler == null)
+									return; // Don't start the simulation yet
+
 								// Create a new simulation using the parameters set by the user.
-								Main.sim = new Simulation(1/* width set to 1 meter */, (int) depth, (int) mixedLayerDepth, (int) pace, (int) numParticles, 1.0 / chunks);
+								Main.sim = new Simulation(1/* width set to 1 meter */, (int) depth, (int) mixedLayerDepth, (int) pace, (int) numParticles, 1.0 / chunks, (int) threads, (long) seed, solver,
+										precision, storage);
+								Main.sim.setParticleOrder(particleOrder, 0);
+								Main.sim.setFieldCadence((int) fieldCadence);
+								Main.sim.setFieldStepping(fieldStepping);
+								Main.sim.setScheduler(scheduler);
+								Main.sim.registerMBeans();
 
 								// Make the Simulation the current screen, instead of this ParameterInput.
 								changeRenderableObject(Main.sim);
 							}
 					}); // end of adding the start button to the menu
+
+				// Add a button that carries on a simulation from a checkpoint, written by pressing 'c' while a simulation runs
+				menu.add(new TButton("Resume from Checkpoint")
+					{
+						@Override
+						public void pressed()
+							{
+								double threads = threadNumberField.getValue();
+								if (threads < 1 || threads != Math.floor(threads))
+									{
+										WindowTools.informationWindow("Warning - The number of threads must be: \n -A whole number \n -Greater than 0", "Cannot resume Simulation");
+										return;
+									}
+
+								StepScheduler scheduler = createScheduler("Cannot resume Simulation");
+								if (scheduler == null)
+									return;
+
+								JFileChooser chooser = new JFileChooser(new File("."));
+								chooser.setSelectedFile(new File(Simulation.CHECKPOINT_FILE));
+								if (chooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+									return;
+
+								try
+									{
+										Main.sim = new Simulation(Checkpoint.read(chooser.getSelectedFile()), (int) threads);
+									}
+								catch (IOException e)
+									{
+										WindowTools.informationWindow("Warning - " + e.getMessage(), "Cannot resume Simulation");
+										return;
+									}
+								// The particles are sorted as they were when the checkpoint was taken, unless an order has been chosen
+								if (particleOrder != ParticleSorter.Order.NONE)
+									Main.sim.setParticleOrder(particleOrder, 0);
+								Main.sim.setScheduler(scheduler);
+								Main.sim.registerMBeans();
+
+								changeRenderableObject(Main.sim);
+							}
+					});
 				// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
 
 				if (Main.DEBUG)
@@ -147,6 +340,23 @@ public class ParameterInput extends RenderableObject
 					}
 			}
 
+		/**
+		 * @param title
+		 *            - The title of the warning shown if the number of ticks per second is unreasonable
+		 *
+		 * @return - A scheduler that carries out the chosen number of ticks per second, or null if the number is unreasonable
+		 */
+		private final StepScheduler createScheduler(String title)
+			{
+				double ticksPerSecond = ticksPerSecondNumberField.getValue();
+				if (ticksPerSecond < 0)
+					{
+						WindowTools.informationWindow("Warning - The number of ticks per second must be: \n -0 or greater", title);
+						return null;
+					}
+				return new StepScheduler(ticksPerSecond, behindPolicy, StepScheduler.DEFAULT_BUDGET);
+			}
+
 		// The following methods are not used but the supertype for this class requires them.
 
 		@Override
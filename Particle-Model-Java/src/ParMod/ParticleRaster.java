@@ -0,0 +1,215 @@
+package ParMod;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Draws every particle as a single pixel, by writing straight into the pixels of an image rather than drawing each one through {@link Graphics2D}, which
+ * then only has to draw the image.
+ * <p>
+ * When particles are shaded, lighter particles are drawn over darker ones, so the particles are put in order of shade with a counting sort over the 256
+ * shades of grey. The image is split into horizontal bands, one per task, and the particles are sorted by band as well as shade, so that each band can be
+ * drawn by a separate thread without any two threads writing the same pixel. The sort works the same way as {@link ParticleSorter}'s, each thread counts
+ * its share of the particles in each bucket, and the counts are turned into the position of each thread's particles in the sorted order.
+ * <p>
+ * All of the memory used is kept between frames, and only grows when the number of particles does.
+ *
+ * @author Sebastian Troy
+ */
+final class ParticleRaster
+	{
+		/**
+		 * The number of shades of grey particles can be drawn in.
+		 */
+		static final int SHADES = 256;
+
+		private final WorkerPool workers;
+		private final int width, height, bandHeight, numBands;
+
+		private final BufferedImage image;
+		private final int[] pixels; // The pixels of the image, with an alpha channel so that anything drawn behind the particles is left showing
+
+		private int[] particlePixels = new int[0]; // The pixel of each particle in the image
+		private int[] buckets = new int[0]; // The band and shade of each particle, -1 if it is not in the image
+		private int[] sorted = new int[0]; // The pixels of the particles in order of band and then shade
+		private final int[][] counts; // The number of particles in each bucket, for each thread's share of the store
+		private final int[] bucketStarts; // The position of the first particle in each bucket in the sorted order, and the total number of particles
+
+		// The data being worked on by the tasks below
+		private ParticleStore particles;
+		private boolean shaded;
+		private int graphX, graphY;
+		private double graphWidth, yScale, graphTilt;
+
+		private final WorkerPool.Task countTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						countParticles(task);
+					}
+			};
+
+		private final WorkerPool.Task sortTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						int[] next = counts[task];
+						for (int i = getStart(task), end = getStart(task + 1); i < end; i++)
+							if (buckets[i] >= 0)
+								sorted[next[buckets[i]]++] = particlePixels[i];
+					}
+			};
+
+		private final WorkerPool.Task drawTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int band)
+					{
+						drawBand(band);
+					}
+			};
+
+		/**
+		 * @param width
+		 *            - The width of the image in pixels
+		 * @param height
+		 *            - The height of the image in pixels
+		 * @param workers
+		 *            - The threads the particles are drawn with
+		 */
+		ParticleRaster(int width, int height, WorkerPool workers)
+			{
+				this.width = width;
+				this.height = height;
+				this.workers = workers;
+
+				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+				numBands = workers.getThreads();
+				bandHeight = (height + numBands - 1) / numBands;
+				counts = new int[workers.getThreads()][numBands * SHADES];
+				bucketStarts = new int[numBands * SHADES + 1];
+			}
+
+		/**
+		 * Draws the particles, as if looking in through an edge of the water column and slightly from above. A particle at x, y, z in meters is drawn at
+		 * (graphWidth * (x + z) + graphX, yScale * y + graphTilt * (z - x) + graphY).
+		 *
+		 * @param g
+		 *            - What the image of the particles is drawn on, with its top left corner at 0, 0
+		 * @param particles
+		 *            - The particles to draw
+		 * @param shaded
+		 *            - If true particles nearer the viewer are drawn lighter, and over those further away, otherwise every particle is drawn white
+		 * @param graphX
+		 *            - The screen position of the left hand corner of the water column
+		 * @param graphY
+		 *            - The screen position of the top of the water column
+		 * @param graphWidth
+		 *            - The number of pixels per meter along the x and z axes
+		 * @param yScale
+		 *            - The number of pixels per meter of depth
+		 * @param graphTilt
+		 *            - The number of pixels the x and z axes rise or fall per meter
+		 */
+		final void draw(Graphics2D g, ParticleStore particles, boolean shaded, int graphX, int graphY, double graphWidth, double yScale, double graphTilt)
+			{
+				this.particles = particles;
+				this.shaded = shaded;
+				this.graphX = graphX;
+				this.graphY = graphY;
+				this.graphWidth = graphWidth;
+				this.yScale = yScale;
+				this.graphTilt = graphTilt;
+
+				if (buckets.length < particles.size)
+					{
+						particlePixels = new int[particles.x.length];
+						buckets = new int[particles.x.length];
+						sorted = new int[particles.x.length];
+					}
+
+				// 1. Each thread finds the pixel and bucket of its share of the particles, and counts the particles in each bucket
+				workers.run(counts.length, countTask);
+
+				// 2. Turn the counts into the position of each thread's first particle in each bucket, in bucket and then thread order
+				int index = 0;
+				for (int bucket = 0; bucket < bucketStarts.length - 1; bucket++)
+					{
+						bucketStarts[bucket] = index;
+						for (int task = 0; task < counts.length; task++)
+							{
+								int count = counts[task][bucket];
+								counts[task][bucket] = index;
+								index += count;
+							}
+					}
+				bucketStarts[bucketStarts.length - 1] = index;
+
+				// 3. Each thread puts its particles in order, 4. and then each band of the image is cleared and drawn in order of shade
+				workers.run(counts.length, sortTask);
+				workers.run(numBands, drawTask);
+
+				this.particles = null;
+				g.drawImage(image, 0, 0, null);
+			}
+
+		/**
+		 * Finds the pixel and bucket of each particle in a thread's share of the store.
+		 */
+		private final void countParticles(int task)
+			{
+				int[] count = counts[task];
+				Arrays.fill(count, 0);
+
+				double[] px = particles.x, py = particles.y, pz = particles.z;
+				for (int i = getStart(task), end = getStart(task + 1); i < end; i++)
+					{
+						int screenX = (int) Math.round(((graphWidth * px[i]) + (graphWidth * pz[i])) + graphX);
+						int screenY = (int) ((yScale * py[i]) - (graphTilt * px[i]) + (graphTilt * pz[i])) + graphY;
+
+						if (screenX < 0 || screenX >= width || screenY < 0 || screenY >= height)
+							{
+								buckets[i] = -1;
+								continue;
+							}
+
+						int shade = SHADES - 1;
+						if (shaded)
+							shade = Math.max(0, Math.min(SHADES - 1, (int) (30 + ((((1 - px[i]) + pz[i]) / 2) * 225))));
+
+						int bucket = (screenY / bandHeight) * SHADES + shade;
+						particlePixels[i] = screenY * width + screenX;
+						buckets[i] = bucket;
+						count[bucket]++;
+					}
+			}
+
+		/**
+		 * Clears a band of the image and draws its particles, darkest first.
+		 */
+		private final void drawBand(int band)
+			{
+				Arrays.fill(pixels, Math.min(height, band * bandHeight) * width, Math.min(height, (band + 1) * bandHeight) * width, 0);
+
+				for (int shade = 0, bucket = band * SHADES; shade < SHADES; shade++, bucket++)
+					{
+						int colour = 0xFF000000 | (shade << 16) | (shade << 8) | shade;
+						for (int s = bucketStarts[bucket], end = bucketStarts[bucket + 1]; s < end; s++)
+							pixels[sorted[s]] = colour;
+					}
+			}
+
+		/**
+		 * @return - The index of the first particle in the specified thread's share of the store
+		 */
+		private final int getStart(int task)
+			{
+				return (int) ((long) particles.size * task / counts.length);
+			}
+	}
@@ -0,0 +1,281 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the particles in a {@link ParticleStore} so that particles close together in the water column are close together in memory. Particles are added in
+ * a random order and are moved around the store as others are removed, so consecutive particles look up the velocities of cells scattered across the whole
+ * {@link VectorField}, and almost every look up misses the cache once the field is larger than the cache. Once sorted, consecutive particles mostly share
+ * cells, but as the particles drift the order decays, so the sort has to be repeated.
+ * <p>
+ * The sort is a parallel counting sort: each thread counts the particles in its share of the store that fall in each bucket, the counts are turned into the
+ * first index of each thread's particles in each bucket, and then each thread moves its particles there. The sort is stable, so the result is the same
+ * whatever the number of threads.
+ * <p>
+ * The particles can be sorted every n ticks, or adaptively. Java cannot count cache misses, so the adaptive sort uses the time taken to move the particles
+ * instead: the fastest pass since the last sort is taken as the cost of a sorted pass, and once the time lost to disorder since then adds up to the time the
+ * last sort took, the particles are sorted again. Because that depends on timings, only sorting every n ticks gives the same results from the same seed.
+ *
+ * @author Sebastian Troy
+ */
+final class ParticleSorter
+	{
+		/**
+		 * The order the particles are sorted into
+		 */
+		enum Order
+			{
+				NONE("Unsorted"), CHUNK("By chunk"), MORTON("Morton order");
+
+				final String description;
+
+				private Order(String description)
+					{
+						this.description = description;
+					}
+			}
+
+		/**
+		 * The most buckets particles are sorted into, when there are more chunks than this neighbouring chunks share a bucket. This keeps the counts of each
+		 * thread small enough to stay in the cache.
+		 */
+		static final int MAX_BUCKETS = 1 << 16;
+
+		/**
+		 * The most ticks the adaptive sort waits between sorts.
+		 */
+		static final int MAX_INTERVAL = 1000;
+
+		private final Order order;
+		private final int every; // The number of ticks between sorts, 0 to sort adaptively
+		private final WorkerPool workers;
+		private final double chunkSize;
+		private final int xSize, ySize, zSize; // The number of chunks along each axis
+		private final int shift; // The number of bits the key of a chunk is shifted right by to find its bucket
+		private final int numBuckets;
+
+		private int[] buckets = new int[0]; // The bucket of each particle
+		private int[] targets = new int[0]; // The index each particle is moved to
+		private final int[][] counts; // The number of particles in each bucket, for each thread's share of the store
+
+		// The state of the adaptive sort
+		private boolean sorted = false;
+		private int ticksSinceSort = 0, interval = 0, numSorts = 0;
+		private long sortTime = 0, excessTime = 0;
+		private double sortedTimePerParticle = Double.MAX_VALUE;
+
+		/**
+		 * @param order
+		 *            - The order the particles are sorted into, not {@link Order#NONE}
+		 * @param every
+		 *            - The number of ticks between sorts, or 0 to sort whenever it is worth it
+		 * @param grid
+		 *            - The chunks the particles are sorted by
+		 * @param workers
+		 *            - The threads the particles are sorted with
+		 */
+		ParticleSorter(Order order, int every, ChunkGrid grid, WorkerPool workers)
+			{
+				if (order == Order.NONE || every < 0)
+					throw new IllegalArgumentException("Particles must be sorted into an order, every n >= 0 ticks");
+
+				this.order = order;
+				this.every = every;
+				xSize = grid.xSize;
+				ySize = grid.ySize;
+				zSize = grid.zSize;
+				chunkSize = grid.chunkSize;
+				this.workers = workers;
+
+				// Find the largest key, and then how far keys need to be shifted for the largest to fit in the buckets
+				long maxKey;
+				if (order == Order.CHUNK)
+					maxKey = (long) xSize * ySize * zSize - 1;
+				else
+					{
+						int bits = 32 - Integer.numberOfLeadingZeros(Math.max(xSize, Math.max(ySize, zSize)) - 1);
+						maxKey = (1L << (3 * bits)) - 1;
+					}
+				int shift = 0;
+				while ((maxKey >>> shift) >= MAX_BUCKETS)
+					shift++;
+				this.shift = shift;
+				numBuckets = (int) (maxKey >>> shift) + 1;
+
+				counts = new int[workers.getThreads()][numBuckets];
+			}
+
+		/**
+		 * Sorts the particles if a sort is due. This must be called between ticks, from the thread running the simulation.
+		 *
+		 * @param tick
+		 *            - The number of ticks carried out so far
+		 * @param passTime
+		 *            - The time in nanoseconds it took to move the particles during the last tick, only used if the sort is adaptive
+		 *
+		 * @return - True if the particles were sorted
+		 */
+		final boolean update(ParticleStore particles, long tick, long passTime)
+			{
+				ticksSinceSort++;
+				if (every > 0)
+					{
+						if (tick % every != 0)
+							return false;
+					}
+				else if (sorted)
+					{
+						// The fastest pass since the last sort is the best estimate of the cost of a sorted pass, anything over that is lost to disorder
+						int size = Math.max(particles.size, 1);
+						sortedTimePerParticle = Math.min(sortedTimePerParticle, (double) passTime / size);
+						excessTime += passTime - (long) (sortedTimePerParticle * size);
+						if (excessTime < sortTime && ticksSinceSort < MAX_INTERVAL)
+							return false;
+					}
+
+				long start = System.nanoTime();
+				sort(particles);
+				sortTime = System.nanoTime() - start;
+
+				sorted = true;
+				interval = ticksSinceSort;
+				ticksSinceSort = 0;
+				excessTime = 0;
+				sortedTimePerParticle = Double.MAX_VALUE;
+				numSorts++;
+				return true;
+			}
+
+		/**
+		 * Sorts the particles now.
+		 */
+		final void sort(final ParticleStore particles)
+			{
+				final int size = particles.size;
+				if (buckets.length < size)
+					{
+						buckets = new int[particles.x.length];
+						targets = new int[particles.x.length];
+					}
+
+				final int numTasks = counts.length;
+				final int[] buckets = this.buckets, targets = this.targets;
+
+				// 1. Each thread counts the particles in each bucket, for its share of the store
+				workers.run(numTasks, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int task)
+							{
+								int[] count = counts[task];
+								Arrays.fill(count, 0);
+								int[] coordinates = new int[3];
+								for (int i = getStart(task, size), end = getStart(task + 1, size); i < end; i++)
+									{
+										particles.getChunkCoordinates(i, chunkSize, coordinates);
+										int bucket = (int) (getKey(coordinates[0], coordinates[1], coordinates[2]) >>> shift);
+										buckets[i] = bucket;
+										count[bucket]++;
+									}
+							}
+					});
+
+				// 2. Turn the counts into the index of each thread's first particle in each bucket, in bucket and then thread order so the sort is stable
+				for (int bucket = 0, index = 0; bucket < numBuckets; bucket++)
+					for (int task = 0; task < numTasks; task++)
+						{
+							int count = counts[task][bucket];
+							counts[task][bucket] = index;
+							index += count;
+						}
+
+				// 3. Each thread finds where its particles go
+				workers.run(numTasks, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int task)
+							{
+								int[] next = counts[task];
+								for (int i = getStart(task, size), end = getStart(task + 1, size); i < end; i++)
+									targets[i] = next[buckets[i]]++;
+							}
+					});
+
+				particles.reorder(targets, workers);
+			}
+
+		/**
+		 * @return - The index of the first particle in the specified thread's share of the store
+		 */
+		private final int getStart(int task, int size)
+			{
+				return (int) ((long) size * task / counts.length);
+			}
+
+		/**
+		 * @return - The position of the specified chunk in the order, chunks outside the simulation are treated as the nearest chunk inside it
+		 */
+		private final long getKey(int x, int y, int z)
+			{
+				x = Math.max(0, Math.min(x, xSize - 1));
+				y = Math.max(0, Math.min(y, ySize - 1));
+				z = Math.max(0, Math.min(z, zSize - 1));
+
+				// Chunks are ordered the same way as the cells of the vector field, x first, then z and then y
+				if (order == Order.CHUNK)
+					return x + (long) xSize * (z + (long) zSize * y);
+
+				return spreadBits(x) | (spreadBits(z) << 1) | (spreadBits(y) << 2);
+			}
+
+		/**
+		 * @return - The lowest 21 bits of the value, spread out so that there are 2 zero bits between each, so that 3 spread values can be interleaved
+		 */
+		private static long spreadBits(int value)
+			{
+				long bits = value & 0x1FFFFFL;
+				bits = (bits | bits << 32) & 0x1F00000000FFFFL;
+				bits = (bits | bits << 16) & 0x1F0000FF0000FFL;
+				bits = (bits | bits << 8) & 0x100F00F00F00F00FL;
+				bits = (bits | bits << 4) & 0x10C30C30C30C30C3L;
+				bits = (bits | bits << 2) & 0x1249249249249249L;
+				return bits;
+			}
+
+		/**
+		 * @return - The number of ticks between the last two sorts
+		 */
+		final int getInterval()
+			{
+				return interval;
+			}
+
+		/**
+		 * @return - The number of times the particles have been sorted
+		 */
+		final int getNumSorts()
+			{
+				return numSorts;
+			}
+
+		final Order getOrder()
+			{
+				return order;
+			}
+
+		/**
+		 * @return - The number of ticks between sorts, or 0 if the particles are sorted whenever it is worth it
+		 */
+		final int getEvery()
+			{
+				return every;
+			}
+
+		/**
+		 * @return - True if the particles are sorted adaptively, in which case {@link #update(ParticleStore, long, long)} needs the time taken to move them
+		 */
+		final boolean isAdaptive()
+			{
+				return every == 0;
+			}
+	}
@@ -0,0 +1,286 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * This class holds every particle being modelled. Rather than storing an object per particle, each property of a particle is stored in its own primitive
+ * array (column), so particle i is found at x[i], y[i] & z[i]. This keeps the particle data contiguous in memory, which is far kinder to the cache and the
+ * garbage collector when millions of particles are being modelled.
+ * <p>
+ * Particles are not kept in any particular order, when a particle is removed the last particle is moved into its place and the store may be sorted by a
+ * {@link ParticleSorter}, so a particle is identified by its id rather than its index.
+ *
+ * @author Sebastian Troy
+ */
+public class ParticleStore
+	{
+		/**
+		 * The position of each particle in meters. Only the first {@link #size} elements of each array are in use.
+		 */
+		double[] x, y, z;
+
+		/**
+		 * The id of each particle, given out in the order the particles are added and never reused, so a particle can be followed as it moves through the
+		 * store.
+		 */
+		int[] id;
+
+		/**
+		 * The id that will be given to the next particle added.
+		 */
+		int nextId = 0;
+
+		/**
+		 * Optional per particle values, each attribute is a column that is kept in step with the x, y & z columns.
+		 */
+		private float[][] attributes = new float[0][];
+
+		/**
+		 * The number of particles currently stored.
+		 */
+		int size = 0;
+
+		/**
+		 * The columns particles are moved into by {@link #reorder(int[], WorkerPool)}, which then swap with the columns in use. They are only allocated once
+		 * the store is first reordered.
+		 */
+		private double[] spareX, spareY, spareZ;
+		private int[] spareId;
+		private float[][] spareAttributes = new float[0][];
+
+		/**
+		 * The number of particles moved by each task during a {@link #reorder(int[], WorkerPool)}.
+		 */
+		private static final int REORDER_BLOCK_SIZE = 1 << 16;
+
+		/**
+		 * @param capacity
+		 *            - The number of particles that can be stored before the columns need to grow
+		 */
+		ParticleStore(int capacity)
+			{
+				capacity = Math.max(capacity, 1);
+				x = new double[capacity];
+				y = new double[capacity];
+				z = new double[capacity];
+				id = new int[capacity];
+			}
+
+		/**
+		 * @return - The number of particles currently stored
+		 */
+		final int size()
+			{
+				return size;
+			}
+
+		/**
+		 * Adds a particle at the specified position.
+		 *
+		 * @return - The index of the new particle
+		 */
+		final int add(double x, double y, double z)
+			{
+				if (size == this.x.length)
+					grow();
+
+				this.x[size] = x;
+				this.y[size] = y;
+				this.z[size] = z;
+				id[size] = nextId++;
+
+				for (float[] attribute : attributes)
+					attribute[size] = 0;
+
+				return size++;
+			}
+
+		/**
+		 * Removes the particle at the specified index by moving the last particle into its place. Any index greater than or equal to the new size is no longer
+		 * valid, and the particle previously at the end of the store is now found at the specified index.
+		 *
+		 * @param index
+		 *            - The index of the particle to be removed
+		 */
+		final void remove(int index)
+			{
+				int last = --size;
+
+				x[index] = x[last];
+				y[index] = y[last];
+				z[index] = z[last];
+				id[index] = id[last];
+
+				for (float[] attribute : attributes)
+					attribute[index] = attribute[last];
+			}
+
+		/**
+		 * Adds a new attribute column to every particle, all values are initially 0.
+		 *
+		 * @return - The id of the new attribute, used to retrieve it via {@link #getAttribute(int)}
+		 */
+		final int addAttribute()
+			{
+				attributes = Arrays.copyOf(attributes, attributes.length + 1);
+				attributes[attributes.length - 1] = new float[x.length];
+				spareAttributes = new float[0][];
+				return attributes.length - 1;
+			}
+
+		/**
+		 * @return - The number of attributes added by {@link #addAttribute()}
+		 */
+		final int getNumAttributes()
+			{
+				return attributes.length;
+			}
+
+		/**
+		 * Note that the returned array is replaced whenever the store grows, so it should not be kept between calls to {@link #add(double, double, double)}.
+		 *
+		 * @param attribute
+		 *            - The id returned by {@link #addAttribute()}
+		 *
+		 * @return - The column of values for the specified attribute
+		 */
+		final float[] getAttribute(int attribute)
+			{
+				return attributes[attribute];
+			}
+
+		/**
+		 * This method uses a particle's x, y & z coordinates to work out which chunk it is in.
+		 *
+		 * @param index
+		 *            - The index of the particle
+		 * @param chunkSize
+		 *            - The size of a chunk in meters
+		 * @param coordinates
+		 *            - An array of at least 3 elements that will be filled with the chunk's x, y & z coordinates
+		 *
+		 * @return - The coordinates array passed in, so that it can be used inline
+		 */
+		final int[] getChunkCoordinates(int index, double chunkSize, int[] coordinates)
+			{
+				coordinates[0] = (int) (x[index] / chunkSize);
+				coordinates[1] = (int) (y[index] / chunkSize);
+				coordinates[2] = (int) (z[index] / chunkSize);
+
+				return coordinates;
+			}
+
+		/**
+		 * Replaces every particle with a copy of the position and id of each particle in another store, at the same index. Attributes are not copied.
+		 */
+		final void copyPositions(ParticleStore source)
+			{
+				if (x.length < source.size)
+					{
+						x = new double[source.x.length];
+						y = new double[source.x.length];
+						z = new double[source.x.length];
+						id = new int[source.x.length];
+						for (int i = 0; i < attributes.length; i++)
+							attributes[i] = new float[source.x.length];
+						spareX = spareY = spareZ = null;
+						spareId = null;
+						spareAttributes = new float[0][];
+					}
+
+				System.arraycopy(source.x, 0, x, 0, source.size);
+				System.arraycopy(source.y, 0, y, 0, source.size);
+				System.arraycopy(source.z, 0, z, 0, source.size);
+				System.arraycopy(source.id, 0, id, 0, source.size);
+				size = source.size;
+				nextId = source.nextId;
+			}
+
+		/**
+		 * Moves every particle to a new index, e.g. to sort them, in parallel.
+		 *
+		 * @param targets
+		 *            - The new index of each particle, every index from 0 to {@link #size} - 1 must appear exactly once
+		 * @param workers
+		 *            - The threads the particles are moved with
+		 */
+		final void reorder(final int[] targets, WorkerPool workers)
+			{
+				if (spareX == null || spareX.length != x.length)
+					{
+						spareX = new double[x.length];
+						spareY = new double[x.length];
+						spareZ = new double[x.length];
+						spareId = new int[x.length];
+					}
+				if (spareAttributes.length != attributes.length)
+					{
+						spareAttributes = new float[attributes.length][];
+						for (int a = 0; a < attributes.length; a++)
+							spareAttributes[a] = new float[x.length];
+					}
+
+				final int size = this.size;
+				workers.run((size + REORDER_BLOCK_SIZE - 1) / REORDER_BLOCK_SIZE, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int task)
+							{
+								int start = task * REORDER_BLOCK_SIZE, end = Math.min(start + REORDER_BLOCK_SIZE, size);
+
+								// One column at a time, so that only two arrays are being read and written at once
+								for (int i = start; i < end; i++)
+									spareX[targets[i]] = x[i];
+								for (int i = start; i < end; i++)
+									spareY[targets[i]] = y[i];
+								for (int i = start; i < end; i++)
+									spareZ[targets[i]] = z[i];
+								for (int i = start; i < end; i++)
+									spareId[targets[i]] = id[i];
+								for (int a = 0; a < attributes.length; a++)
+									{
+										float[] attribute = attributes[a], spareAttribute = spareAttributes[a];
+										for (int i = start; i < end; i++)
+											spareAttribute[targets[i]] = attribute[i];
+									}
+							}
+					});
+
+				double[] tempPosition = x;
+				x = spareX;
+				spareX = tempPosition;
+				tempPosition = y;
+				y = spareY;
+				spareY = tempPosition;
+				tempPosition = z;
+				z = spareZ;
+				spareZ = tempPosition;
+				int[] tempId = id;
+				id = spareId;
+				spareId = tempId;
+				float[][] tempAttributes = attributes;
+				attributes = spareAttributes;
+				spareAttributes = tempAttributes;
+			}
+
+		/**
+		 * Doubles the capacity of every column.
+		 */
+		private final void grow()
+			{
+				int capacity = x.length * 2;
+
+				x = Arrays.copyOf(x, capacity);
+				y = Arrays.copyOf(y, capacity);
+				z = Arrays.copyOf(z, capacity);
+				id = Arrays.copyOf(id, capacity);
+
+				for (int i = 0; i < attributes.length; i++)
+					attributes[i] = Arrays.copyOf(attributes[i], capacity);
+
+				// The spare columns are reallocated at the new capacity if they are needed again
+				spareX = spareY = spareZ = null;
+				spareId = null;
+				spareAttributes = new float[0][];
+			}
+	}
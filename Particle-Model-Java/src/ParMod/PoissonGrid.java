@@ -0,0 +1,187 @@
+package ParMod;
+
+/**
+ * Describes the grid on which a {@link PressureSolver} works and provides the calculations that are carried out on it. The grid is laid out in the same way
+ * as the data in {@link VectorField}, i.e. the value for the cell at x, y, z is found at x + (y * xSize * zSize) + (z * xSize). A 2D grid, such as the one
+ * used by {@link VectorFieldTester}, is simply a grid with a zSize of 1.
+ * <p>
+ * The grid wraps along the x & z axes. The first and last layers on the y axis (the surface and thermocline) are not solved for, instead they copy the layer
+ * next to them.
+ * <p>
+ * With no fixed pressure anywhere on the grid, the equation can only be solved if the divergence adds up to 0. So the mean divergence is always subtracted
+ * before it is used, which has no effect on the pressure gradients.
+ * <p>
+ * Each calculation works on a single layer of the grid, so that the layers can be shared out between threads.
+ *
+ * @author Sebastian Troy
+ */
+class PoissonGrid
+	{
+		final int xSize, ySize, zSize, layerSize, size;
+
+		/**
+		 * How strongly each cell is coupled to its neighbours along each axis, for a grid of evenly spaced cells these are all 1. Coarser grids, whose cells
+		 * are further apart, have weaker coupling. The diagonal is the total coupling of a cell to all of its neighbours.
+		 */
+		final double xCoupling, yCoupling, zCoupling, diagonal;
+
+		/**
+		 * Creates a grid of evenly spaced cells, if zSize is 1 the grid is 2D and there is no coupling along the z axis.
+		 */
+		PoissonGrid(int xSize, int ySize, int zSize)
+			{
+				this(xSize, ySize, zSize, 1, 1, zSize > 1 ? 1 : 0);
+			}
+
+		PoissonGrid(int xSize, int ySize, int zSize, double xCoupling, double yCoupling, double zCoupling)
+			{
+				this.xSize = xSize;
+				this.ySize = ySize;
+				this.zSize = zSize;
+				layerSize = xSize * zSize;
+				size = layerSize * ySize;
+
+				this.xCoupling = xCoupling;
+				this.yCoupling = yCoupling;
+				this.zCoupling = zCoupling;
+				diagonal = 2 * (xCoupling + yCoupling + zCoupling);
+			}
+
+		final int getIndex(int x, int y, int z)
+			{
+				return x + (y * layerSize) + (z * xSize);
+			}
+
+		/**
+		 * @return - The number of layers that are solved for, i.e. every layer except the surface and thermocline
+		 */
+		final int getInteriorLayers()
+			{
+				return Math.max(0, ySize - 2);
+			}
+
+		/**
+		 * Applies successive over-relaxation to every cell of a single colour in one layer. Cells are coloured like a chess board, so a cell's neighbours are
+		 * always the other colour, which means every cell of one colour can be relaxed at the same time.
+		 *
+		 * @param p
+		 *            - The pressure data
+		 * @param div
+		 *            - The negative divergence data
+		 * @param meanDiv
+		 *            - The mean of the divergence data, see {@link #sum(double[], int)}
+		 * @param y
+		 *            - The layer to be relaxed, from 1 to ySize - 2
+		 * @param colour
+		 *            - 0 or 1, the colour of the cells to be relaxed
+		 * @param w
+		 *            - The relaxation factor, 1 is Gauss-Seidel, up to 2 converges faster
+		 *
+		 * @return - The sum of the squares of the residuals of the relaxed cells, measured just before each cell was relaxed
+		 */
+		final double relax(double[] p, double[] div, double meanDiv, int y, int colour, double w)
+			{
+				double sum = 0;
+				int layer = y * layerSize;
+
+				for (int z = 0; z < zSize; z++)
+					{
+						int row = layer + (z * xSize);
+						int rowBehind = layer + ((z == 0 ? zSize - 1 : z - 1) * xSize);
+						int rowAhead = layer + ((z == zSize - 1 ? 0 : z + 1) * xSize);
+
+						for (int x = (colour + y + z) & 1; x < xSize; x += 2)
+							{
+								int k = row + x;
+								double r = residual(p, div, meanDiv, k, x, rowBehind + x, rowAhead + x);
+								p[k] += w * r / diagonal;
+								sum += r * r;
+							}
+					}
+
+				return sum;
+			}
+
+		/**
+		 * Calculates the residual for every cell in one layer.
+		 *
+		 * @param p
+		 *            - The pressure data
+		 * @param div
+		 *            - The negative divergence data
+		 * @param meanDiv
+		 *            - The mean of the divergence data, see {@link #sum(double[], int)}
+		 * @param residuals
+		 *            - The residuals are stored here, may be null if only the sum is needed
+		 * @param y
+		 *            - The layer, from 1 to ySize - 2
+		 *
+		 * @return - The sum of the squares of the residuals in the layer
+		 */
+		final double residual(double[] p, double[] div, double meanDiv, double[] residuals, int y)
+			{
+				double sum = 0;
+				int layer = y * layerSize;
+
+				for (int z = 0; z < zSize; z++)
+					{
+						int row = layer + (z * xSize);
+						int rowBehind = layer + ((z == 0 ? zSize - 1 : z - 1) * xSize);
+						int rowAhead = layer + ((z == zSize - 1 ? 0 : z + 1) * xSize);
+
+						for (int x = 0; x < xSize; x++)
+							{
+								double r = residual(p, div, meanDiv, row + x, x, rowBehind + x, rowAhead + x);
+								if (residuals != null)
+									residuals[row + x] = r;
+								sum += r * r;
+							}
+					}
+
+				return sum;
+			}
+
+		/**
+		 * @return - The sum of every value in one layer
+		 */
+		final double sum(double[] data, int y)
+			{
+				double sum = 0;
+				for (int k = y * layerSize, end = k + layerSize; k < end; k++)
+					sum += data[k];
+				return sum;
+			}
+
+		/**
+		 * @return - The sum of the squares of every value in one layer
+		 */
+		final double sumOfSquares(double[] data, int y)
+			{
+				double sum = 0;
+				for (int k = y * layerSize, end = k + layerSize; k < end; k++)
+					sum += data[k] * data[k];
+				return sum;
+			}
+
+		/**
+		 * Sets the surface and thermocline layers to the value of the neighbour below/above.
+		 */
+		final void copySurfaceAndThermocline(double[] data)
+			{
+				int thermocline = (ySize - 1) * layerSize;
+				System.arraycopy(data, layerSize, data, 0, layerSize);
+				System.arraycopy(data, thermocline - layerSize, data, thermocline, layerSize);
+			}
+
+		/**
+		 * The amount by which a single cell fails to satisfy the Poisson equation.
+		 */
+		private final double residual(double[] p, double[] div, double meanDiv, int k, int x, int behind, int ahead)
+			{
+				int left = x == 0 ? k + xSize - 1 : k - 1;
+				int right = x == xSize - 1 ? k - xSize + 1 : k + 1;
+
+				return (div[k] - meanDiv) + xCoupling * (p[left] + p[right]) + yCoupling * (p[k - layerSize] + p[k + layerSize]) + zCoupling * (p[behind] + p[ahead])
+						- diagonal * p[k];
+			}
+	}
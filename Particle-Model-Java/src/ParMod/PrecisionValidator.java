@@ -0,0 +1,70 @@
+package ParMod;
+
+import ParMod.VectorField.Axis;
+
+/**
+ * Measures how far a {@link VectorField} that stores its velocities as floats drifts away from one that stores them as doubles. Both fields are created
+ * from the same random numbers and stepped together, and after each reporting interval the difference between them is printed.
+ * <p>
+ * Usage: PrecisionValidator [width] [depth] [steps] [report every] [seed] [threads] [solver], all sizes in chunks. The relative drift is the root mean
+ * square of the difference between the fields divided by the root mean square velocity of the double field.
+ *
+ * @author Sebastian Troy
+ */
+public class PrecisionValidator
+	{
+		public static void main(String[] args)
+			{
+				int width = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+				int depth = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+				int steps = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+				int reportEvery = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+				long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+				int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+				VectorField.Solver solver = args.length > 6 ? VectorField.Solver.valueOf(args[6]) : VectorField.Solver.SOR;
+
+				WorkerPool workers = new WorkerPool(threads);
+				VectorField doubles = new VectorField(width, depth, new RandomStream(seed), workers, solver, FieldBuffer.Precision.DOUBLE, FieldBuffer.Storage.HEAP);
+				VectorField floats = new VectorField(width, depth, new RandomStream(seed), workers, solver, FieldBuffer.Precision.FLOAT, FieldBuffer.Storage.HEAP);
+
+				System.out.println("Field of " + width + " x " + depth + " x " + width + " chunks, " + solver.description + " solver");
+				System.out.println("Memory used, double: " + doubles.getBytes() / 1024 + "KB, float: " + floats.getBytes() / 1024 + "KB");
+				System.out.println("step\trelative drift\tmax difference");
+				report(0, doubles, floats, width, depth);
+
+				for (int step = 1; step <= steps; step++)
+					{
+						doubles.stepSimulation();
+						floats.stepSimulation();
+
+						if (step % reportEvery == 0 || step == steps)
+							report(step, doubles, floats, width, depth);
+					}
+
+				workers.shutdown();
+			}
+
+		/**
+		 * Prints the difference between the velocities of every chunk in the two fields.
+		 */
+		private static void report(int step, VectorField doubles, VectorField floats, int width, int depth)
+			{
+				double sumOfSquares = 0, differenceSumOfSquares = 0, maxDifference = 0;
+
+				for (int y = 0; y < depth; y++)
+					for (int z = 0; z < width; z++)
+						for (int x = 0; x < width; x++)
+							for (Axis axis : new Axis[] { Axis.x, Axis.y, Axis.z })
+								{
+									double expected = doubles.getVelocityAt(x, y, z, axis);
+									double difference = Math.abs(floats.getVelocityAt(x, y, z, axis) - expected);
+
+									sumOfSquares += expected * expected;
+									differenceSumOfSquares += difference * difference;
+									maxDifference = Math.max(maxDifference, difference);
+								}
+
+				double drift = sumOfSquares == 0 ? 0 : Math.sqrt(differenceSumOfSquares / sumOfSquares);
+				System.out.println(step + "\t" + String.format("%.3e", drift) + "\t" + String.format("%.3e", maxDifference));
+			}
+	}
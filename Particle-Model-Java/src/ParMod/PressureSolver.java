@@ -0,0 +1,59 @@
+package ParMod;
+
+/**
+ * Calculates the pressure field needed to remove the divergence from a vector field, i.e. it solves the Poisson equation for pressure during the
+ * projection step of {@link VectorField} and {@link VectorFieldTester}.
+ * <p>
+ * The pressure p satisfies: (sum of the pressures of each neighbouring cell) - (number of neighbours * p) + div = 0, for every cell between the surface
+ * and the thermocline. The model wraps along the x & z axes and the surface and thermocline layers always copy the layer next to them.
+ *
+ * @author Sebastian Troy
+ */
+interface PressureSolver
+	{
+		/**
+		 * Solves for pressure. The pressure array is used as the starting guess, so passing in the pressure from the previous step of the model means only
+		 * the change in pressure needs to be found.
+		 *
+		 * @param p
+		 *            - The pressure data, used as the initial guess and overwritten with the solution
+		 * @param div
+		 *            - The negative divergence of the velocity field
+		 *
+		 * @return - The number of iterations carried out
+		 */
+		int solve(double[] p, double[] div);
+
+		/**
+		 * @return - The number of iterations carried out by the last call to {@link #solve(double[], double[])}
+		 */
+		int getIterations();
+
+		/**
+		 * The residual is the root mean square amount by which the pressure field fails to satisfy the Poisson equation, relative to the root mean square of
+		 * the divergence. 0 means the pressure has been solved exactly.
+		 *
+		 * @param iteration
+		 *            - The iteration of the last solve, from 0 to {@link #getIterations()} - 1
+		 *
+		 * @return - The residual after the specified iteration
+		 */
+		double getResidual(int iteration);
+
+		/**
+		 * @return - The residual after the last iteration of the last solve, or 0 if no iterations were needed
+		 */
+		double getResidual();
+
+		/**
+		 * @param tolerance
+		 *            - Solving stops once the residual is no larger than this
+		 */
+		void setTolerance(double tolerance);
+
+		/**
+		 * @param maxIterations
+		 *            - Solving stops after this many iterations, even if the tolerance has not been met
+		 */
+		void setMaxIterations(int maxIterations);
+	}
@@ -0,0 +1,52 @@
+package ParMod;
+
+/**
+ * Checks that projecting a {@link VectorField} removes its divergence, with every {@link VectorField.Solver}. A field is created and disturbed, which
+ * leaves it with a lot of divergence, and is then projected with the solver set to a tight tolerance. A solver with residual r should leave r times the
+ * divergence it started with, so the check fails if the divergence measured afterwards is any larger than that.
+ * <p>
+ * Usage: ProjectionValidator [width] [depth] [tolerance] [seed] [threads], all sizes in chunks. Exits with a status of 1 if any solver fails.
+ *
+ * @author Sebastian Troy
+ */
+public class ProjectionValidator
+	{
+		public static void main(String[] args)
+			{
+				int width = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+				int depth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+				double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 1e-8;
+				long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+				int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+				WorkerPool workers = new WorkerPool(threads);
+				boolean passed = true;
+
+				System.out.println("Field of " + width + " x " + depth + " x " + width + " chunks, tolerance " + tolerance);
+				System.out.println("solver\titerations\tresidual\tdivergence before\tdivergence after\tresult");
+				for (VectorField.Solver solver : VectorField.Solver.values())
+					{
+						VectorField field = new VectorField(width, depth, new RandomStream(seed), workers, solver, FieldBuffer.Precision.DOUBLE,
+								FieldBuffer.Storage.HEAP);
+						field.addDisturbance(Math.max(1, width / 8), width / 2, depth / 2, width / 2, 1, 0.5, -1);
+
+						PressureSolver pressureSolver = field.getPressureSolver();
+						pressureSolver.setTolerance(tolerance);
+						pressureSolver.setMaxIterations(100000);
+
+						double before = field.getDivergence();
+						field.project();
+						double after = field.getDivergence();
+
+						// Allow for the rounding of the velocities as well as the residual
+						boolean ok = after <= (pressureSolver.getResidual() * 1.01 + 1e-12) * before;
+						passed &= ok;
+						System.out.println(solver.description + "\t" + pressureSolver.getIterations() + "\t" + String.format("%.3e", pressureSolver.getResidual())
+								+ "\t" + String.format("%.3e", before) + "\t" + String.format("%.3e", after) + "\t" + (ok ? "passed" : "FAILED"));
+					}
+
+				workers.shutdown();
+				if (!passed)
+					System.exit(1);
+			}
+	}
@@ -0,0 +1,179 @@
+package ParMod;
+
+/**
+ * A seeded source of random numbers that can be split into any number of independent streams. Each part of the simulation that runs on its own thread is
+ * given its own stream, so no state is shared between threads and the same seed always produces exactly the same numbers.
+ * <p>
+ * The numbers are generated using the SplitMix64 algorithm, see Steele, Lea & Flood, "Fast Splittable Pseudorandom Number Generators", OOPSLA 2014.
+ *
+ * @author Sebastian Troy
+ */
+public class RandomStream
+	{
+		/**
+		 * The odd constant closest to 2^64 / the golden ratio, used as the increment for the very first stream.
+		 */
+		private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+		/**
+		 * The multiplier used to turn 53 random bits into a double between 0 (inclusive) and 1 (exclusive).
+		 */
+		private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+		private long seed;
+		private final long gamma;
+
+		/**
+		 * @param seed
+		 *            - Every stream created from the same seed produces the same numbers
+		 */
+		RandomStream(long seed)
+			{
+				this(seed, GOLDEN_GAMMA);
+			}
+
+		private RandomStream(long seed, long gamma)
+			{
+				this.seed = seed;
+				this.gamma = gamma;
+			}
+
+		/**
+		 * Recreates a stream from its state, e.g. when a {@link Checkpoint} is restored.
+		 *
+		 * @param seed
+		 *            - The value returned by {@link #getSeed()}
+		 * @param gamma
+		 *            - The value returned by {@link #getGamma()}
+		 *
+		 * @return - A stream that produces the same numbers as the original did from the moment its state was read
+		 */
+		static RandomStream restore(long seed, long gamma)
+			{
+				return new RandomStream(seed, gamma);
+			}
+
+		/**
+		 * @return - The part of this stream's state that changes as numbers are produced
+		 */
+		final long getSeed()
+			{
+				return seed;
+			}
+
+		/**
+		 * @return - The part of this stream's state that is fixed when it is created
+		 */
+		final long getGamma()
+			{
+				return gamma;
+			}
+
+		/**
+		 * Creates a new stream whose numbers are independent of this one's. Splitting always advances this stream by the same amount, so splitting streams in
+		 * the same order always produces the same streams.
+		 *
+		 * @return - A new, independent stream
+		 */
+		final RandomStream split()
+			{
+				return new RandomStream(nextLong(), mixGamma(nextSeed()));
+			}
+
+		/**
+		 * @return - A random long, each of the 2^64 values is equally likely
+		 */
+		final long nextLong()
+			{
+				return mix64(nextSeed());
+			}
+
+		/**
+		 * @return - A random double from 0 (inclusive) to 1 (exclusive)
+		 */
+		final double nextDouble()
+			{
+				return (nextLong() >>> 11) * DOUBLE_UNIT;
+			}
+
+		/**
+		 * @return - A random double from min (inclusive) to max (exclusive)
+		 */
+		final double nextDouble(double min, double max)
+			{
+				return min + (nextDouble() * (max - min));
+			}
+
+		/**
+		 * Fills part of an array with random doubles from min (inclusive) to max (exclusive).
+		 *
+		 * @param dest
+		 *            - The array to be filled
+		 * @param start
+		 *            - The first index to be filled
+		 * @param end
+		 *            - The index after the last one to be filled
+		 */
+		final void fillUniform(double[] dest, int start, int end, double min, double max)
+			{
+				double range = max - min;
+				for (int i = start; i < end; i++)
+					dest[i] = min + (((nextLong() >>> 11) * DOUBLE_UNIT) * range);
+			}
+
+		/**
+		 * Fills part of an array with normally distributed random doubles. Values are generated in pairs using the Box-Muller transform, so filling the same
+		 * range always consumes the same amount of this stream.
+		 *
+		 * @param dest
+		 *            - The array to be filled
+		 * @param start
+		 *            - The first index to be filled
+		 * @param end
+		 *            - The index after the last one to be filled
+		 * @param mean
+		 *            - The mean of the generated values
+		 * @param standardDeviation
+		 *            - The standard deviation of the generated values
+		 */
+		final void fillGaussian(double[] dest, int start, int end, double mean, double standardDeviation)
+			{
+				for (int i = start; i < end; i += 2)
+					{
+						// 1 - nextDouble() is never 0, so the log is always defined
+						double radius = standardDeviation * Math.sqrt(-2 * Math.log(1 - nextDouble()));
+						double angle = 2 * Math.PI * nextDouble();
+
+						dest[i] = mean + radius * Math.cos(angle);
+						if (i + 1 < end)
+							dest[i + 1] = mean + radius * Math.sin(angle);
+					}
+			}
+
+		private final long nextSeed()
+			{
+				return seed += gamma;
+			}
+
+		/**
+		 * The finalising function of the MurmurHash3 algorithm, variant 13 from David Stafford's "Better Bit Mixing".
+		 */
+		private static long mix64(long z)
+			{
+				z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+				z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+				return z ^ (z >>> 31);
+			}
+
+		/**
+		 * Creates the increment for a new stream, it must be odd and should have a good mix of 0 and 1 bits.
+		 */
+		private static long mixGamma(long z)
+			{
+				z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+				z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+				z = (z ^ (z >>> 33)) | 1L;
+				int n = Long.bitCount(z ^ (z >>> 1));
+				return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+			}
+	}
@@ -0,0 +1,160 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * Solves for pressure using red-black ordered successive over-relaxation. Each iteration relaxes every "red" cell and then every "black" cell, as no two
+ * neighbouring cells share a colour every layer of a colour can be relaxed at the same time on a different thread.
+ * <p>
+ * Each layer is a separate task, so the results do not depend on the number of threads used.
+ *
+ * @author Sebastian Troy
+ */
+class RedBlackSORSolver implements PressureSolver
+	{
+		private final PoissonGrid grid;
+		private final WorkerPool workers;
+
+		private double tolerance = 1e-3;
+		private int maxIterations = 10;
+		private double w;
+
+		// The results of the last solve
+		private int iterations = 0;
+		private double[] residuals = new double[maxIterations];
+
+		// The data being worked on by the tasks below, and the sums calculated by each task (one per layer)
+		private double[] p, div;
+		private double meanDiv;
+		private int colour;
+		private final double[] layerSums, layerSquares;
+
+		private final WorkerPool.Task relaxTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] += grid.relax(p, div, meanDiv, task + 1, colour, w);
+					}
+			};
+
+		private final WorkerPool.Task divergenceTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = grid.sum(div, task + 1);
+						layerSquares[task] = grid.sumOfSquares(div, task + 1);
+					}
+			};
+
+		/**
+		 * @param grid
+		 *            - The grid to be solved
+		 * @param workers
+		 *            - The threads that the layers of the grid will be shared between
+		 */
+		RedBlackSORSolver(PoissonGrid grid, WorkerPool workers)
+			{
+				this.grid = grid;
+				this.workers = workers;
+				layerSums = new double[grid.getInteriorLayers()];
+				layerSquares = new double[grid.getInteriorLayers()];
+
+				/*
+				 * The optimal relaxation factor for a grid whose longest side has n cells is roughly 2 / (1 + sin(PI / n)). It is only optimal once the solver
+				 * has converged though, close to 2 the error grows for the first few iterations, and cut off after a handful of iterations on a large grid that
+				 * is enough for the field to blow up.
+				 */
+				int n = Math.max(grid.xSize, Math.max(grid.ySize, grid.zSize));
+				w = Math.min(2 / (1 + Math.sin(Math.PI / n)), 1.9);
+			}
+
+		@Override
+		public int solve(double[] p, double[] div)
+			{
+				this.p = p;
+				this.div = div;
+
+				// Residuals are measured relative to the size of the divergence, once its mean has been removed
+				workers.run(layerSums.length, divergenceTask);
+				int cells = layerSums.length * grid.layerSize;
+				meanDiv = sum(layerSums) / cells;
+				double divergenceNorm = Math.sqrt(Math.max(0, sum(layerSquares) - (cells * meanDiv * meanDiv)));
+
+				iterations = 0;
+				if (divergenceNorm == 0)
+					return 0;
+
+				if (residuals.length < maxIterations)
+					residuals = new double[maxIterations];
+
+				while (iterations < maxIterations)
+					{
+						Arrays.fill(layerSums, 0);
+
+						colour = 0;
+						workers.run(layerSums.length, relaxTask);
+						colour = 1;
+						workers.run(layerSums.length, relaxTask);
+
+						grid.copySurfaceAndThermocline(p);
+
+						residuals[iterations] = Math.sqrt(sum(layerSums)) / divergenceNorm;
+						if (residuals[iterations++] <= tolerance)
+							break;
+					}
+
+				return iterations;
+			}
+
+		@Override
+		public int getIterations()
+			{
+				return iterations;
+			}
+
+		@Override
+		public double getResidual(int iteration)
+			{
+				return residuals[iteration];
+			}
+
+		@Override
+		public double getResidual()
+			{
+				return iterations == 0 ? 0 : residuals[iterations - 1];
+			}
+
+		@Override
+		public void setTolerance(double tolerance)
+			{
+				this.tolerance = tolerance;
+			}
+
+		@Override
+		public void setMaxIterations(int maxIterations)
+			{
+				this.maxIterations = Math.max(1, maxIterations);
+			}
+
+		/**
+		 * @param w
+		 *            - The relaxation factor, 1 is Gauss-Seidel, values up to 2 converge faster
+		 */
+		final void setRelaxation(double w)
+			{
+				this.w = w;
+			}
+
+		/**
+		 * Adds up the sums calculated by each layer, always in the same order so that the total is the same whichever threads calculated them.
+		 */
+		private static double sum(double[] layerSums)
+			{
+				double sum = 0;
+				for (double layerSum : layerSums)
+					sum += layerSum;
+				return sum;
+			}
+	}
@@ -0,0 +1,488 @@
+package ParMod;
+
+import java.util.Arrays;
+
+/**
+ * Holds values such as nutrient concentrations or temperature for every chunk of the mixed layer, and carries them around with the currents of the
+ * {@link VectorField}. Each scalar is stored in a primitive array, indexed the same way as the velocities of the vector field, so no object is needed per
+ * chunk.
+ * <p>
+ * Each step the scalars are advected in the same way as the velocities, see {@link VectorField#advect()}, by finding the point each chunk's value came from
+ * and interpolating between the chunks around it. The point and the interpolation weights are only worked out once per chunk, and are used for every scalar.
+ * The scalars then diffuse into their neighbouring chunks, and any sources and sinks are applied. The x & z axes wrap around, as they do for the particles,
+ * while nothing passes through the surface or the thermocline.
+ * <p>
+ * The diffusion is implicit, one axis at a time, so it is stable however much diffuses in a step and always takes the same three sweeps however small the
+ * chunks are. Each sweep solves a tridiagonal system along every line of chunks using the Thomas algorithm, like {@link SpectralSolver} does down the y
+ * axis, with the wrapped axes handled by the Sherman-Morrison formula. The cost is accuracy rather than time, large amounts of diffusion in a single step are
+ * smoothed out a little less than they would be in reality, but every scalar still keeps its total amount.
+ *
+ * @author Sebastian Troy
+ */
+final class ScalarField
+	{
+		private final VectorField vecField;
+		private final WorkerPool workers;
+		private final double chunkSize;
+
+		/**
+		 * Where: <br>
+		 * xSize is width,<br>
+		 * ySize is depth from surface to thermocline,<br>
+		 * zSize is breadth &<br>
+		 * layerSize is the number of elements in a single layer of the model (xSize * zSize).
+		 */
+		private final int xSize, ySize, zSize, layerSize;
+
+		/*
+		 * The properties of each scalar, the values are swapped with the temporary values after each pass, so the arrays must not be kept between steps.
+		 */
+		private String[] names = new String[0];
+		private double[][] values = new double[0][], temp = new double[0][];
+		private Line[] xLines = new Line[0], yLines = new Line[0], zLines = new Line[0]; // How each scalar diffuses along each axis
+		private double[][] sources = new double[0][]; // null until a scalar's sources are first asked for
+		private double[] diffusivities = new double[0], decayRates = new double[0];
+		private boolean[] concentrations = new boolean[0];
+
+		// The data being worked on by the tasks below
+		private double distance, minutes;
+		private final double[][] corrections; // The working memory of each layer, for the axes that wrap around
+
+		private final WorkerPool.Task advectTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						advectLayer(task);
+					}
+			};
+
+		private final WorkerPool.Task diffuseLayerTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						diffuseLayer(task);
+					}
+			};
+
+		private final WorkerPool.Task diffuseRowTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						diffuseRow(task);
+					}
+			};
+
+		/**
+		 * @param vecField
+		 *            - The currents that carry the scalars, the scalars have a value for every chunk of the field
+		 * @param chunkSize
+		 *            - The size of a chunk in meters
+		 * @param workers
+		 *            - The threads that the calculations will be shared between
+		 */
+		ScalarField(VectorField vecField, double chunkSize, WorkerPool workers)
+			{
+				this.vecField = vecField;
+				this.chunkSize = chunkSize;
+				this.workers = workers;
+				xSize = vecField.getXSize();
+				ySize = vecField.getYSize();
+				zSize = vecField.getZSize();
+				layerSize = xSize * zSize;
+				corrections = new double[ySize][xSize];
+			}
+
+		/**
+		 * Adds a new scalar, with a value of 0 in every chunk.
+		 *
+		 * @param name
+		 *            - Used to find the scalar when restoring a {@link Checkpoint}
+		 * @param diffusivity
+		 *            - How quickly the scalar spreads into neighbouring chunks, in square meters per minute
+		 * @param decayRate
+		 *            - The fraction of the scalar lost each minute, 0 for none
+		 * @param concentration
+		 *            - True if the scalar can never be negative, in which case sinks stop once a chunk is empty
+		 *
+		 * @return - The id of the new scalar
+		 */
+		final int addScalar(String name, double diffusivity, double decayRate, boolean concentration)
+			{
+				int scalar = names.length;
+				int size = layerSize * ySize;
+
+				names = Arrays.copyOf(names, scalar + 1);
+				values = Arrays.copyOf(values, scalar + 1);
+				temp = Arrays.copyOf(temp, scalar + 1);
+				sources = Arrays.copyOf(sources, scalar + 1);
+				diffusivities = Arrays.copyOf(diffusivities, scalar + 1);
+				decayRates = Arrays.copyOf(decayRates, scalar + 1);
+				concentrations = Arrays.copyOf(concentrations, scalar + 1);
+				xLines = Arrays.copyOf(xLines, scalar + 1);
+				yLines = Arrays.copyOf(yLines, scalar + 1);
+				zLines = Arrays.copyOf(zLines, scalar + 1);
+
+				names[scalar] = name;
+				values[scalar] = new double[size];
+				temp[scalar] = new double[size];
+				diffusivities[scalar] = diffusivity;
+				decayRates[scalar] = decayRate;
+				concentrations[scalar] = concentration;
+				xLines[scalar] = new Line(xSize, true);
+				yLines[scalar] = new Line(ySize, false);
+				zLines[scalar] = new Line(zSize, true);
+
+				return scalar;
+			}
+
+		/**
+		 * @return - The number of scalars added by {@link #addScalar(String, double, double, boolean)}
+		 */
+		final int getNumScalars()
+			{
+				return names.length;
+			}
+
+		/**
+		 * @return - The id of the scalar with the specified name, or -1 if there isn't one
+		 */
+		final int getScalar(String name)
+			{
+				for (int scalar = 0; scalar < names.length; scalar++)
+					if (names[scalar].equals(name))
+						return scalar;
+				return -1;
+			}
+
+		final String getName(int scalar)
+			{
+				return names[scalar];
+			}
+
+		/**
+		 * Note that the returned array is replaced during every {@link #step(double, double)}, so it should not be kept between steps.
+		 *
+		 * @return - The value of the scalar in every chunk, the chunk at x, y, z is found at x + (y * width * width) + (z * width)
+		 */
+		final double[] getValues(int scalar)
+			{
+				return values[scalar];
+			}
+
+		/**
+		 * @return - The value of the scalar in the specified chunk of the mixed layer
+		 */
+		final double get(int scalar, int x, int y, int z)
+			{
+				return values[scalar][getIndex(x, y, z)];
+			}
+
+		/**
+		 * @return - The amount of the scalar added to each chunk every minute, negative amounts are sinks. All are 0 until changed.
+		 */
+		final double[] getSources(int scalar)
+			{
+				if (sources[scalar] == null)
+					sources[scalar] = new double[layerSize * ySize];
+				return sources[scalar];
+			}
+
+		/**
+		 * Advects, diffuses and applies the sources of every scalar.
+		 *
+		 * @param distance
+		 *            - How far a chunk's value is carried, in chunks, by a current of 1
+		 * @param minutes
+		 *            - The number of minutes passing, used for the diffusion, decay and sources
+		 */
+		final void step(double distance, double minutes)
+			{
+				if (names.length == 0)
+					return;
+
+				this.distance = distance;
+				this.minutes = minutes;
+
+				// values -> temp
+				workers.run(ySize, advectTask);
+				swap();
+
+				// The diffusion is worked out in place, along the x & z axes a layer at a time, then down the y axis a row at a time
+				double chunkArea = chunkSize * chunkSize;
+				for (int scalar = 0; scalar < names.length; scalar++)
+					{
+						double rate = diffusivities[scalar] * minutes / chunkArea;
+						xLines[scalar].setRate(rate);
+						yLines[scalar].setRate(rate);
+						zLines[scalar].setRate(rate);
+					}
+
+				workers.run(ySize, diffuseLayerTask);
+				workers.run(zSize, diffuseRowTask);
+			}
+
+		/**
+		 * Finds where the value of each chunk in a layer came from, and interpolates every scalar from the chunks around that point.
+		 */
+		private void advectLayer(int y)
+			{
+				FieldBuffer xVelocity = vecField.getVelocities(VectorField.Axis.x);
+				FieldBuffer yVelocity = vecField.getVelocities(VectorField.Axis.y);
+				FieldBuffer zVelocity = vecField.getVelocities(VectorField.Axis.z);
+				int numScalars = names.length;
+
+				// for breadth of model
+				for (int z = 0; z < zSize; z++)
+					// for width of model, this is the innermost loop as neighbouring x values are next to each other in memory
+					for (int x = 0; x < xSize; x++)
+						{
+							int k = getIndex(x, y, z);
+							// Reverse velocity, since we are interpolating backwards
+							double xSrc = x - distance * xVelocity.get(k);
+							double ySrc = y - distance * yVelocity.get(k);
+							double zSrc = z - distance * zVelocity.get(k);
+
+							// if the source is off either end of the x or z axes, wrap to the other end
+							xSrc -= Math.floor(xSrc / xSize) * xSize;
+							zSrc -= Math.floor(zSrc / zSize) * zSize;
+
+							int xi0 = (int) xSrc;
+							// a tiny negative source rounds up to the far end when wrapped
+							if (xi0 == xSize)
+								{
+									xi0 = 0;
+									xSrc = 0;
+								}
+							int xi1 = xi0 + 1;
+							if (xi1 == xSize)
+								xi1 = 0;
+
+							int zi0 = (int) zSrc;
+							if (zi0 == zSize)
+								{
+									zi0 = 0;
+									zSrc = 0;
+								}
+							int zi1 = zi0 + 1;
+							if (zi1 == zSize)
+								zi1 = 0;
+
+							// nothing passes through the surface or the thermocline
+							if (ySrc < 0)
+								ySrc = 0;
+							else if (ySrc > ySize - 1)
+								ySrc = ySize - 1;
+
+							int yi0 = Math.max(0, Math.min((int) ySrc, ySize - 2));
+							int yi1 = Math.min(yi0 + 1, ySize - 1);
+
+							double xProp1 = xSrc - xi0;
+							double xProp0 = 1.0 - xProp1;
+							double yProp1 = ySrc - yi0;
+							double yProp0 = 1.0 - yProp1;
+							double zProp1 = zSrc - zi0;
+							double zProp0 = 1.0 - zProp1;
+
+							double w000 = zProp0 * xProp0 * yProp0, w010 = zProp0 * xProp0 * yProp1;
+							double w100 = zProp0 * xProp1 * yProp0, w110 = zProp0 * xProp1 * yProp1;
+							double w001 = zProp1 * xProp0 * yProp0, w011 = zProp1 * xProp0 * yProp1;
+							double w101 = zProp1 * xProp1 * yProp0, w111 = zProp1 * xProp1 * yProp1;
+
+							int k000 = getIndex(xi0, yi0, zi0), k010 = getIndex(xi0, yi1, zi0);
+							int k100 = getIndex(xi1, yi0, zi0), k110 = getIndex(xi1, yi1, zi0);
+							int k001 = getIndex(xi0, yi0, zi1), k011 = getIndex(xi0, yi1, zi1);
+							int k101 = getIndex(xi1, yi0, zi1), k111 = getIndex(xi1, yi1, zi1);
+
+							for (int scalar = 0; scalar < numScalars; scalar++)
+								{
+									double[] src = values[scalar];
+									temp[scalar][k] = w000 * src[k000] + w010 * src[k010] + w100 * src[k100] + w110 * src[k110] + w001 * src[k001] + w011
+											* src[k011] + w101 * src[k101] + w111 * src[k111];
+								}
+						}
+			}
+
+		/**
+		 * Diffuses every scalar in a layer along the x axis, one row at a time, then along the z axis, with every row worked on together.
+		 */
+		private void diffuseLayer(int y)
+			{
+				double[] layerCorrections = corrections[y];
+
+				for (int scalar = 0; scalar < names.length; scalar++)
+					{
+						double[] scalarValues = values[scalar];
+
+						for (int z = 0; z < zSize; z++)
+							xLines[scalar].solve(scalarValues, getIndex(0, y, z), 1, 1, layerCorrections);
+
+						zLines[scalar].solve(scalarValues, getIndex(0, y, 0), xSize, xSize, layerCorrections);
+					}
+			}
+
+		/**
+		 * Diffuses every scalar in a row down the y axis, with every column of the row worked on together, then applies their decay and sources.
+		 */
+		private void diffuseRow(int z)
+			{
+				for (int scalar = 0; scalar < names.length; scalar++)
+					{
+						double[] scalarValues = values[scalar], source = sources[scalar];
+						double decay = Math.exp(-decayRates[scalar] * minutes);
+						boolean concentration = concentrations[scalar];
+
+						yLines[scalar].solve(scalarValues, getIndex(0, 0, z), layerSize, xSize, null);
+
+						for (int y = 0; y < ySize; y++)
+							for (int x = 0, k = getIndex(0, y, z); x < xSize; x++, k++)
+								{
+									double value = scalarValues[k] * decay;
+									if (source != null)
+										value += source[k] * minutes;
+									if (concentration && value < 0)
+										value = 0;
+
+									scalarValues[k] = value;
+								}
+					}
+			}
+
+		private void swap()
+			{
+				double[][] swap = values;
+				values = temp;
+				temp = swap;
+			}
+
+		/**
+		 * @return - The index of the chunk, the same as {@link VectorField}'s
+		 */
+		private final int getIndex(int x, int y, int z)
+			{
+				return x + (y * layerSize) + (z * xSize);
+			}
+
+		/**
+		 * Diffuses a scalar implicitly along one axis, for lines of chunks that either wrap around or end at the surface and thermocline. Each chunk passes
+		 * the same fraction of its new value to each neighbour, so the equations are the same for every line, and the elimination down a line is only worked
+		 * out when that fraction changes.
+		 */
+		private static final class Line
+			{
+				private final int length;
+				private final boolean wraps;
+
+				// The fraction passed to each neighbour, and the diagonal of the equations for a chunk with 2 neighbours
+				private double rate = 0, diagonal = 1;
+
+				// For each chunk along the line, 1 over what is left of the diagonal after eliminating the chunk before it
+				private final double[] inverses;
+
+				/*
+				 * For lines that wrap around, the link between the ends is removed before solving and put back afterwards by subtracting a multiple of these
+				 * values, the solution to the line without that link for the link alone.
+				 */
+				private final double[] wrapValues;
+				private double wrapDenominator;
+
+				/**
+				 * @param length
+				 *            - The number of chunks in the line
+				 * @param wraps
+				 *            - True if the first and last chunks are neighbours, false if nothing passes out of either end
+				 */
+				Line(int length, boolean wraps)
+					{
+						this.length = length;
+						this.wraps = wraps;
+						inverses = new double[length];
+						wrapValues = wraps ? new double[length] : null;
+					}
+
+				/**
+				 * @param rate
+				 *            - The diffusivity multiplied by the minutes passing, divided by the area of a chunk
+				 */
+				final void setRate(double rate)
+					{
+						if (rate == this.rate)
+							return;
+
+						this.rate = rate;
+						diagonal = 1 + (2 * rate);
+
+						double previousInverse = 0;
+						for (int i = 0; i < length; i++)
+							{
+								double chunkDiagonal = diagonal;
+								if (wraps)
+									{
+										// Removing the link between the ends, see the Sherman-Morrison formula
+										if (i == 0)
+											chunkDiagonal += diagonal;
+										if (i == length - 1)
+											chunkDiagonal += rate * rate / diagonal;
+									}
+								else if (i == 0 || i == length - 1)
+									chunkDiagonal -= rate;
+
+								previousInverse = inverses[i] = 1 / (chunkDiagonal - (rate * rate * previousInverse));
+							}
+
+						if (wraps && length > 1)
+							{
+								wrapValues[0] = -diagonal;
+								wrapValues[length - 1] = -rate;
+								substitute(wrapValues, 0, 1, 1);
+								wrapDenominator = 1 + wrapValues[0] + (rate * wrapValues[length - 1] / diagonal);
+							}
+					}
+
+				/**
+				 * Replaces the values along several neighbouring lines with their values after diffusing. Chunk i of line j is found at start + (i * step) +
+				 * j.
+				 *
+				 * @param lineCorrections
+				 *            - At least one value for each line, only used if the line wraps around
+				 */
+				final void solve(double[] values, int start, int step, int lines, double[] lineCorrections)
+					{
+						if (length == 1 || rate == 0)
+							return;
+
+						substitute(values, start, step, lines);
+
+						if (wraps)
+							{
+								int last = start + ((length - 1) * step);
+								for (int j = 0; j < lines; j++)
+									lineCorrections[j] = (values[start + j] + (rate * values[last + j] / diagonal)) / wrapDenominator;
+
+								for (int i = 0, k = start; i < length; i++, k += step)
+									for (int j = 0; j < lines; j++)
+										values[k + j] -= lineCorrections[j] * wrapValues[i];
+							}
+					}
+
+				/**
+				 * The Thomas algorithm, for the lines without the link between their ends.
+				 */
+				private void substitute(double[] values, int start, int step, int lines)
+					{
+						// Eliminate the chunk before each chunk working forwards...
+						for (int j = 0; j < lines; j++)
+							values[start + j] *= inverses[0];
+						for (int i = 1, k = start + step; i < length; i++, k += step)
+							for (int j = 0; j < lines; j++)
+								values[k + j] = (values[k + j] + (rate * values[k - step + j])) * inverses[i];
+
+						// ...then substitute back working backwards
+						for (int i = length - 2, k = start + (i * step); i >= 0; i--, k -= step)
+							for (int j = 0; j < lines; j++)
+								values[k + j] += rate * inverses[i] * values[k + step + j];
+					}
+			}
+	}
@@ -3,71 +3,263 @@ package ParMod;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.event.KeyEvent;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.File;
+import java.util.Arrays;
 
-import ParMod.VectorField.Axis;
 import tCode.RenderableObject;
 import tComponents.utils.events.TScrollEvent;
-import tools.Rand;
 
 /**
  * 
  * @author Sebastian Troy
  */
-public class Simulation extends RenderableObject
+public class Simulation extends RenderableObject implements SimulationMXBean
 	{
 		// The simulation takes place within a cuboid with the following parameters
 		int width; // The length of the simulation's short sides in meters
 		int depth; // The length of the simualtion's long sides in meters
 		int mixedLayerDepth; // The y value for the last chunk within the mixed surface layer
 		int pace; // The time in minutes that pass for each simulation 'tick'
+		int fieldCadence = DEFAULT_FIELD_CADENCE; // The number of ticks between steps of the vector field
+		VectorField.Stepping fieldStepping = VectorField.Stepping.FIXED; // How the length of each step of the vector field is chosen
 
-		LinkedList<Particle> particles; // Every particle being modelled is stored here.
-		Iterator<Particle> iter;
-		final double particleSinkingRate = 0.0001; // The distance a particle will sink through the water column in a single minute
+		ParticleStore particles; // Every particle being modelled is stored here.
+		final double particleSinkingRate = 0.0001; // The distance a particle will sink through the water column in a single minute, in full sunlight
+		final double darkSinkingFactor = 2; // How many times faster a particle sinks in complete darkness
+
+		/*
+		 * The particles are split into blocks of a fixed size, each of which is updated as a separate task and has its own source of random numbers. Because
+		 * the blocks don't depend on the number of threads, a given seed always produces the same results.
+		 */
+		static final int PARTICLE_BLOCK_SIZE = 4096;
+		WorkerPool workers;
+		private RandomStream random; // The random numbers used by the parts of the simulation that don't run in parallel
+		private RandomStream[] blockRandoms; // The random numbers used by each block of particles
+		private final ThreadLocal<BlockBuffers> blockBuffers = new ThreadLocal<BlockBuffers>(); // Working memory for each thread updating blocks
+		private int[] sunkParticles; // The indices of particles that sank out of the simulation during a tick, each block stores its own from its first index
+		private int[] numSunkParticles; // The number of particles that sank in each block during a tick
+		private int[] chunkMoves; // Pairs of the chunks that particles left and entered during a tick, -1 for none, each block stores its own from its first pair
+		private int[] numChunkMoves; // The number of particles that changed chunk in each block during a tick
 
 		VectorField vecField;
-		Chunk[/* x */][/* y */][/* z */] chunks; // The simulation is subdivided into chunks which contain localised information.
+		ScalarField scalars; // Values such as nutrient levels for each chunk of the mixed layer, carried by the currents of the vector field
+		int nutrients; // The scalar holding the concentration of nutrients, from 0 to 1
+
+		/*
+		 * An arbitrary value used to control how quickly nutrients spread through the water by diffusion alone, in square meters per minute.
+		 */
+		static final double NUTRIENT_DIFFUSIVITY = 0.0001;
+
+		/*
+		 * The number of ticks between steps of the vector field, unless changed. The field used to step during a random 10% of ticks.
+		 */
+		static final int DEFAULT_FIELD_CADENCE = 10;
+
+		private volatile Metrics metrics = Metrics.NOOP; // Told how long each phase of a tick takes
+		private volatile long ticks, totalSunkParticles; // Totals since the simulation began, read by JMX clients
+		private long lastTicks, lastTicksTime = System.nanoTime(); // When the ticks per second was last read
+
+		// Pressing 'c' writes a checkpoint to this file, once the current tick is complete
+		static final String CHECKPOINT_FILE = "ParMod.checkpoint";
+		private volatile boolean checkpointRequested = false;
+		private CheckpointWriter checkpointWriter;
+		private Thread simulationThread; // null until the simulation is on screen
+
+		// While on screen the simulation runs on its own thread, and hands a snapshot of itself to the thread drawing it after each tick
+		final SnapshotBuffer snapshots = new SnapshotBuffer();
+		private volatile StepScheduler scheduler = new StepScheduler(StepScheduler.DEFAULT_TICKS_PER_SECOND, StepScheduler.Policy.CATCH_UP,
+				StepScheduler.DEFAULT_BUDGET); // Decides how many ticks are carried out per second while on screen
+		private long fieldSteps; // The number of times the vector field has stepped, so that snapshots only copy its velocities when they have changed
+
+		private TrajectoryWriter trajectoryWriter; // Records the positions of selected particles after each tick, if not null
+		private ParticleSorter sorter; // Keeps particles that are close together in the water column close together in memory, if not null
+		LightField light; // The light reaching each chunk, which depends on the particles in the chunks above it
+		ChunkGrid chunks; // The simulation is subdivided into chunks which contain localised information, held in flat arrays by the parts that need it
 		double chunkSize; // Chunk size in meters
 
 		/**
 		 * 
 		 * @param numParticles
 		 *            - The number of particles to be modelled
+		 * @param threads
+		 *            - The number of threads used to update the particles
+		 * @param seed
+		 *            - The seed for all random numbers used by the simulation, the same seed always results in the same simulation
+		 * @param solver
+		 *            - The method used to calculate the pressure in the vector field
+		 * @param precision
+		 *            - The precision with which the velocities of the vector field are stored
+		 * @param storage
+		 *            - Where the velocities of the vector field are stored
 		 */
-		Simulation(int width, int depth, int mixedLayerDepth, int pace, int numParticles, double chunkSize)
+		Simulation(int width, int depth, int mixedLayerDepth, int pace, int numParticles, double chunkSize, int threads, long seed, VectorField.Solver solver,
+				FieldBuffer.Precision precision, FieldBuffer.Storage storage)
 			{
+				random = new RandomStream(seed);
+
 				this.width = width;
 				this.depth = depth;
 				this.mixedLayerDepth = (int) (mixedLayerDepth / chunkSize);
 				this.pace = pace;
-				particles = new LinkedList<Particle>();
+				particles = new ParticleStore(numParticles);
 				this.chunkSize = chunkSize;
 
+				// Prepare the threads that the work will be shared between
+				workers = new WorkerPool(threads);
+
 				// Create a new vector field
-				vecField = new VectorField((int) (width / chunkSize), (int) (mixedLayerDepth / chunkSize));
+				vecField = new VectorField((int) (width / chunkSize), (int) (mixedLayerDepth / chunkSize), random.split(), workers, solver, precision, storage);
 
-				// allocate memory for the particles array
+				// fill the particle store
 				for (int i = 0; i < numParticles; i++)
 					{
-						Particle p = new Particle();
-						p.x = Rand.double_(0, width);
-						p.y = Rand.double_(0, depth);
-						p.z = Rand.double_(0, width);
-						// p.x = width / 2;
-						// p.y = 0;
-						// p.z = width / 2;
-						particles.add(p);
+						particles.add(random.nextDouble(0, width), random.nextDouble(0, depth), random.nextDouble(0, width));
+						// particles.add(width / 2, 0, width / 2);
+					}
+
+				// Nutrients are brought up through the thermocline, so start with more of them at depth
+				createScalars();
+				double[] nutrientLevels = scalars.getValues(nutrients);
+				int layerSize = vecField.getXSize() * vecField.getZSize();
+				for (int y = 0; y < vecField.getYSize(); y++)
+					Arrays.fill(nutrientLevels, y * layerSize, (y + 1) * layerSize, (double) y / Math.max(1, vecField.getYSize() - 1));
+
+				// Prepare the per block data used to update the particles
+				int numBlocks = (numParticles + PARTICLE_BLOCK_SIZE - 1) / PARTICLE_BLOCK_SIZE;
+				blockRandoms = new RandomStream[numBlocks];
+				for (int block = 0; block < numBlocks; block++)
+					blockRandoms[block] = random.split();
+
+				allocate();
+			}
+
+		/**
+		 * Recreates a simulation from a checkpoint, it carries on exactly as the simulation that the checkpoint was taken from would have, whatever the
+		 * number of threads. The particles are sorted as they were, see {@link #setParticleOrder(ParticleSorter.Order, int)}, which is only exact if they
+		 * were sorted every n ticks.
+		 *
+		 * @param checkpoint
+		 *            - Taken by {@link #checkpoint()}, or read from a file
+		 * @param threads
+		 *            - The number of threads used to update the particles
+		 */
+		Simulation(Checkpoint checkpoint, int threads)
+			{
+				width = checkpoint.width;
+				depth = checkpoint.depth;
+				mixedLayerDepth = checkpoint.mixedLayerDepth;
+				pace = checkpoint.pace;
+				fieldCadence = checkpoint.fieldCadence;
+				fieldStepping = checkpoint.fieldStepping;
+				chunkSize = checkpoint.chunkSize;
+				ticks = checkpoint.ticks;
+				totalSunkParticles = checkpoint.sunkParticles;
+
+				random = RandomStream.restore(checkpoint.randomSeeds[0], checkpoint.randomGammas[0]);
+				blockRandoms = new RandomStream[checkpoint.randomSeeds.length - 1];
+				for (int block = 0; block < blockRandoms.length; block++)
+					blockRandoms[block] = RandomStream.restore(checkpoint.randomSeeds[block + 1], checkpoint.randomGammas[block + 1]);
+
+				particles = new ParticleStore(checkpoint.numParticles);
+				for (int i = 0; i < checkpoint.numParticles; i++)
+					particles.add(checkpoint.x[i], checkpoint.y[i], checkpoint.z[i]);
+				System.arraycopy(checkpoint.ids, 0, particles.id, 0, checkpoint.numParticles);
+				particles.nextId = checkpoint.nextId;
+				for (float[] values : checkpoint.attributes)
+					System.arraycopy(values, 0, particles.getAttribute(particles.addAttribute()), 0, checkpoint.numParticles);
+
+				workers = new WorkerPool(threads);
+				vecField = new VectorField(checkpoint, workers);
+
+				// Scalars added since the checkpoint was written are left at 0
+				createScalars();
+				for (int s = 0; s < checkpoint.scalarNames.length; s++)
+					{
+						int scalar = scalars.getScalar(checkpoint.scalarNames[s]);
+						if (scalar >= 0)
+							System.arraycopy(checkpoint.scalars[s], 0, scalars.getValues(scalar), 0, checkpoint.scalars[s].length);
+					}
+
+				allocate();
+				setParticleOrder(checkpoint.particleOrder, checkpoint.sortEvery);
+			}
+
+		/**
+		 * Adds the scalars modelled for each chunk of the mixed layer, once the vector field has been created.
+		 */
+		private final void createScalars()
+			{
+				scalars = new ScalarField(vecField, chunkSize, workers);
+				nutrients = scalars.addScalar("Nutrients", NUTRIENT_DIFFUSIVITY, 0, true);
+			}
+
+		/**
+		 * Allocates the memory used during each tick, once the particle blocks have been created.
+		 */
+		private final void allocate()
+			{
+				sunkParticles = new int[blockRandoms.length * PARTICLE_BLOCK_SIZE];
+				numSunkParticles = new int[blockRandoms.length];
+				chunkMoves = new int[blockRandoms.length * PARTICLE_BLOCK_SIZE * 2];
+				numChunkMoves = new int[blockRandoms.length];
+				chunks = new ChunkGrid(width, depth, mixedLayerDepth, chunkSize);
+				light = new LightField(chunks, workers);
+				light.count(particles);
+			}
+
+		/**
+		 * Copies everything needed to carry on from this point into a {@link Checkpoint}. This must be called between ticks, from the thread running the
+		 * simulation.
+		 *
+		 * @return - A checkpoint that shares no data with this simulation
+		 */
+		final Checkpoint checkpoint()
+			{
+				Checkpoint checkpoint = new Checkpoint();
+
+				checkpoint.width = width;
+				checkpoint.depth = depth;
+				checkpoint.mixedLayerDepth = mixedLayerDepth;
+				checkpoint.pace = pace;
+				checkpoint.fieldCadence = fieldCadence;
+				checkpoint.fieldStepping = fieldStepping;
+				checkpoint.particleOrder = sorter == null ? ParticleSorter.Order.NONE : sorter.getOrder();
+				checkpoint.sortEvery = sorter == null ? 0 : sorter.getEvery();
+				checkpoint.chunkSize = chunkSize;
+				checkpoint.ticks = ticks;
+				checkpoint.sunkParticles = totalSunkParticles;
+
+				checkpoint.randomSeeds = new long[blockRandoms.length + 1];
+				checkpoint.randomGammas = new long[blockRandoms.length + 1];
+				checkpoint.randomSeeds[0] = random.getSeed();
+				checkpoint.randomGammas[0] = random.getGamma();
+				for (int block = 0; block < blockRandoms.length; block++)
+					{
+						checkpoint.randomSeeds[block + 1] = blockRandoms[block].getSeed();
+						checkpoint.randomGammas[block + 1] = blockRandoms[block].getGamma();
+					}
 
+				checkpoint.numParticles = particles.size;
+				checkpoint.x = Arrays.copyOf(particles.x, particles.size);
+				checkpoint.y = Arrays.copyOf(particles.y, particles.size);
+				checkpoint.z = Arrays.copyOf(particles.z, particles.size);
+				checkpoint.ids = Arrays.copyOf(particles.id, particles.size);
+				checkpoint.nextId = particles.nextId;
+				checkpoint.attributes = new float[particles.getNumAttributes()][];
+				for (int a = 0; a < checkpoint.attributes.length; a++)
+					checkpoint.attributes[a] = Arrays.copyOf(particles.getAttribute(a), particles.size);
+
+				vecField.checkpoint(checkpoint);
+
+				checkpoint.scalarNames = new String[scalars.getNumScalars()];
+				checkpoint.scalars = new double[scalars.getNumScalars()][];
+				for (int scalar = 0; scalar < checkpoint.scalars.length; scalar++)
+					{
+						checkpoint.scalarNames[scalar] = scalars.getName(scalar);
+						checkpoint.scalars[scalar] = scalars.getValues(scalar).clone();
 					}
-				// allocate memory for the chunks array
-				chunks = new Chunk[(int) (width / chunkSize)][(int) (depth / chunkSize)][(int) (width / chunkSize)];
 
-				for (int x = 0; x < chunks.length; x++)
-					for (int y = 0; y < chunks[0].length; y++)
-						for (int z = 0; z < chunks[0][0].length; z++)
-							chunks[x][y][z] = new Chunk();
+				return checkpoint;
 			}
 
 		@Override
@@ -75,6 +267,18 @@ public class Simulation extends RenderableObject
 			{
 				// Initiate a new Graphical output that will display the simulation
 				Main.graphicalOutput = new GraphicalOutput();
+
+				// The simulation steps as fast as it can on its own thread, so that slow frames don't slow it down and a slow tick doesn't hold up the display
+				simulationThread = new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+							{
+								runSimulation();
+							}
+					}, "Simulation");
+				simulationThread.setDaemon(true);
+				simulationThread.start();
 			}
 
 		@Override
@@ -82,60 +286,443 @@ public class Simulation extends RenderableObject
 			{
 				// Calls a method in the graphical output class that checks for user interaction with the simulation
 				Main.graphicalOutput.tick(secondsPassed);
+			}
+
+		/**
+		 * Steps the simulation by its full pace whenever the {@link StepScheduler} says a tick is due, until it is shut down, and publishes a snapshot for
+		 * the display after each batch of ticks. This is run on the simulation's own thread.
+		 */
+		private final void runSimulation()
+			{
+				snapshots.publish(this, ticks, fieldSteps);
+
+				try
+					{
+						while (!Thread.currentThread().isInterrupted())
+							{
+								StepScheduler scheduler = this.scheduler;
+								int due = scheduler.waitForTicks();
+								long batchStart = System.nanoTime();
+								int done = 0;
+								do
+									{
+										step(pace);
+										done++;
+									}
+								while (done < due && scheduler.withinBudget(batchStart));
+								scheduler.finished(done);
+
+								snapshots.publish(this, ticks, fieldSteps);
+
+								if (checkpointRequested)
+									{
+										checkpointRequested = false;
+										if (checkpointWriter == null)
+											checkpointWriter = new CheckpointWriter(new File(CHECKPOINT_FILE), true);
+										if (checkpointWriter.checkpoint(this))
+											System.out.println("Writing checkpoint to " + new File(CHECKPOINT_FILE).getAbsolutePath());
+									}
+							}
+					}
+				catch (InterruptedException e)
+					{
+						// Interrupted by shutdown() while waiting for the next tick
+					}
+			}
+
+		/**
+		 * Stops the simulation's own thread once its current batch of ticks is complete, waits for any checkpoint being written and then stops the worker
+		 * threads, which the display shares. The simulation can't be stepped afterwards. This is called as the program exits, see {@link Main}.
+		 */
+		final void shutdown()
+			{
+				Thread thread = simulationThread;
+				if (thread != null)
+					{
+						thread.interrupt();
+						try
+							{
+								thread.join();
+							}
+						catch (InterruptedException e)
+							{
+								Thread.currentThread().interrupt();
+							}
+					}
+
+				if (checkpointWriter != null)
+					checkpointWriter.shutdown();
+				workers.shutdown();
+			}
+
+		/**
+		 * @param scheduler
+		 *            - Decides how many ticks are carried out per second while the simulation is on screen, from the next batch of ticks on
+		 */
+		final void setScheduler(StepScheduler scheduler)
+			{
+				this.scheduler = scheduler;
+			}
+
+		final StepScheduler getScheduler()
+			{
+				return scheduler;
+			}
+
+		/**
+		 * Changes how often the vector field steps. This must be called between ticks, from the thread running the simulation.
+		 * 
+		 * @param fieldCadence
+		 *            - The number of ticks between steps of the vector field, counted from the first tick of the simulation
+		 */
+		final void setFieldCadence(int fieldCadence)
+			{
+				if (fieldCadence < 1)
+					throw new IllegalArgumentException("The vector field can only step every n > 0 ticks");
+				this.fieldCadence = fieldCadence;
+			}
+
+		/**
+		 * Changes how the length of each step of the vector field is chosen. This must be called between ticks, from the thread running the simulation.
+		 * 
+		 * @param fieldStepping
+		 *            - FIXED to step the field every {@link #fieldCadence} ticks, or ADAPTIVE to step it through the same length of time in the longest
+		 *            steps that remain stable, see {@link VectorField#advance(double)}
+		 */
+		final void setFieldStepping(VectorField.Stepping fieldStepping)
+			{
+				this.fieldStepping = fieldStepping;
+			}
+
+		/**
+		 * @return - The number of times the vector field has stepped since this simulation was created or resumed
+		 */
+		final long getFieldSteps()
+			{
+				return fieldSteps;
+			}
+
+		/**
+		 * Advances the model, without any interaction with the user, so that it can also be run without a display, see {@link HeadlessRunner}.
+		 * 
+		 * @param pace
+		 *            - The number of minutes passing during this step
+		 */
+		final void step(final double pace)
+			{
+				final Metrics metrics = this.metrics;
+				long tickStart = metrics.startTimer();
+				long start = tickStart;
+				// Only an adaptive sort needs to know how long moving the particles took, otherwise the clock isn't read unless metrics are enabled
+				final boolean timePass = sorter != null && sorter.isAdaptive();
+				long passStart = timePass ? System.nanoTime() : 0;
+
+				moveParticles(pace);
+
+				long passTime = timePass ? System.nanoTime() - passStart : 0;
+				metrics.stopTimer(Metrics.Metric.PARTICLES, start);
+				start = metrics.startTimer();
+				int numParticles = particles.size;
+
+				removeSunkParticles();
+
+				metrics.stopTimer(Metrics.Metric.REMOVAL, start);
+				metrics.record(Metrics.Metric.REMOVED_PARTICLES, numParticles - particles.size);
+				totalSunkParticles += numParticles - particles.size;
+
+				start = metrics.startTimer();
+				updateLight();
+				metrics.stopTimer(Metrics.Metric.LIGHT, start);
+
+				// The currents change more slowly than the particles move, so the vector field only steps every few ticks, or as rarely as it stays stable
+				if (fieldStepping == VectorField.Stepping.ADAPTIVE)
+					{
+						start = metrics.startTimer();
+						int steps = vecField.advance(VectorField.TIMESTEP / fieldCadence);
+						if (steps > 0)
+							{
+								fieldSteps += steps;
+								metrics.stopTimer(Metrics.Metric.VECTOR_FIELD, start);
+							}
+					}
+				else if ((ticks + 1) % fieldCadence == 0)
+					{
+						start = metrics.startTimer();
+						vecField.stepSimulation();
+						fieldSteps++;
+						metrics.stopTimer(Metrics.Metric.VECTOR_FIELD, start);
+					}
 
-				// TODO remove this for final simulation
-				double pace = this.pace * secondsPassed * 5; // Slows down the simulation so that it can be observed during development
+				// The scalars are carried as far as the particles are by the same currents
+				start = metrics.startTimer();
+				scalars.step(0.05 / chunkSize, pace);
+				metrics.stopTimer(Metrics.Metric.SCALARS, start);
 
-				iter = particles.iterator();
-				Particle p;
-				while (iter.hasNext())
+				metrics.stopTimer(Metrics.Metric.TICK, tickStart);
+				metrics.record(Metrics.Metric.PARTICLE_COUNT, particles.size);
+				ticks++;
+
+				if (sorter != null)
 					{
-						p = iter.next();
-						// If particle hasn't sunk yet
-						if (p.y < depth)// TODO remove sunk particles
+						start = metrics.startTimer();
+						if (sorter.update(particles, ticks, passTime))
+							metrics.stopTimer(Metrics.Metric.SORT, start);
+					}
+
+				if (trajectoryWriter != null)
+					trajectoryWriter.record(particles, ticks);
+			}
+
+		/**
+		 * @param trajectoryWriter
+		 *            - Records the positions of the particles it selects after each tick from now on, or null to stop recording
+		 */
+		final void setTrajectoryWriter(TrajectoryWriter trajectoryWriter)
+			{
+				this.trajectoryWriter = trajectoryWriter;
+			}
+
+		/**
+		 * Sorts the particles by their position from now on, so that the velocities each block of particles looks up are close together in memory, see
+		 * {@link ParticleSorter}.
+		 * 
+		 * @param order
+		 *            - The order the particles are sorted into, {@link ParticleSorter.Order#NONE} to stop sorting them
+		 * @param every
+		 *            - The number of ticks between sorts, or 0 to sort whenever the time lost to disorder exceeds the time a sort takes. Only sorting every n
+		 *            ticks gives the same results from the same seed.
+		 */
+		final void setParticleOrder(ParticleSorter.Order order, int every)
+			{
+				sorter = order == ParticleSorter.Order.NONE ? null : new ParticleSorter(order, every, chunks, workers);
+			}
+
+		/**
+		 * @return - What is sorting the particles, or null if they are not being sorted
+		 */
+		final ParticleSorter getParticleSorter()
+			{
+				return sorter;
+			}
+
+		/**
+		 * @param metrics
+		 *            - Told how long each phase of a tick, the vector field and rendering takes from now on, {@link Metrics#NOOP} to stop measuring
+		 */
+		final void setMetrics(Metrics metrics)
+			{
+				this.metrics = metrics;
+				vecField.setMetrics(metrics);
+			}
+
+		/**
+		 * @return - Where measurements of the model are currently reported
+		 */
+		final Metrics getMetrics()
+			{
+				return metrics;
+			}
+
+		/**
+		 * Makes this simulation and its vector field visible to JMX clients, in place of any simulation registered earlier, see {@link Telemetry}.
+		 */
+		final void registerMBeans()
+			{
+				Telemetry.register("Simulation", this);
+				vecField.registerMBean();
+			}
+
+		// The following methods are read by JMX clients, from their own threads, while the simulation runs:
+
+		@Override
+		public final long getTicks()
+			{
+				return ticks;
+			}
+
+		@Override
+		public final synchronized double getTicksPerSecond()
+			{
+				long ticks = this.ticks, time = System.nanoTime();
+				double ticksPerSecond = (ticks - lastTicks) / ((time - lastTicksTime) / 1e9);
+				lastTicks = ticks;
+				lastTicksTime = time;
+				return ticksPerSecond;
+			}
+
+		@Override
+		public final int getParticleCount()
+			{
+				return particles.size;
+			}
+
+		@Override
+		public final long getSunkParticleCount()
+			{
+				return totalSunkParticles;
+			}
+
+		@Override
+		public final int getThreads()
+			{
+				return workers.getThreads();
+			}
+
+		@Override
+		public final long getDroppedTicks()
+			{
+				return scheduler.getDroppedTicks();
+			}
+
+		/**
+		 * Updates every block of particles in parallel, particles that sink out of the simulation are only recorded, see {@link #removeSunkParticles()}.
+		 * 
+		 * @param pace
+		 *            - The number of minutes passing during this step
+		 */
+		final void moveParticles(final double pace)
+			{
+				Telemetry.ParticlePassEvent event = new Telemetry.ParticlePassEvent();
+				event.begin();
+
+				int numBlocks = (particles.size + PARTICLE_BLOCK_SIZE - 1) / PARTICLE_BLOCK_SIZE;
+				workers.run(numBlocks, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int block)
 							{
-								// 1. Apply local currents to particle's movements
-								// 2. Deal with random movements of particle
-								// 3. If a particle has left the boundaries of the water column, correct it
-
-								 p.x += 0.05 * (vecField.getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, Axis.x));
-								//p.x += getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, 'x');
-								p.x += (Rand.double_(-0.001, 0.001) * pace);
-
-								if (p.x >= width)
-									p.x -= width;
-								if (p.x < 0)
-									p.x += width;
-
-								 p.y += 0.05 * (vecField.getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, Axis.y));
-								//p.y += getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, 'y');
-								p.y += (Rand.double_(-0.001, 0.001) * pace);
-								p.y += pace * particleSinkingRate; // Make the particles sink
-
-								if (p.y > depth) // If below the sea floor
-									iter.remove(); // Remove from simulation
-								else if (p.y < 0) // If above surface
-									p.y = 0; // Return to surface
-
-								 p.z += 0.05 * (vecField.getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, Axis.z));
-								//p.z += getVelocityAt(p.x / chunkSize, p.y / chunkSize, p.z / chunkSize, 'z');
-								p.z += (Rand.double_(-0.001, 0.001) * pace);
-
-								if (p.z >= width)
-									p.z -= width;
-								if (p.z < 0)
-									p.z += width;
+								int start = block * PARTICLE_BLOCK_SIZE;
+								tickParticles(block, start, Math.min(start + PARTICLE_BLOCK_SIZE, particles.size), pace);
 							}
+					});
+
+				if (event.shouldCommit())
+					{
+						event.particles = particles.size;
+						event.blocks = numBlocks;
+						event.threads = workers.getThreads();
+						event.commit();
 					}
+			}
+
+		/**
+		 * Removes the particles that sank out of the simulation during the last call to {@link #moveParticles(double)}, once every block is finished.
+		 */
+		final void removeSunkParticles()
+			{
+				/*
+				 * Removing a particle moves the last particle into its place, so removing them from the highest index to the lowest guarantees that every particle
+				 * moved has already been updated and has not sunk.
+				 */
+				for (int block = (particles.size + PARTICLE_BLOCK_SIZE - 1) / PARTICLE_BLOCK_SIZE - 1; block >= 0; block--)
+					{
+						for (int i = numSunkParticles[block] - 1; i >= 0; i--)
+							particles.remove(sunkParticles[block * PARTICLE_BLOCK_SIZE + i]);
+						numSunkParticles[block] = 0;
+					}
+			}
 
-				if (Rand.percent() > 90)
-					vecField.stepSimulation();
+		/**
+		 * Tells the light field about every particle that moved between chunks during the last call to {@link #moveParticles(double)}, in the same order
+		 * every time, and recalculates the light.
+		 */
+		final void updateLight()
+			{
+				for (int block = 0; block < numChunkMoves.length; block++)
+					{
+						for (int m = block * PARTICLE_BLOCK_SIZE * 2, end = m + numChunkMoves[block] * 2; m < end; m += 2)
+							{
+								light.add(chunkMoves[m], -1);
+								if (chunkMoves[m + 1] >= 0)
+									light.add(chunkMoves[m + 1], 1);
+							}
+						numChunkMoves[block] = 0;
+					}
 
-				// TODO Add logic to chunks to allow tracking of nutrients/light levels e.t.c...
-				for (int x = 0; x < chunks.length; x++)
-					for (int y = 0; y < mixedLayerDepth; y++)
-						for (int z = 0; z < chunks[0][0].length; z++)
-							chunks[x][y][z].tick(this.pace);
+				light.update();
+			}
+
+		/**
+		 * Updates the position of a block of particles, this may be called from any of the worker threads so it must only modify the particles in its own
+		 * block.
+		 * 
+		 * @param block
+		 *            - The index of the block being updated
+		 * @param start
+		 *            - The index of the first particle in the block
+		 * @param end
+		 *            - The index after the last particle in the block
+		 * @param pace
+		 *            - The number of minutes passing during this tick
+		 */
+		private final void tickParticles(int block, int start, int end, double pace)
+			{
+				double[] px = particles.x, py = particles.y, pz = particles.z;
+				int numSunk = 0, numMoves = 0;
+
+				BlockBuffers buffers = blockBuffers.get();
+				if (buffers == null)
+					{
+						buffers = new BlockBuffers();
+						blockBuffers.set(buffers);
+					}
+
+				// Find the local currents and generate the random movements of every particle in the block in one go, 3 of each per particle
+				double[] velocities = buffers.velocities;
+				vecField.getVelocitiesAt(px, py, pz, start, end, 1 / chunkSize, velocities);
+				double[] randomMovements = buffers.randomMovements;
+				blockRandoms[block].fillUniform(randomMovements, 0, 3 * (end - start), -0.001 * pace, 0.001 * pace);
+
+				for (int i = start, r = 0; i < end; i++, r += 3)
+					{
+						// 1. Apply local currents to particle's movements
+						// 2. Deal with random movements of particle
+						// 3. If a particle has left the boundaries of the water column, correct it
+						// 4. Record the particle moving to a different chunk, so that the light can be recalculated
+
+						// Particles sink faster the less light reaches them
+						int chunk = chunks.getIndex(px[i], py[i], pz[i]);
+						double sinkingRate = particleSinkingRate * (darkSinkingFactor - (darkSinkingFactor - 1) * light.getLight(chunk));
+
+						px[i] += 0.05 * velocities[r];
+						px[i] += randomMovements[r];
+
+						if (px[i] >= width)
+							px[i] -= width;
+						if (px[i] < 0)
+							px[i] += width;
+
+						py[i] += 0.05 * velocities[r + 1];
+						py[i] += randomMovements[r + 1];
+						py[i] += pace * sinkingRate; // Make the particles sink
+
+						if (py[i] > depth) // If below the sea floor
+							{
+								sunkParticles[start + numSunk++] = i; // Remove from simulation once every block has been updated
+								chunkMoves[2 * (start + numMoves)] = chunk;
+								chunkMoves[2 * (start + numMoves++) + 1] = -1;
+								continue;
+							}
+						else if (py[i] < 0) // If above surface
+							py[i] = 0; // Return to surface
+
+						pz[i] += 0.05 * velocities[r + 2];
+						pz[i] += randomMovements[r + 2];
+
+						if (pz[i] >= width)
+							pz[i] -= width;
+						if (pz[i] < 0)
+							pz[i] += width;
+
+						// Always written, but only kept if the chunk changed, as whether a particle changes chunk is too random for the CPU to predict
+						int newChunk = chunks.getIndex(px[i], py[i], pz[i]);
+						chunkMoves[2 * (start + numMoves)] = chunk;
+						chunkMoves[2 * (start + numMoves) + 1] = newChunk;
+						numMoves += newChunk != chunk ? 1 : 0;
+					}
+
+				numSunkParticles[block] = numSunk;
+				numChunkMoves[block] = numMoves;
 			}
 
 		/**
@@ -149,7 +736,10 @@ public class Simulation extends RenderableObject
 				g.fillRect(0, 0, Main.canvasWidth, Main.canvasHeight);
 
 				// Visualise data in the water column, there are a number of views to chose from allowing different data to be viewed
+				final Metrics metrics = this.metrics;
+				long start = metrics.startTimer();
 				Main.graphicalOutput.drawWaterColumn(g);
+				metrics.stopTimer(Metrics.Metric.RENDER, start);
 			}
 
 		// Old method used to take snapshots of the watercolumn as they looked in older versions
@@ -225,12 +815,24 @@ public class Simulation extends RenderableObject
 //				// return 0;
 //			}
 
+		/**
+		 * Working memory used while updating a block of particles, each thread has its own so that nothing is allocated during a tick.
+		 */
+		private static class BlockBuffers
+			{
+				final double[] velocities = new double[3 * PARTICLE_BLOCK_SIZE];
+				final double[] randomMovements = new double[3 * PARTICLE_BLOCK_SIZE];
+			}
+
 		// The following methods pass user input to the GraphicalOutput class so it knows what to show:
 
 		@Override
 		public final void keyPressed(KeyEvent event)
 			{
-				Main.graphicalOutput.keyPressed(event);
+				if (event.getKeyChar() == 'c')
+					checkpointRequested = true;
+				else
+					Main.graphicalOutput.keyPressed(event);
 			}
 
 		@Override
@@ -0,0 +1,39 @@
+package ParMod;
+
+/**
+ * The live state of a running {@link Simulation}, as seen by JMX clients, see {@link Telemetry}.
+ *
+ * @author Sebastian Troy
+ */
+public interface SimulationMXBean
+	{
+		/**
+		 * @return - The number of ticks carried out since the simulation began
+		 */
+		long getTicks();
+
+		/**
+		 * @return - The number of ticks carried out per second since this was last read, or since the simulation began
+		 */
+		double getTicksPerSecond();
+
+		/**
+		 * @return - The number of ticks that fell due on screen but were dropped because the simulation couldn't keep up, see {@link StepScheduler}
+		 */
+		long getDroppedTicks();
+
+		/**
+		 * @return - The number of particles still in the simulation
+		 */
+		int getParticleCount();
+
+		/**
+		 * @return - The number of particles that have sunk out of the simulation since it began
+		 */
+		long getSunkParticleCount();
+
+		/**
+		 * @return - The number of threads that the work is shared between
+		 */
+		int getThreads();
+	}
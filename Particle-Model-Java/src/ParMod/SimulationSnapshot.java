@@ -0,0 +1,89 @@
+package ParMod;
+
+import ParMod.VectorField.Axis;
+
+/**
+ * A copy of everything drawn by {@link GraphicalOutput}, taken at the end of a tick, so that it can be drawn on another thread while the {@link Simulation}
+ * carries on. Snapshots are handed between the threads by a {@link SnapshotBuffer} and reused, so a snapshot only allocates memory when the number of
+ * particles grows.
+ * <p>
+ * The velocities are stored as floats, which are more than precise enough to draw, and are only copied when the {@link VectorField} has stepped since the
+ * snapshot last held them.
+ *
+ * @author Sebastian Troy
+ */
+final class SimulationSnapshot
+	{
+		/**
+		 * The number of ticks the simulation had carried out when the snapshot was taken.
+		 */
+		long tick = -1;
+
+		/**
+		 * The positions of the particles, only the positions and ids are copied.
+		 */
+		final ParticleStore particles = new ParticleStore(0);
+
+		private int xSize, ySize, layerSize; // The size of the vector field
+		private float[] xVel = new float[0], yVel = new float[0], zVel = new float[0];
+		private long fieldSteps = -1; // The number of steps the vector field had taken when its velocities were copied
+
+		/**
+		 * Copies the current state of a simulation. This must be called between ticks, from the thread running the simulation.
+		 *
+		 * @param fieldSteps
+		 *            - The number of times the vector field has stepped, the velocities are only copied if this has changed
+		 */
+		final void copy(Simulation sim, long tick, long fieldSteps)
+			{
+				this.tick = tick;
+				particles.copyPositions(sim.particles);
+
+				if (fieldSteps != this.fieldSteps)
+					{
+						VectorField vecField = sim.vecField;
+						xSize = vecField.getXSize();
+						ySize = vecField.getYSize();
+						layerSize = xSize * vecField.getZSize();
+						xVel = copy(vecField.getVelocities(Axis.x), xVel);
+						yVel = copy(vecField.getVelocities(Axis.y), yVel);
+						zVel = copy(vecField.getVelocities(Axis.z), zVel);
+						this.fieldSteps = fieldSteps;
+					}
+			}
+
+		/**
+		 * @return - The velocities in the buffer, in the array if it is large enough and otherwise in a new one
+		 */
+		private static float[] copy(FieldBuffer velocities, float[] array)
+			{
+				if (array.length != velocities.size)
+					array = new float[(int) velocities.size];
+				for (int i = 0; i < array.length; i++)
+					array[i] = (float) velocities.get(i);
+				return array;
+			}
+
+		/**
+		 * @return - The velocity of the chunk at the specified coordinates when the snapshot was taken, see {@link VectorField#getVelocityAt(int, int, int, Axis)}
+		 */
+		final double getVelocityAt(int x, int y, int z, Axis axis)
+			{
+				// If the requested velocity is below of the mixed layer
+				if (y >= ySize)
+					return 0;
+
+				int index = x + (y * layerSize) + (z * xSize);
+				switch (axis)
+					{
+						case x:
+							return xVel[index];
+						case y:
+							return yVel[index];
+						case z:
+							return zVel[index];
+						default:
+							return 0;
+					}
+			}
+	}
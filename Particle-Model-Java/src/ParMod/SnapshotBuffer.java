@@ -0,0 +1,54 @@
+package ParMod;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands {@link SimulationSnapshot}s from the thread running the simulation to the thread drawing it, without either ever waiting for the other. There are
+ * three snapshots: one being written, one being drawn and the latest complete one in between. The writer swaps the snapshot it has just written with the
+ * one in between, and the reader swaps the one it has finished drawing with the one in between if it is newer, both with a single atomic exchange.
+ * <p>
+ * There is no point copying the simulation faster than it is drawn, so nothing is copied until the reader has taken the last snapshot published.
+ *
+ * @author Sebastian Troy
+ */
+final class SnapshotBuffer
+	{
+		private static final int INDEX = 3; // The bits of the state holding the index of the snapshot in between
+		private static final int FRESH = 4; // Set in the state when the snapshot in between has not been taken by the reader
+
+		private final SimulationSnapshot[] snapshots = { new SimulationSnapshot(), new SimulationSnapshot(), new SimulationSnapshot() };
+		private final AtomicInteger state = new AtomicInteger(1);
+		private int writing = 0; // Only used by the writer
+		private int reading = 2; // Only used by the reader
+
+		/**
+		 * Copies the simulation into a snapshot and makes it available to the reader, unless the reader has not yet taken the last one. Only one thread may
+		 * publish snapshots.
+		 *
+		 * @param fieldSteps
+		 *            - The number of times the vector field has stepped, see {@link SimulationSnapshot#copy(Simulation, long, long)}
+		 *
+		 * @return - True if a snapshot was published
+		 */
+		final boolean publish(Simulation sim, long tick, long fieldSteps)
+			{
+				if ((state.get() & FRESH) != 0)
+					return false;
+
+				snapshots[writing].copy(sim, tick, fieldSteps);
+				writing = state.getAndSet(writing | FRESH) & INDEX;
+				return true;
+			}
+
+		/**
+		 * Only one thread may read snapshots, and the snapshot returned must not be used after the next call.
+		 *
+		 * @return - The latest snapshot published, which has a tick of -1 if nothing has been published yet
+		 */
+		final SimulationSnapshot latest()
+			{
+				if ((state.get() & FRESH) != 0)
+					reading = state.getAndSet(reading) & INDEX;
+				return snapshots[reading];
+			}
+	}
@@ -0,0 +1,350 @@
+package ParMod;
+
+/**
+ * Solves for pressure exactly, in a single pass, by taking advantage of the x & z axes wrapping around. Along those axes the pressure can be broken up into
+ * waves using a Fourier transform, and each wave can be solved for separately. For each pair of x & z wave numbers that leaves a simple equation down the y
+ * axis, between the surface and thermocline, which is solved directly using the Thomas algorithm for tridiagonal matrices.
+ * <p>
+ * The work is O(N log N) for N chunks and there is no number of iterations to choose. All memory is allocated when the solver is created, and each
+ * stage is shared between threads, the layers during the Fourier transforms and the wave number pairs while solving down the y axis.
+ *
+ * @author Sebastian Troy
+ */
+class SpectralSolver implements PressureSolver
+	{
+		private final PoissonGrid grid;
+		private final WorkerPool workers;
+
+		// The Fourier transform of the pressure, for every layer
+		private final double[] re, im;
+
+		/*
+		 * How the equation for each wave differs from that of a flat (0 wave number) pressure field, for each x & z wave number. Each is 2 * cos(2 * PI * k /
+		 * n) - 2, multiplied by the coupling along the axis.
+		 */
+		private final double[] xEigenvalues, zEigenvalues;
+
+		// The working memory for each task
+		private final int numTasks;
+		private final TaskMemory[] taskMemory;
+
+		// The results of the last solve
+		private int iterations = 0;
+		private double residual = 0;
+
+		// The data being worked on by the tasks below, and the sums calculated by each layer
+		private double[] p, div;
+		private double meanDiv;
+		private final double[] layerSums, layerSquares;
+
+		private final WorkerPool.Task divergenceTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = grid.sum(div, task + 1);
+						layerSquares[task] = grid.sumOfSquares(div, task + 1);
+					}
+			};
+
+		private final WorkerPool.Task forwardTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						int layers = grid.getInteriorLayers();
+						for (int y = 1 + (task * layers / numTasks), end = 1 + ((task + 1) * layers / numTasks); y < end; y++)
+							transformLayer(y, taskMemory[task], true);
+					}
+			};
+
+		private final WorkerPool.Task tridiagonalTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						for (int wave = task * grid.layerSize / numTasks, end = (task + 1) * grid.layerSize / numTasks; wave < end; wave++)
+							solveWave(wave, taskMemory[task]);
+					}
+			};
+
+		private final WorkerPool.Task inverseTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						int layers = grid.getInteriorLayers();
+						for (int y = 1 + (task * layers / numTasks), end = 1 + ((task + 1) * layers / numTasks); y < end; y++)
+							transformLayer(y, taskMemory[task], false);
+					}
+			};
+
+		private final WorkerPool.Task residualTask = new WorkerPool.Task()
+			{
+				@Override
+				public void run(int task)
+					{
+						layerSums[task] = grid.residual(p, div, meanDiv, null, task + 1);
+					}
+			};
+
+		/**
+		 * @param grid
+		 *            - The grid to be solved
+		 * @param workers
+		 *            - The threads that the work will be shared between
+		 */
+		SpectralSolver(PoissonGrid grid, WorkerPool workers)
+			{
+				this.grid = grid;
+				this.workers = workers;
+
+				re = new double[grid.size];
+				im = new double[grid.size];
+
+				xEigenvalues = new double[grid.xSize];
+				for (int k = 0; k < grid.xSize; k++)
+					xEigenvalues[k] = grid.xCoupling * ((2 * Math.cos(2 * Math.PI * k / grid.xSize)) - 2);
+				zEigenvalues = new double[grid.zSize];
+				for (int k = 0; k < grid.zSize; k++)
+					zEigenvalues[k] = grid.zCoupling * ((2 * Math.cos(2 * Math.PI * k / grid.zSize)) - 2);
+
+				// A few tasks per thread lets busy threads share their work, the results do not depend on the number of tasks
+				numTasks = Math.max(1, Math.min(grid.getInteriorLayers(), 4 * workers.getThreads()));
+				taskMemory = new TaskMemory[numTasks];
+				for (int i = 0; i < numTasks; i++)
+					taskMemory[i] = new TaskMemory(grid);
+
+				layerSums = new double[grid.getInteriorLayers()];
+				layerSquares = new double[grid.getInteriorLayers()];
+			}
+
+		@Override
+		public int solve(double[] p, double[] div)
+			{
+				this.p = p;
+				this.div = div;
+
+				// The mean divergence must be removed, see PoissonGrid
+				int layers = grid.getInteriorLayers();
+				workers.run(layers, divergenceTask);
+				int cells = layers * grid.layerSize;
+				meanDiv = sum(layerSums) / cells;
+				double divergenceNorm = Math.sqrt(Math.max(0, sum(layerSquares) - (cells * meanDiv * meanDiv)));
+
+				iterations = 0;
+				residual = 0;
+				if (divergenceNorm == 0)
+					return 0;
+
+				workers.run(numTasks, forwardTask);
+				workers.run(numTasks, tridiagonalTask);
+				workers.run(numTasks, inverseTask);
+				grid.copySurfaceAndThermocline(p);
+
+				// The solution is exact, apart from rounding errors, but the residual is still measured so that it can be reported
+				workers.run(layers, residualTask);
+				residual = Math.sqrt(sum(layerSums)) / divergenceNorm;
+				iterations = 1;
+
+				return iterations;
+			}
+
+		@Override
+		public int getIterations()
+			{
+				return iterations;
+			}
+
+		@Override
+		public double getResidual(int iteration)
+			{
+				return residual;
+			}
+
+		@Override
+		public double getResidual()
+			{
+				return residual;
+			}
+
+		/**
+		 * Has no effect, the pressure is always solved exactly.
+		 */
+		@Override
+		public void setTolerance(double tolerance)
+			{}
+
+		/**
+		 * Has no effect, the pressure is always solved in a single pass.
+		 */
+		@Override
+		public void setMaxIterations(int maxIterations)
+			{}
+
+		/**
+		 * Transforms a single layer along the x axis and then the z axis, or back again.
+		 *
+		 * @param forward
+		 *            - If true the divergence is transformed into re & im, otherwise re & im are transformed back into the pressure
+		 */
+		private final void transformLayer(int y, TaskMemory memory, boolean forward)
+			{
+				int layer = y * grid.layerSize;
+				double[] lineRe = memory.lineRe, lineIm = memory.lineIm;
+
+				if (forward)
+					{
+						for (int k = layer, end = layer + grid.layerSize; k < end; k++)
+							{
+								re[k] = div[k] - meanDiv;
+								im[k] = 0;
+							}
+
+						// Every row along the x axis
+						for (int z = 0; z < grid.zSize; z++)
+							{
+								int row = layer + (z * grid.xSize);
+								System.arraycopy(re, row, lineRe, 0, grid.xSize);
+								System.arraycopy(im, row, lineIm, 0, grid.xSize);
+								memory.xFFT.forward(lineRe, lineIm);
+								System.arraycopy(lineRe, 0, re, row, grid.xSize);
+								System.arraycopy(lineIm, 0, im, row, grid.xSize);
+							}
+					}
+
+				// Every row along the z axis
+				if (grid.zSize > 1)
+					for (int x = 0; x < grid.xSize; x++)
+						{
+							for (int z = 0, k = layer + x; z < grid.zSize; z++, k += grid.xSize)
+								{
+									lineRe[z] = re[k];
+									lineIm[z] = im[k];
+								}
+
+							if (forward)
+								memory.zFFT.forward(lineRe, lineIm);
+							else
+								memory.zFFT.inverse(lineRe, lineIm);
+
+							for (int z = 0, k = layer + x; z < grid.zSize; z++, k += grid.xSize)
+								{
+									re[k] = lineRe[z];
+									im[k] = lineIm[z];
+								}
+						}
+
+				if (!forward)
+					{
+						// Every row along the x axis, only the real part of the result is needed
+						double scale = 1.0 / grid.layerSize;
+						for (int z = 0; z < grid.zSize; z++)
+							{
+								int row = layer + (z * grid.xSize);
+								System.arraycopy(re, row, lineRe, 0, grid.xSize);
+								System.arraycopy(im, row, lineIm, 0, grid.xSize);
+								memory.xFFT.inverse(lineRe, lineIm);
+								for (int x = 0; x < grid.xSize; x++)
+									p[row + x] = lineRe[x] * scale;
+							}
+					}
+			}
+
+		/**
+		 * Solves down the y axis for a single pair of x & z wave numbers. For each interior layer j the transformed pressure P satisfies:<br>
+		 * yCoupling * (P[j - 1] + P[j + 1] - 2 * P[j]) + (xEigenvalue + zEigenvalue) * P[j] = -D[j]<br>
+		 * where D is the transformed divergence and the surface and thermocline layers copy their neighbour.
+		 *
+		 * @param wave
+		 *            - x wave number + (z wave number * xSize), i.e. the index of the wave within a layer
+		 */
+		private final void solveWave(int wave, TaskMemory memory)
+			{
+				int layers = grid.getInteriorLayers(), layerSize = grid.layerSize;
+				double c = grid.yCoupling;
+				double eigenvalue = xEigenvalues[wave % grid.xSize] + zEigenvalues[wave / grid.xSize];
+				double[] cPrime = memory.cPrime;
+
+				if (eigenvalue > -1e-12 * c)
+					{
+						/*
+						 * A flat pressure field has no unique solution, as any constant can be added to it. So the first layer is set to 0 and every other layer
+						 * follows from the one above it, then the mean is removed.
+						 */
+						double pRe = 0, pIm = 0, previousRe = 0, previousIm = 0, sumRe = 0, sumIm = 0;
+						for (int j = 1, k = layerSize + wave; j <= layers; j++, k += layerSize)
+							{
+								double dRe = -re[k], dIm = -im[k];
+								re[k] = pRe;
+								im[k] = pIm;
+								sumRe += pRe;
+								sumIm += pIm;
+
+								// The equation for layer j gives the pressure in layer j + 1
+								double diagonal = (j == 1 || j == layers) ? -c : -2 * c;
+								double nextRe = ((dRe - (diagonal * pRe)) - (j == 1 ? 0 : c * previousRe)) / c;
+								double nextIm = ((dIm - (diagonal * pIm)) - (j == 1 ? 0 : c * previousIm)) / c;
+								previousRe = pRe;
+								previousIm = pIm;
+								pRe = nextRe;
+								pIm = nextIm;
+							}
+
+						for (int j = 1, k = layerSize + wave; j <= layers; j++, k += layerSize)
+							{
+								re[k] -= sumRe / layers;
+								im[k] -= sumIm / layers;
+							}
+						return;
+					}
+
+				// Thomas algorithm, eliminate the lower diagonal working down...
+				double previousCPrime = 0, previousRe = 0, previousIm = 0;
+				for (int j = 1, k = layerSize + wave; j <= layers; j++, k += layerSize)
+					{
+						double diagonal = eigenvalue - (((j == 1 ? 0 : 1) + (j == layers ? 0 : 1)) * c);
+						double denominator = diagonal - (j == 1 ? 0 : c * previousCPrime);
+
+						previousCPrime = cPrime[j] = c / denominator;
+						previousRe = re[k] = (-re[k] - (j == 1 ? 0 : c * previousRe)) / denominator;
+						previousIm = im[k] = (-im[k] - (j == 1 ? 0 : c * previousIm)) / denominator;
+					}
+
+				// ...then substitute back working up
+				for (int j = layers - 1, k = (j * layerSize) + wave; j >= 1; j--, k -= layerSize)
+					{
+						re[k] -= cPrime[j] * re[k + layerSize];
+						im[k] -= cPrime[j] * im[k + layerSize];
+					}
+			}
+
+		/**
+		 * Adds up the sums calculated by each layer, always in the same order so that the total is the same whichever threads calculated them.
+		 */
+		private static double sum(double[] layerSums)
+			{
+				double sum = 0;
+				for (double layerSum : layerSums)
+					sum += layerSum;
+				return sum;
+			}
+
+		/**
+		 * The memory used by a single task, so that tasks running at the same time don't interfere with each other.
+		 */
+		private static class TaskMemory
+			{
+				final FFT xFFT, zFFT;
+				final double[] lineRe, lineIm, cPrime;
+
+				TaskMemory(PoissonGrid grid)
+					{
+						xFFT = new FFT(grid.xSize);
+						zFFT = new FFT(grid.zSize);
+						lineRe = new double[Math.max(grid.xSize, grid.zSize)];
+						lineIm = new double[Math.max(grid.xSize, grid.zSize)];
+						cPrime = new double[grid.ySize];
+					}
+			}
+	}
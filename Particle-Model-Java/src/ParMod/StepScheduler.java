@@ -0,0 +1,155 @@
+package ParMod;
+
+/**
+ * Decides when the on-screen {@link Simulation} takes each tick. Every tick advances the model by the same number of minutes, its pace, so the results
+ * only depend on the seed and never on how fast the computer is or how often the display is drawn. The scheduler only decides how many ticks are carried
+ * out per second of real time.
+ * <p>
+ * Ticks fall due at a fixed rate, and the simulation thread sleeps while none are due. Due ticks are carried out in a batch, but only for as long as the
+ * budget of a batch allows, so a snapshot is always published, and user input is acted on, at least once per budget. If the simulation can't keep up the
+ * ticks it didn't get to are either kept, to be caught up on as soon as possible, or dropped, in which case the model falls behind real time instead. At
+ * most {@link #MAX_BACKLOG} ticks are ever kept, so that a long pause, e.g. while a checkpoint is copied, doesn't leave the model racing to catch up
+ * long afterwards.
+ *
+ * @author Sebastian Troy
+ */
+final class StepScheduler
+	{
+		/**
+		 * What happens to the ticks that fall due while the simulation is behind
+		 */
+		enum Policy
+			{
+				CATCH_UP("Catch up"), DROP("Drop ticks");
+
+				final String description;
+
+				private Policy(String description)
+					{
+						this.description = description;
+					}
+			}
+
+		/**
+		 * The most ticks that are kept to be caught up on.
+		 */
+		static final int MAX_BACKLOG = 100;
+
+		/**
+		 * The default number of ticks per second, the speed the model was watched at during development.
+		 */
+		static final double DEFAULT_TICKS_PER_SECOND = 5;
+
+		/**
+		 * The default longest time spent on a batch of ticks, in nanoseconds.
+		 */
+		static final long DEFAULT_BUDGET = 50000000L;
+
+		private final double ticksPerSecond;
+		private final long interval; // The time between ticks in nanoseconds, 0 to carry out ticks as fast as possible
+		private final Policy policy;
+		private final long budget;
+
+		private long nextTick; // When the next tick falls due
+		private boolean started = false;
+		private volatile long droppedTime = 0; // The total time in nanoseconds between ticks that were dropped
+
+		/**
+		 * @param ticksPerSecond
+		 *            - The number of ticks carried out per second of real time, or 0 to carry them out as fast as possible
+		 * @param policy
+		 *            - What happens to ticks that fall due while the simulation is behind
+		 * @param budget
+		 *            - The longest time in nanoseconds spent on a batch of ticks before the next batch is started
+		 */
+		StepScheduler(double ticksPerSecond, Policy policy, long budget)
+			{
+				if (ticksPerSecond < 0 || budget <= 0)
+					throw new IllegalArgumentException("Ticks can only be carried out at a rate >= 0 per second, with a budget > 0");
+
+				this.ticksPerSecond = ticksPerSecond;
+				interval = ticksPerSecond == 0 ? 0 : (long) (1000000000L / ticksPerSecond);
+				this.policy = policy;
+				this.budget = budget;
+			}
+
+		/**
+		 * Waits until at least one tick is due.
+		 *
+		 * @return - The number of ticks due
+		 */
+		final int waitForTicks() throws InterruptedException
+			{
+				if (interval == 0)
+					return 1;
+
+				long now = System.nanoTime();
+				if (!started)
+					{
+						nextTick = now;
+						started = true;
+					}
+				if (now < nextTick)
+					{
+						long wait = nextTick - now;
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+						now = Math.max(now + wait, System.nanoTime());
+					}
+
+				return (int) Math.min(MAX_BACKLOG, 1 + (now - nextTick) / interval);
+			}
+
+		/**
+		 * @param batchStart
+		 *            - When the first tick of the batch was started, see {@link System#nanoTime()}
+		 *
+		 * @return - True if another tick of the current batch can be started within its budget
+		 */
+		final boolean withinBudget(long batchStart)
+			{
+				return System.nanoTime() - batchStart < budget;
+			}
+
+		/**
+		 * Records the end of a batch of ticks.
+		 *
+		 * @param done
+		 *            - The number of ticks carried out
+		 */
+		final void finished(int done)
+			{
+				if (interval == 0)
+					return;
+
+				nextTick += done * interval;
+
+				// Forget any ticks that can't be caught up on
+				long earliest = System.nanoTime() - (policy == Policy.DROP ? 0 : (MAX_BACKLOG - 1) * interval);
+				if (nextTick < earliest)
+					{
+						droppedTime += earliest - nextTick;
+						nextTick = earliest;
+					}
+			}
+
+		/**
+		 * @return - The number of ticks carried out per second of real time, or 0 if they are carried out as fast as possible
+		 */
+		final double getTicksPerSecond()
+			{
+				return ticksPerSecond;
+			}
+
+		final Policy getPolicy()
+			{
+				return policy;
+			}
+
+		/**
+		 * @return - The number of ticks that fell due but were never carried out
+		 */
+		final long getDroppedTicks()
+			{
+				return interval == 0 ? 0 : droppedTime / interval;
+			}
+	}
@@ -0,0 +1,94 @@
+package ParMod;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Exposes a running model to standard JVM tools. The {@link Simulation} and its {@link VectorField} register MXBeans that can be read with JConsole or
+ * any other JMX client, under the domain ParMod, and each step of the vector field and each pass over the particles is recorded as a Flight Recorder event,
+ * so that a recording shows the phases of the model alongside garbage collection and allocation.
+ * <p>
+ * Flight Recorder events cost almost nothing unless a recording is running, e.g. java -XX:StartFlightRecording=filename=model.jfr ...
+ *
+ * @author Sebastian Troy
+ */
+final class Telemetry
+	{
+		private Telemetry()
+			{}
+
+		/**
+		 * Registers an MXBean with the platform MBean server, replacing any registered earlier with the same type, e.g. by the last {@link Simulation}.
+		 * Telemetry is never worth stopping the model for, so failures are only reported.
+		 *
+		 * @param type
+		 *            - The type of the bean, its name is ParMod:type=[type]
+		 * @param bean
+		 *            - An object implementing an interface whose name ends in MXBean
+		 */
+		static void register(String type, Object bean)
+			{
+				try
+					{
+						MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+						ObjectName name = new ObjectName("ParMod", "type", type);
+						if (server.isRegistered(name))
+							server.unregisterMBean(name);
+						server.registerMBean(bean, name);
+					}
+				catch (JMException e)
+					{
+						System.err.println("Unable to register the " + type + " MXBean: " + e);
+					}
+			}
+
+		/**
+		 * Recorded for every step of the {@link VectorField}, whether fixed or adaptive, see {@link VectorField#advance(double)}.
+		 */
+		@Name("ParMod.VectorFieldStep")
+		@Label("Vector Field Step")
+		@Category("Particle Model")
+		@Description("Advection and projection of the vector field")
+		static final class VectorFieldStepEvent extends Event
+			{
+				@Label("Solver")
+				String solver;
+
+				@Label("Chunks")
+				long chunks;
+
+				@Label("Solver Iterations")
+				int iterations;
+
+				@Label("Solver Residual")
+				double residual;
+			}
+
+		/**
+		 * Recorded for every call to {@link Simulation#moveParticles(double)}.
+		 */
+		@Name("ParMod.ParticlePass")
+		@Label("Particle Pass")
+		@Category("Particle Model")
+		@Description("Movement of every particle in the simulation")
+		static final class ParticlePassEvent extends Event
+			{
+				@Label("Particles")
+				int particles;
+
+				@Label("Blocks")
+				int blocks;
+
+				@Label("Threads")
+				int threads;
+			}
+	}
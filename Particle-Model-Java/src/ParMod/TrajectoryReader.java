@@ -0,0 +1,245 @@
+package ParMod;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the trajectories written by a {@link TrajectoryWriter}, a frame at a time. Frames are found using the index at the end of the file, if the file was
+ * never closed, e.g. because the program died, the frames are found by reading through the file instead and any incomplete frame at the end is ignored.
+ * <p>
+ * Usage: TrajectoryReader [file] [csv file], lists the frames in the file or converts the whole file to comma separated values of tick, id, x, y & z.
+ *
+ * @author Sebastian Troy
+ */
+public class TrajectoryReader
+	{
+		private final FileChannel channel;
+		private final boolean compressed;
+		private final long[] ticks, positions;
+
+		/**
+		 * @throws IOException
+		 *             - If the file cannot be read or is not a trajectory file
+		 */
+		TrajectoryReader(File file) throws IOException
+			{
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				try
+					{
+						ByteBuffer header = read(0, TrajectoryWriter.HEADER_SIZE);
+						if (header.getInt() != TrajectoryWriter.MAGIC)
+							throw new IOException(file + " is not a trajectory file");
+						int version = header.getInt();
+						if (version > TrajectoryWriter.VERSION)
+							throw new IOException(file + " was written by a later version of the model (format " + version + ")");
+						compressed = (header.getInt() & TrajectoryWriter.FLAG_COMPRESSED) != 0;
+
+						// Use the index if the file was closed properly, otherwise find the frames one by one
+						ByteBuffer footer = channel.size() < TrajectoryWriter.HEADER_SIZE + TrajectoryWriter.FOOTER_SIZE ? null : read(channel.size()
+								- TrajectoryWriter.FOOTER_SIZE, TrajectoryWriter.FOOTER_SIZE);
+						if (footer != null && footer.getInt(12) == TrajectoryWriter.MAGIC)
+							{
+								long indexPosition = footer.getLong();
+								int numFrames = footer.getInt();
+								ticks = new long[numFrames];
+								positions = new long[numFrames];
+								ByteBuffer index = read(indexPosition, numFrames * TrajectoryWriter.INDEX_ENTRY_SIZE);
+								for (int i = 0; i < numFrames; i++)
+									{
+										ticks[i] = index.getLong();
+										positions[i] = index.getLong();
+										index.getInt();
+									}
+							}
+						else
+							{
+								long[] ticks = new long[64], positions = new long[64];
+								int numFrames = 0;
+								for (long position = TrajectoryWriter.HEADER_SIZE; position + 12 <= channel.size();)
+									{
+										long framePosition = position;
+										ByteBuffer frameHeader = read(position, 12);
+										long tick = frameHeader.getLong();
+										int remaining = frameHeader.getInt();
+										position += 12;
+										while (remaining > 0 && position + 9 <= channel.size())
+											{
+												ByteBuffer chunkHeader = read(position, 9);
+												remaining -= chunkHeader.getInt();
+												chunkHeader.get();
+												position += 9 + chunkHeader.getInt();
+											}
+										if (remaining > 0 || position > channel.size())
+											break; // Incomplete frame
+
+										if (numFrames == ticks.length)
+											{
+												ticks = Arrays.copyOf(ticks, numFrames * 2);
+												positions = Arrays.copyOf(positions, numFrames * 2);
+											}
+										ticks[numFrames] = tick;
+										positions[numFrames++] = framePosition;
+									}
+								this.ticks = Arrays.copyOf(ticks, numFrames);
+								this.positions = Arrays.copyOf(positions, numFrames);
+							}
+					}
+				catch (IOException e)
+					{
+						channel.close();
+						throw e;
+					}
+			}
+
+		/**
+		 * @return - The number of frames in the file
+		 */
+		final int getNumFrames()
+			{
+				return ticks.length;
+			}
+
+		/**
+		 * @return - The tick at which the specified frame was recorded
+		 */
+		final long getTick(int frame)
+			{
+				return ticks[frame];
+			}
+
+		/**
+		 * @return - The index of the frame recorded at the specified tick, or -1 if there isn't one
+		 */
+		final int indexOf(long tick)
+			{
+				int index = Arrays.binarySearch(ticks, tick);
+				return index < 0 ? -1 : index;
+			}
+
+		/**
+		 * @param frame
+		 *            - From 0 to {@link #getNumFrames()} - 1
+		 *
+		 * @return - The particles recorded in the specified frame
+		 */
+		final TrajectoryWriter.Frame read(int frame) throws IOException
+			{
+				long position = positions[frame];
+				ByteBuffer frameHeader = read(position, 12);
+				TrajectoryWriter.Frame result = new TrajectoryWriter.Frame(frameHeader.getLong(), frameHeader.getInt());
+				position += 12;
+
+				Inflater inflater = compressed ? new Inflater() : null;
+				try
+					{
+						for (int start = 0; start < result.ids.length;)
+							{
+								ByteBuffer chunkHeader = read(position, 9);
+								int count = chunkHeader.getInt();
+								boolean isCompressed = chunkHeader.get() == 1;
+								int length = chunkHeader.getInt();
+								position += 9;
+
+								ByteBuffer body = read(position, length);
+								position += length;
+								if (isCompressed)
+									{
+										byte[] raw = new byte[count * 16];
+										inflater.reset();
+										inflater.setInput(body.array(), 0, length);
+										if (inflater.inflate(raw) != raw.length)
+											throw new IOException("Frame " + frame + " is corrupt");
+										body = ByteBuffer.wrap(raw);
+									}
+
+								for (int i = start; i < start + count; i++)
+									result.ids[i] = body.getInt();
+								for (int i = start; i < start + count; i++)
+									result.x[i] = body.getFloat();
+								for (int i = start; i < start + count; i++)
+									result.y[i] = body.getFloat();
+								for (int i = start; i < start + count; i++)
+									result.z[i] = body.getFloat();
+								start += count;
+							}
+					}
+				catch (DataFormatException e)
+					{
+						throw new IOException("Frame " + frame + " is corrupt", e);
+					}
+				finally
+					{
+						if (inflater != null)
+							inflater.end();
+					}
+
+				return result;
+			}
+
+		final void close() throws IOException
+			{
+				channel.close();
+			}
+
+		/**
+		 * @return - The specified number of bytes from the specified position in the file
+		 */
+		private ByteBuffer read(long position, int length) throws IOException
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(length);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						throw new IOException("The trajectory file ends early");
+				buffer.flip();
+				return buffer;
+			}
+
+		public static void main(String[] args) throws IOException
+			{
+				if (args.length < 1)
+					{
+						System.err.println("Usage: TrajectoryReader [file] [csv file]");
+						System.exit(1);
+					}
+
+				TrajectoryReader reader = new TrajectoryReader(new File(args[0]));
+				try
+					{
+						if (args.length < 2)
+							{
+								System.out.println(reader.getNumFrames() + " frames");
+								for (int f = 0; f < reader.getNumFrames(); f++)
+									System.out.println("Tick " + reader.getTick(f) + ": " + reader.read(f).ids.length + " particles");
+								return;
+							}
+
+						Writer csv = new FileWriter(args[1]);
+						try
+							{
+								csv.write("tick,id,x,y,z\n");
+								for (int f = 0; f < reader.getNumFrames(); f++)
+									{
+										TrajectoryWriter.Frame frame = reader.read(f);
+										for (int i = 0; i < frame.ids.length; i++)
+											csv.write(frame.tick + "," + frame.ids[i] + "," + frame.x[i] + "," + frame.y[i] + "," + frame.z[i] + "\n");
+									}
+							}
+						finally
+							{
+								csv.close();
+							}
+					}
+				finally
+					{
+						reader.close();
+					}
+			}
+	}
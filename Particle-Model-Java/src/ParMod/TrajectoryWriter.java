@@ -0,0 +1,307 @@
+package ParMod;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Records the positions of a selection of particles every few ticks, so that their trajectories can be analysed once the simulation is finished. The
+ * positions are copied on the thread running the simulation and handed to a background thread through a bounded queue, if the background thread cannot keep
+ * up frames are dropped, and counted, rather than slowing the simulation down.
+ * <p>
+ * Particles are selected by their id, see {@link ParticleStore#id}. Only ids from minId (inclusive) to maxId (exclusive) that are a multiple of the stride
+ * are recorded, e.g. a stride of 1000 follows one particle in a thousand.
+ * <p>
+ * The file starts with a header of 3 ints, {@link #MAGIC}, {@link #VERSION} and a set of flags. Each recorded tick follows as a frame: the tick (long) and
+ * number of particles (int), and then the particles in chunks of up to {@link #CHUNK_SIZE}. A chunk is the number of particles (int), a byte that is 1 if
+ * the chunk is compressed and the number of bytes that follow (int). Once decompressed the chunk is stored by column, the ids (ints), and then the x, y & z
+ * coordinates in meters (floats). Once closed the file ends with an index of every frame, its tick (long), the position of the frame in the file (long) and
+ * number of particles (int), followed by the position of the index (long), the number of frames (int) and {@link #MAGIC} again. All values are
+ * big-endian. See {@link TrajectoryReader}.
+ *
+ * @author Sebastian Troy
+ */
+final class TrajectoryWriter
+	{
+		static final int MAGIC = 0x504D5452; // "PMTR"
+		static final int VERSION = 1;
+		static final int FLAG_COMPRESSED = 1;
+		static final int HEADER_SIZE = 12;
+		static final int FOOTER_SIZE = 16;
+		static final int INDEX_ENTRY_SIZE = 20;
+
+		/**
+		 * The largest number of particles stored in a single chunk of a frame.
+		 */
+		static final int CHUNK_SIZE = 1 << 16;
+
+		private final File file;
+		private final int every, stride, minId, maxId;
+		private final boolean compress;
+
+		private final BlockingQueue<Frame> queue;
+		private final Thread thread;
+		private volatile IOException error;
+		private volatile long framesDropped;
+
+		// The frame put on the queue to tell the background thread to finish
+		private static final Frame END = new Frame(-1, 0);
+
+		/**
+		 * @param file
+		 *            - Where the trajectories are written, any existing file is replaced
+		 * @param every
+		 *            - The number of ticks between frames
+		 * @param stride
+		 *            - Only particles whose id is a multiple of this are recorded, 1 to record every particle
+		 * @param minId
+		 *            - The smallest id recorded
+		 * @param maxId
+		 *            - The id after the largest id recorded
+		 * @param compress
+		 *            - True to compress each chunk of particles
+		 * @param queueSize
+		 *            - The number of frames that can wait to be written before new frames are dropped
+		 */
+		TrajectoryWriter(File file, int every, int stride, int minId, int maxId, boolean compress, int queueSize) throws IOException
+			{
+				if (every < 1 || stride < 1 || queueSize < 1)
+					throw new IllegalArgumentException("Frames must be written every n > 0 ticks, with a stride > 0 and a queue of at least 1");
+
+				this.file = file;
+				this.every = every;
+				this.stride = stride;
+				this.minId = Math.max(0, minId);
+				this.maxId = maxId;
+				this.compress = compress;
+
+				queue = new ArrayBlockingQueue<Frame>(queueSize);
+
+				final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				thread = new Thread("Trajectory writer")
+					{
+						@Override
+						public void run()
+							{
+								writeFrames(channel);
+							}
+					};
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+		/**
+		 * Copies the positions of the selected particles, if a frame is due at this tick. This must be called between ticks, from the thread running the
+		 * simulation.
+		 *
+		 * @param tick
+		 *            - The number of ticks carried out so far
+		 */
+		final void record(ParticleStore particles, long tick)
+			{
+				if (tick % every != 0)
+					return;
+
+				int[] id = particles.id;
+				int size = particles.size;
+
+				int count = 0;
+				for (int i = 0; i < size; i++)
+					if (isSelected(id[i]))
+						count++;
+
+				Frame frame = new Frame(tick, count);
+				for (int i = 0, f = 0; i < size; i++)
+					if (isSelected(id[i]))
+						{
+							frame.ids[f] = id[i];
+							frame.x[f] = (float) particles.x[i];
+							frame.y[f] = (float) particles.y[i];
+							frame.z[f] = (float) particles.z[i];
+							f++;
+						}
+
+				if (!queue.offer(frame))
+					framesDropped++;
+			}
+
+		private final boolean isSelected(int id)
+			{
+				return id >= minId && id < maxId && id % stride == 0;
+			}
+
+		/**
+		 * @return - The number of frames that were not recorded because the background thread had not finished writing the earlier ones
+		 */
+		final long getFramesDropped()
+			{
+				return framesDropped;
+			}
+
+		/**
+		 * Writes every frame still waiting, followed by the index, and closes the file.
+		 *
+		 * @throws IOException
+		 *             - If any part of the file could not be written
+		 */
+		final void close() throws IOException
+			{
+				try
+					{
+						// The background thread stops early if it fails, in which case nothing takes frames from the queue
+						while (thread.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS))
+							;
+						thread.join();
+					}
+				catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while finishing " + file, e);
+					}
+
+				if (error != null)
+					throw error;
+			}
+
+		/**
+		 * Run by the background thread until {@link #close()} is called.
+		 */
+		private void writeFrames(FileChannel channel)
+			{
+				Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+				ByteBuffer raw = ByteBuffer.allocate(CHUNK_SIZE * 16);
+				byte[] compressed = new byte[raw.capacity() + 1024];
+
+				// The index, each frame's tick, position and size, grown as needed
+				long[] ticks = new long[64], positions = new long[64];
+				int[] counts = new int[64];
+				int numFrames = 0;
+
+				try
+					{
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						header.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_COMPRESSED : 0).flip();
+						write(channel, header);
+
+						for (Frame frame = queue.take(); frame != END; frame = queue.take())
+							{
+								if (numFrames == ticks.length)
+									{
+										ticks = Arrays.copyOf(ticks, numFrames * 2);
+										positions = Arrays.copyOf(positions, numFrames * 2);
+										counts = Arrays.copyOf(counts, numFrames * 2);
+									}
+								ticks[numFrames] = frame.tick;
+								positions[numFrames] = channel.position();
+								counts[numFrames++] = frame.ids.length;
+
+								ByteBuffer frameHeader = ByteBuffer.allocate(12);
+								frameHeader.putLong(frame.tick).putInt(frame.ids.length).flip();
+								write(channel, frameHeader);
+
+								for (int start = 0; start < frame.ids.length; start += CHUNK_SIZE)
+									writeChunk(channel, frame, start, Math.min(start + CHUNK_SIZE, frame.ids.length), raw, deflater, compressed);
+							}
+
+						long indexPosition = channel.position();
+						ByteBuffer index = ByteBuffer.allocate(numFrames * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+						for (int i = 0; i < numFrames; i++)
+							index.putLong(ticks[i]).putLong(positions[i]).putInt(counts[i]);
+						index.putLong(indexPosition).putInt(numFrames).putInt(MAGIC).flip();
+						write(channel, index);
+					}
+				catch (IOException e)
+					{
+						error = e;
+					}
+				catch (InterruptedException e)
+					{
+						error = new IOException("Interrupted while writing " + file, e);
+					}
+				finally
+					{
+						if (deflater != null)
+							deflater.end();
+						try
+							{
+								channel.close();
+							}
+						catch (IOException e)
+							{
+								if (error == null)
+									error = e;
+							}
+					}
+			}
+
+		/**
+		 * Writes particles start to end - 1 of a frame as a single chunk.
+		 */
+		private static void writeChunk(FileChannel channel, Frame frame, int start, int end, ByteBuffer raw, Deflater deflater, byte[] compressed)
+				throws IOException
+			{
+				raw.clear();
+				for (int i = start; i < end; i++)
+					raw.putInt(frame.ids[i]);
+				for (int i = start; i < end; i++)
+					raw.putFloat(frame.x[i]);
+				for (int i = start; i < end; i++)
+					raw.putFloat(frame.y[i]);
+				for (int i = start; i < end; i++)
+					raw.putFloat(frame.z[i]);
+				raw.flip();
+
+				ByteBuffer body = raw;
+				boolean isCompressed = false;
+				if (deflater != null)
+					{
+						deflater.reset();
+						deflater.setInput(raw.array(), 0, raw.limit());
+						deflater.finish();
+						int length = deflater.deflate(compressed);
+						// Only keep the compressed chunk if it is complete and smaller
+						if (deflater.finished() && length < raw.limit())
+							{
+								body = ByteBuffer.wrap(compressed, 0, length);
+								isCompressed = true;
+							}
+					}
+
+				ByteBuffer chunkHeader = ByteBuffer.allocate(9);
+				chunkHeader.putInt(end - start).put((byte) (isCompressed ? 1 : 0)).putInt(body.remaining()).flip();
+				write(channel, chunkHeader);
+				write(channel, body);
+			}
+
+		private static void write(FileChannel channel, ByteBuffer data) throws IOException
+			{
+				while (data.hasRemaining())
+					channel.write(data);
+			}
+
+		/**
+		 * The selected particles at a single tick.
+		 */
+		static final class Frame
+			{
+				final long tick;
+				final int[] ids;
+				final float[] x, y, z;
+
+				Frame(long tick, int count)
+					{
+						this.tick = tick;
+						ids = new int[count];
+						x = new float[count];
+						y = new float[count];
+						z = new float[count];
+					}
+			}
+	}
@@ -1,17 +1,16 @@
 package ParMod;
 
-import tools.Rand;
 import tools.WindowTools;
 
 /**
  * This class holds all of the information and methods required to compute a vector field for the model. It is based on the Navier-Stokes equations.
  * <p>
- * The velocity data held here corresponds directly to the {@link Chunk}s in the mixed layer, i.e. the velocity of the chunk at 0, 1, 32 == the velocity stored
- * at velocity[getIndex(0, 1, 32)]
+ * The velocity data held here corresponds directly to the chunks in the mixed layer, i.e. the velocity of the chunk at 0, 1, 32 == the velocity stored
+ * at velocity.get(getIndex(0, 1, 32))
  * 
  * @author Sebastian Troy
  */
-public class VectorField
+public class VectorField implements VectorFieldMXBean
 	{
 		/**
 		 * Used to keep track of, and pass around, the axis currently being worked on between functions
@@ -22,13 +21,69 @@ public class VectorField
 			}
 
 		/**
-		 * The current velocities for each axis for each {@link Chunk} of the model. In total these represent a vector field.
+		 * The methods available for calculating the pressure field during each step, see {@link PressureSolver}
 		 */
-		private double[] xVel, yVel, zVel;
+		enum Solver
+			{
+				SOR("Red-Black SOR"), MULTIGRID("Multigrid"), SPECTRAL("Spectral (FFT)");
+
+				final String description;
+
+				private Solver(String description)
+					{
+						this.description = description;
+					}
+
+				/**
+				 * @return - A new solver of this type for the specified grid
+				 */
+				PressureSolver create(PoissonGrid grid, WorkerPool workers)
+					{
+						switch (this)
+							{
+								case MULTIGRID:
+									return new MultigridSolver(grid, workers);
+								case SPECTRAL:
+									return new SpectralSolver(grid, workers);
+								case SOR:
+								default:
+									return new RedBlackSORSolver(grid, workers);
+							}
+					}
+			}
+
+		/**
+		 * How the length of each step is chosen, see {@link VectorField#advance(double)}
+		 */
+		enum Stepping
+			{
+				FIXED("Fixed"), ADAPTIVE("Adaptive (CFL)");
+
+				final String description;
+
+				private Stepping(String description)
+					{
+						this.description = description;
+					}
+			}
+
+		/**
+		 * The current velocities for each axis for each chunk of the model. In total these represent a vector field.
+		 */
+		private FieldBuffer xVel, yVel, zVel;
 		/**
 		 * Temporary data storage used when calculating the velocities for the next step of the model.
 		 */
-		private double[] xVelP, yVelP, zVelP;
+		private FieldBuffer xVelP, yVelP, zVelP;
+		/**
+		 * The pressure calculated during the last step, it is kept so that it can be used as the starting point for the next step. The pressure and
+		 * divergence are always stored as doubles, as the {@link PressureSolver}s need the extra precision.
+		 */
+		private double[] pressure, divergence;
+		private PressureSolver pressureSolver;
+		private Solver solver;
+		private WorkerPool workers;
+		private volatile Metrics metrics = Metrics.NOOP;
 
 		/**
 		 * Where: <br>
@@ -40,45 +95,144 @@ public class VectorField
 		private int xSize, ySize, zSize, layerSize;
 
 		/**
-		 * An arbitrary value used to control how quickly pressure differences are resolved.
+		 * An arbitrary value used to control how quickly pressure differences are resolved, the length of every step unless the field is advanced
+		 * adaptively.
+		 */
+		static final double TIMESTEP = 0.1;
+
+		/**
+		 * The longest step taken when the field is advanced adaptively, however calm it is.
+		 */
+		static final double MAX_TIMESTEP = 10 * TIMESTEP;
+
+		/**
+		 * The furthest, in chunks along any axis, that a velocity may be traced back during an adaptive step. Any further and the back-trace skips over
+		 * chunks without ever sampling them.
+		 */
+		static final double MAX_COURANT = 1;
+
+		/**
+		 * The most steps taken by a single call to {@link #advance(double)}. A field moving too fast to keep up with falls behind, rather than holding up
+		 * the simulation indefinitely.
 		 */
-		private static final double TIMESTEP = 0.1;
+		static final int MAX_SUBSTEPS = 64;
+
+		/**
+		 * The friction applied to the velocities on the faces at the ends of the x & z axes during each fixed step, to prevent perpetual currents forming. It
+		 * is applied once, as the velocities are advected, since friction applied after the divergence has been removed would put some of it back.
+		 */
+		private static final double FRICTION = 0.95 * 0.95;
+
+		private double timestep = TIMESTEP; // The length of the step being taken
+		private double friction = FRICTION; // The friction applied on the faces at the ends of the x & z axes during the step being taken
+		private double pendingTime = 0; // Time passed that the field has not yet stepped through, when advanced adaptively
+		private double maxSpeed = 0; // The fastest velocity along any axis, found as the last step was projected and raised by any disturbance since
+		private double[] layerSpeeds; // The fastest velocity along any axis in each layer, found as the last step was projected
+
+		/**
+		 * True if the velocities are stored as floats, in which case the calculations that only involve velocities are carried out with floats too.
+		 */
+		private final boolean singlePrecision;
 
 		/**
 		 * Simply allocates the appropriate amount of memory for the Vector field.
 		 * 
 		 * @param width
-		 *            - The length of the short sides of the model in {@link Chunk}s
+		 *            - The length of the short sides of the model in chunks
 		 * @param depth
-		 *            - The depth of the mixed layer in {@link Chunk}s
+		 *            - The depth of the mixed layer in chunks
+		 * @param random
+		 *            - The random numbers used to create the initial currents
+		 * @param workers
+		 *            - The threads that the calculations will be shared between
+		 * @param solver
+		 *            - The method used to calculate the pressure field
+		 * @param precision
+		 *            - The precision with which the velocities are stored
+		 * @param storage
+		 *            - Where the velocities are stored, memory-mapped storage keeps the bulk of a large model off of the Java heap
 		 */
-		VectorField(int width, int depth)
+		VectorField(int width, int depth, RandomStream random, WorkerPool workers, Solver solver, FieldBuffer.Precision precision, FieldBuffer.Storage storage)
 			{
+				this(width, depth, workers, solver, precision, storage);
+
+				double vel = 0.1;
+
+				xVel.fillUniform(random, -vel, vel);
+				yVel.fillUniform(random, -vel, vel);
+				zVel.fillUniform(random, -vel, vel);
+
+				for (int i = 0; i < 100; i++)
+					stepSimulation();
+			}
+
+		/**
+		 * Recreates the vector field stored in a checkpoint, see {@link Simulation#Simulation(Checkpoint, int)}.
+		 *
+		 * @param workers
+		 *            - The threads that the calculations will be shared between
+		 */
+		VectorField(Checkpoint checkpoint, WorkerPool workers)
+			{
+				this(checkpoint.fieldWidth, checkpoint.fieldDepth, workers, checkpoint.solver, checkpoint.precision, checkpoint.storage);
+
+				xVel.copyFrom(checkpoint.xVel);
+				yVel.copyFrom(checkpoint.yVel);
+				zVel.copyFrom(checkpoint.zVel);
+				System.arraycopy(checkpoint.pressure, 0, pressure, 0, pressure.length);
+				pendingTime = checkpoint.fieldTime;
+				maxSpeed = Double.isNaN(checkpoint.fieldMaxSpeed) ? findMaxSpeed() : checkpoint.fieldMaxSpeed;
+			}
+
+		/**
+		 * Allocates the memory for a field with every velocity set to 0.
+		 */
+		private VectorField(int width, int depth, WorkerPool workers, Solver solver, FieldBuffer.Precision precision, FieldBuffer.Storage storage)
+			{
+				// The pressure solvers work on arrays, so however the velocities are stored the number of chunks is limited by the size of an array
+				long size = (long) width * width * depth;
+				if (size > FieldBuffer.MAX_SIZE)
+					throw new IllegalArgumentException("A vector field of " + size + " chunks is too large, the limit is " + FieldBuffer.MAX_SIZE);
+
 				// establish the bounds of the VectorField
 				xSize = zSize = width;
 				ySize = depth;
 				layerSize = xSize * zSize;
+				singlePrecision = precision == FieldBuffer.Precision.FLOAT;
 
 				// Allocate memory
-				xVel = new double[width * width * depth];
-				yVel = new double[width * width * depth];
-				zVel = new double[width * width * depth];
-
-				xVelP = xVel.clone();
-				yVelP = yVel.clone();
-				zVelP = zVel.clone();
+				xVel = FieldBuffer.allocate(precision, storage, size);
+				yVel = FieldBuffer.allocate(precision, storage, size);
+				zVel = FieldBuffer.allocate(precision, storage, size);
 
-				double vel = 0.1;
+				xVelP = FieldBuffer.allocate(precision, storage, size);
+				yVelP = FieldBuffer.allocate(precision, storage, size);
+				zVelP = FieldBuffer.allocate(precision, storage, size);
+				pressure = new double[(int) size];
+				divergence = new double[(int) size];
+				layerSpeeds = new double[depth];
 
-				for (int i = 0; i < xVel.length; i++)
-					xVel[i] = Rand.double_(-vel, vel);
-				for (int i = 0; i < yVel.length; i++)
-					yVel[i] = Rand.double_(-vel, vel);
-				for (int i = 0; i < zVel.length; i++)
-					zVel[i] = Rand.double_(-vel, vel);
+				this.workers = workers;
+				setPressureSolver(solver);
+			}
 
-				for (int i = 0; i < 100; i++)
-					stepSimulation();
+		/**
+		 * Copies the state of this field into a checkpoint, see {@link Simulation#checkpoint()}. Only the current velocities and pressure are needed, as the
+		 * rest is recalculated from them during each step.
+		 */
+		final void checkpoint(Checkpoint checkpoint)
+			{
+				checkpoint.fieldWidth = xSize;
+				checkpoint.fieldDepth = ySize;
+				checkpoint.solver = solver;
+				checkpoint.precision = xVel.getPrecision();
+				checkpoint.storage = xVel.getStorage();
+				checkpoint.xVel = xVel.duplicate();
+				checkpoint.yVel = yVel.duplicate();
+				checkpoint.zVel = zVel.duplicate();
+				checkpoint.pressure = pressure.clone();
+				checkpoint.fieldTime = pendingTime;
+				checkpoint.fieldMaxSpeed = maxSpeed;
 			}
 
 		final void addDisturbance(int radius, int chunkX, int chunkY, int chunkZ, double xVel, double yVel, double zVel)
@@ -106,26 +260,28 @@ public class VectorField
 									zIndex -= zSize;
 
 								int index = getIndex(xIndex, y, zIndex);
-								this.xVel[index] += xVel;
-								this.yVel[index] += yVel;
-								this.zVel[index] += zVel;
-								// System.out.println("(" + this.xVel[index] + ", " + this.yVel[index] + ", " + this.zVel[index] + ")");
+								this.xVel.add(index, xVel);
+								this.yVel.add(index, yVel);
+								this.zVel.add(index, zVel);
+								maxSpeed = Math.max(maxSpeed,
+										Math.max(Math.abs(this.xVel.get(index)), Math.max(Math.abs(this.yVel.get(index)), Math.abs(this.zVel.get(index)))));
+								// System.out.println("(" + this.xVel.get(index) + ", " + this.yVel.get(index) + ", " + this.zVel.get(index) + ")");
 							}
 			}
 
 		/**
-		 * The velocity at the centre of a specific {@link Chunk}
+		 * The velocity at the centre of a specific chunk
 		 * 
 		 * @param x
-		 *            - The x coordinate of the {@link Chunk}
+		 *            - The x coordinate of the chunk
 		 * @param y
-		 *            - The y coordinate of the {@link Chunk}
+		 *            - The y coordinate of the chunk
 		 * @param z
-		 *            - The z coordinate of the {@link Chunk}
+		 *            - The z coordinate of the chunk
 		 * @param axis
 		 *            - The {@link Axis} for which the required velocity will be calculated
 		 * 
-		 * @return - The velocity of the {@link Chunk} at the specified coordinates
+		 * @return - The velocity of the chunk at the specified coordinates
 		 */
 		final double getVelocityAt(int x, int y, int z, Axis axis)
 			{
@@ -136,11 +292,11 @@ public class VectorField
 				switch (axis)
 					{
 						case x:
-							return xVel[getIndex(x, y, z)];
+							return xVel.get(getIndex(x, y, z));
 						case y:
-							return yVel[getIndex(x, y, z)];
+							return yVel.get(getIndex(x, y, z));
 						case z:
-							return zVel[getIndex(x, y, z)];
+							return zVel.get(getIndex(x, y, z));
 						case undefined:
 						default:
 							WindowTools.debugWindow("Cannot return velocity for undetermined axis");
@@ -167,7 +323,7 @@ public class VectorField
 				if (y >= ySize)
 					return 0;
 
-				double[] velocity = null;
+				FieldBuffer velocity = null;
 
 				switch (axis)
 					{
@@ -216,21 +372,182 @@ public class VectorField
 				 * Here we find the velocity at a point in the middle of 8 chunks. We basically interpolate the velocity between all of the yAxis neighbours,
 				 * then we interpolate those values along the x axis, then finally, to combine them into a point we combine those velocities along the z axis.
 				 */
-				return (zProp0 * (xProp0 * (yProp0 * velocity[getIndex(xi0, yi0, zi0)] + yProp1 * velocity[getIndex(xi0, yi1, zi0)]) + xProp1
-						* (yProp0 * velocity[getIndex(xi1, yi0, zi0)] + yProp1 * velocity[getIndex(xi1, yi1, zi0)])))
-						+ (zProp1 * (xProp0 * (yProp0 * velocity[getIndex(xi0, yi0, zi1)] + yProp1 * velocity[getIndex(xi0, yi1, zi1)]) + xProp1
-								* (yProp0 * velocity[getIndex(xi1, yi0, zi1)] + yProp1 * velocity[getIndex(xi1, yi1, zi1)])));
+				return (zProp0 * (xProp0 * (yProp0 * velocity.get(getIndex(xi0, yi0, zi0)) + yProp1 * velocity.get(getIndex(xi0, yi1, zi0))) + xProp1
+						* (yProp0 * velocity.get(getIndex(xi1, yi0, zi0)) + yProp1 * velocity.get(getIndex(xi1, yi1, zi0)))))
+						+ (zProp1 * (xProp0 * (yProp0 * velocity.get(getIndex(xi0, yi0, zi1)) + yProp1 * velocity.get(getIndex(xi0, yi1, zi1))) + xProp1
+								* (yProp0 * velocity.get(getIndex(xi1, yi0, zi1)) + yProp1 * velocity.get(getIndex(xi1, yi1, zi1)))));
+			}
+
+		/**
+		 * Uses linear interpolation to calculate the velocity on all three axes at a point in the model. This is far cheaper than calling
+		 * {@link #getVelocityAt(double, double, double, Axis)} once per axis, as the surrounding chunks and their weightings are only worked out once.
+		 * 
+		 * @param x
+		 *            - The x coordinate at which the velocity will be calculated
+		 * @param y
+		 *            - The y coordinate at which the velocity will be calculated
+		 * @param z
+		 *            - The z coordinate at which the velocity will be calculated
+		 * @param velocity
+		 *            - The x, y & z velocities are stored here, in that order
+		 * @param offset
+		 *            - The index at which the x velocity will be stored
+		 */
+		final void getVelocityAt(double x, double y, double z, double[] velocity, int offset)
+			{
+				if (y >= ySize)
+					{
+						velocity[offset] = velocity[offset + 1] = velocity[offset + 2] = 0;
+						return;
+					}
+
+				int xi0 = (int) x;
+				int xi1 = xi0 + 1;
+				if (xi1 == xSize)
+					xi1 -= xSize;
+
+				int zi0 = (int) z;
+				int zi1 = zi0 + 1;
+				if (zi1 == zSize)
+					zi1 -= zSize;
+
+				// if y-source is above surface or below thermocline, restrict to surface/thermocline
+				if (y < 0.5)
+					y = 0.5;
+				else if (y >= ySize - 1.5)
+					y = ySize - 1.5;
+
+				int yi0 = (int) y;
+				int yi1 = yi0 + 1;
+
+				// Linear interpolation factors. Ex: 0.6 and 0.4
+				double xProp1 = x - xi0;
+				double xProp0 = 1.0 - xProp1;
+				double yProp1 = y - yi0;
+				double yProp0 = 1.0 - yProp1;
+				double zProp1 = z - zi0;
+				double zProp0 = 1.0 - zProp1;
+
+				// The weighting of each of the 8 surrounding chunks, these are the same for every axis
+				double w000 = zProp0 * xProp0 * yProp0, w010 = zProp0 * xProp0 * yProp1;
+				double w100 = zProp0 * xProp1 * yProp0, w110 = zProp0 * xProp1 * yProp1;
+				double w001 = zProp1 * xProp0 * yProp0, w011 = zProp1 * xProp0 * yProp1;
+				double w101 = zProp1 * xProp1 * yProp0, w111 = zProp1 * xProp1 * yProp1;
+
+				int k000 = getIndex(xi0, yi0, zi0), k010 = getIndex(xi0, yi1, zi0);
+				int k100 = getIndex(xi1, yi0, zi0), k110 = getIndex(xi1, yi1, zi0);
+				int k001 = getIndex(xi0, yi0, zi1), k011 = getIndex(xi0, yi1, zi1);
+				int k101 = getIndex(xi1, yi0, zi1), k111 = getIndex(xi1, yi1, zi1);
+
+				velocity[offset] = w000 * xVel.get(k000) + w010 * xVel.get(k010) + w100 * xVel.get(k100) + w110 * xVel.get(k110) + w001 * xVel.get(k001) + w011
+						* xVel.get(k011) + w101 * xVel.get(k101) + w111 * xVel.get(k111);
+				velocity[offset + 1] = w000 * yVel.get(k000) + w010 * yVel.get(k010) + w100 * yVel.get(k100) + w110 * yVel.get(k110) + w001 * yVel.get(k001) + w011
+						* yVel.get(k011) + w101 * yVel.get(k101) + w111 * yVel.get(k111);
+				velocity[offset + 2] = w000 * zVel.get(k000) + w010 * zVel.get(k010) + w100 * zVel.get(k100) + w110 * zVel.get(k110) + w001 * zVel.get(k001) + w011
+						* zVel.get(k011) + w101 * zVel.get(k101) + w111 * zVel.get(k111);
+			}
+
+		/**
+		 * Calculates the velocity on all three axes at a number of points in one go, see {@link #getVelocityAt(double, double, double, double[], int)}.
+		 * 
+		 * @param x
+		 *            - The x coordinates of the points
+		 * @param y
+		 *            - The y coordinates of the points
+		 * @param z
+		 *            - The z coordinates of the points
+		 * @param start
+		 *            - The index of the first point
+		 * @param end
+		 *            - The index after the last point
+		 * @param scale
+		 *            - Each coordinate is multiplied by this before sampling, e.g. to convert meters into chunks
+		 * @param velocities
+		 *            - The x, y & z velocities of the point at index i are stored at 3 * (i - start), 3 * (i - start) + 1 & 3 * (i - start) + 2
+		 */
+		final void getVelocitiesAt(double[] x, double[] y, double[] z, int start, int end, double scale, double[] velocities)
+			{
+				for (int i = start, v = 0; i < end; i++, v += 3)
+					getVelocityAt(x[i] * scale, y[i] * scale, z[i] * scale, velocities, v);
 			}
 
 		/**
-		 * This updates all velocity values to represent those that would be expected in the next time slice of the model.
+		 * This updates all velocity values to represent those that would be expected in the next time slice of the model, a fixed {@link #TIMESTEP} later.
 		 */
 		final void stepSimulation()
 			{
+				stepSimulation(TIMESTEP);
+			}
+
+		/**
+		 * Steps the field through a length of time, in as few steps as it can take while remaining stable. The semi-Lagrangian back-trace of each step
+		 * may cover at most {@link #MAX_COURANT} chunks, so the longest step is limited by the fastest velocity in the field, which is found as a by-product
+		 * of each step. While the field is calm it takes a single step of up to {@link #MAX_TIMESTEP} once enough time has passed, and after a disturbance
+		 * it takes as many shorter steps as it needs to keep up.
+		 * <p>
+		 * Time that isn't enough for a whole step is carried over to the next call.
+		 * 
+		 * @param time
+		 *            - The time that has passed, in the same units as {@link #TIMESTEP}
+		 * @return - The number of steps taken
+		 */
+		final int advance(double time)
+			{
+				pendingTime += time;
+
+				int steps = 0;
+				double step = getStableTimestep();
+				while (pendingTime >= step)
+					{
+						if (steps == MAX_SUBSTEPS)
+							{
+								pendingTime = 0;
+								break;
+							}
+
+						stepSimulation(step);
+						pendingTime -= step;
+						steps++;
+						step = getStableTimestep();
+					}
+				return steps;
+			}
+
+		/**
+		 * @return - The longest step the field can take from its current velocities without its back-trace covering more than {@link #MAX_COURANT} chunks
+		 */
+		final double getStableTimestep()
+			{
+				return maxSpeed * MAX_TIMESTEP > MAX_COURANT ? MAX_COURANT / maxSpeed : MAX_TIMESTEP;
+			}
+
+		/**
+		 * @return - The fastest velocity along any axis of any chunk, found by looking at every chunk
+		 */
+		private double findMaxSpeed()
+			{
+				double speed = 0;
+				for (long k = 0; k < xVel.size; k++)
+					speed = Math.max(speed, Math.max(Math.abs(xVel.get(k)), Math.max(Math.abs(yVel.get(k)), Math.abs(zVel.get(k)))));
+				return speed;
+			}
+
+		/**
+		 * Updates all velocity values to represent those that would be expected a length of time later.
+		 * 
+		 * @param timestep
+		 *            - The length of the step, the friction on the faces of the model is scaled so that it slows the currents at the same rate over time
+		 *            however long the step
+		 */
+		private void stepSimulation(double timestep)
+			{
+				this.timestep = timestep;
+				friction = Math.pow(FRICTION, timestep / TIMESTEP);
+
 				/*
 				 * First we need to move our old velocity data into temporary storage so we can use it to compute new velocity data without modifying it.
 				 */
-				double[] temp;
+				FieldBuffer temp;
 
 				temp = xVelP;
 				xVelP = xVel;
@@ -257,10 +574,89 @@ public class VectorField
 				/*
 				 * Thirdly we apply the following methods to calculate the new velocities for the next time step.
 				 */
-				advect(xVel, xVelP, xVelP, yVelP, zVelP, Axis.x);
-				advect(yVel, yVelP, xVelP, yVelP, zVelP, Axis.y);
-				advect(zVel, zVelP, xVelP, yVelP, zVelP, Axis.z);
-				project(xVel, yVel, zVel, /* arbitrarily reused to prevent unnecessary new memory allocation -> */xVelP, yVelP);
+				Telemetry.VectorFieldStepEvent event = new Telemetry.VectorFieldStepEvent();
+				event.begin();
+
+				final Metrics metrics = this.metrics;
+				long start = metrics.startTimer();
+				advect();
+				metrics.stopTimer(Metrics.Metric.ADVECT, start);
+
+				start = metrics.startTimer();
+				project();
+				metrics.stopTimer(Metrics.Metric.PROJECT, start);
+
+				if (event.shouldCommit())
+					{
+						event.solver = solver.description;
+						event.chunks = xVel.size;
+						event.iterations = pressureSolver.getIterations();
+						event.residual = pressureSolver.getResidual();
+						event.commit();
+					}
+			}
+
+		/**
+		 * Calculates the new velocities by advecting those of the last step, see
+		 * {@link #advect(FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer)}.
+		 */
+		final void advect()
+			{
+				advect(xVel, yVel, zVel, xVelP, yVelP, zVelP);
+			}
+
+		/**
+		 * Removes the divergence from the new velocities, see {@link #project(FieldBuffer, FieldBuffer, FieldBuffer, double[], double[])}.
+		 */
+		final void project()
+			{
+				project(xVel, yVel, zVel, pressure, divergence);
+			}
+
+		/**
+		 * @return - The number of chunks along the x axis
+		 */
+		final int getXSize()
+			{
+				return xSize;
+			}
+
+		/**
+		 * @return - The number of chunks from the surface to the thermocline
+		 */
+		final int getYSize()
+			{
+				return ySize;
+			}
+
+		/**
+		 * @return - The number of chunks along the z axis
+		 */
+		final int getZSize()
+			{
+				return zSize;
+			}
+
+		/**
+		 * Note that the velocities are swapped with the temporary data during every {@link #stepSimulation()}, so the returned buffer should not be kept
+		 * between steps.
+		 *
+		 * @return - The current velocities along the specified axis, indexed the same way as the chunks of the mixed layer
+		 */
+		final FieldBuffer getVelocities(Axis axis)
+			{
+				switch (axis)
+					{
+						case x:
+							return xVel;
+						case y:
+							return yVel;
+						case z:
+							return zVel;
+						case undefined:
+						default:
+							throw new IllegalArgumentException("Cannot return the velocities of an undefined axis");
+					}
 			}
 
 		/**
@@ -268,13 +664,13 @@ public class VectorField
 		 * store it.
 		 * 
 		 * @param x
-		 *            - The x coordinates of a {@link Chunk} in the model.
+		 *            - The x coordinates of a chunk in the model.
 		 * @param y
-		 *            - The y coordinates of a {@link Chunk} in the model.
+		 *            - The y coordinates of a chunk in the model.
 		 * @param z
-		 *            - The z coordinates of a {@link Chunk} in the model.
+		 *            - The z coordinates of a chunk in the model.
 		 * 
-		 * @return - The index of velocity data for the above {@link Chunk} coordinates.
+		 * @return - The index of velocity data for the above chunk coordinates.
 		 */
 		private final int getIndex(int x, int y, int z)
 			{
@@ -282,183 +678,319 @@ public class VectorField
 			}
 
 		/**
-		 * Iterate through the velocities of {@link Chunk}s at the edges or surfaces of the simulation and apply special rules to prevent unexpected behaviour.
+		 * Applies the special rules for the chunks at the surface and at the thermocline. Horizontal velocities are the same as those of the neighbour
+		 * below/above, and there are no up or down (y) velocities. As each y velocity is the flow down through the bottom of its chunk, see
+		 * {@link #project(FieldBuffer, FieldBuffer, FieldBuffer, double[], double[])}, the layer just above the thermocline has no y velocity either.
 		 * 
-		 * @param axis
-		 *            - The axis currently in need of correcting
-		 * @param velocityData
-		 *            - The velocity data for the axis
+		 * @param xV
+		 *            - The x velocity data
+		 * @param yV
+		 *            - The y velocity data
+		 * @param zV
+		 *            - The z velocity data
 		 */
-		private void correctEdgeCases(Axis axis, double[] velocityData)
+		private void correctSurfaceAndThermocline(FieldBuffer xV, FieldBuffer yV, FieldBuffer zV)
 			{
-				switch (axis)
-					{
-						case x:
-							// For each chunk on the faces at the ends of the xAxis, apply friction to prevent perpetual current forming.
-
-							// to the depth of the thermocline
-							for (int y = 0; y < ySize; y++)
-								// for the breadth of the model
-								for (int z = 0; z < zSize; z++)
-									{
-										velocityData[getIndex(0, y, z)] *= 0.95;
-										velocityData[getIndex(xSize - 1, y, z)] *= 0.95;
-									}
+				int surface = 0, belowSurface = layerSize, thermocline = getIndex(0, ySize - 1, 0), aboveThermocline = thermocline - layerSize;
 
-							// For each chunk at the surface and at the thermocline
-							// for width of model
-							for (int x = 0; x < xSize; x++)
-								// for breadth of model
-								for (int z = 0; z < zSize; z++)
-									{
-										// xVel = xVel of neighbour below/above
-										velocityData[getIndex(x, 0, z)] = velocityData[getIndex(x, 1, z)];
-										velocityData[getIndex(x, ySize - 1, z)] = velocityData[getIndex(x, ySize - 2, z)];
-									}
-							break;
-
-						case y:
-							// Prohibit up or down (y) velocities at the surface and at the thermocline
-
-							// for the width of the model
-							for (int x = 0; x < xSize; x++)
-								// for the breadth of the model
-								for (int z = 0; z < zSize; z++)
-									{
-										velocityData[getIndex(x, 0, z)] = 0;
-										velocityData[getIndex(x, ySize - 1, z)] = 0;
-									}
-							break;
-
-						case z:
-							// For each chunk on the faces at the ends of the zAxis, apply friction to prevent perpetual current forming.
-
-							// to the depth of the thermocline
-							for (int y = 0; y < ySize; y++)
-								// for the width of the model
-								for (int x = 0; x < xSize; x++)
-									{
-										velocityData[getIndex(x, y, 0)] *= 0.95;
-										velocityData[getIndex(x, y, zSize - 1)] *= 0.95;
-									}
-
-							// For each chunk at the surface and at the thermocline
-							// for width of model
-							for (int x = 0; x < xSize; x++)
-								// for breadth of model
-								for (int z = 0; z < zSize; z++)
-									{
-										// zVel = zVel of neighbour below/above
-										velocityData[getIndex(x, 0, z)] = velocityData[getIndex(x, 1, z)];
-										velocityData[getIndex(x, ySize - 1, z)] = velocityData[getIndex(x, ySize - 2, z)];
-									}
-							break;
+				// for every chunk in the surface and thermocline layers
+				for (int i = 0; i < layerSize; i++)
+					{
+						yV.set(surface + i, 0);
+						yV.set(aboveThermocline + i, 0);
+						yV.set(thermocline + i, 0);
+					}
 
-						case undefined:
-							// for each chunk at the surface and at the thermocline
+				xV.copy(belowSurface, surface, layerSize);
+				xV.copy(aboveThermocline, thermocline, layerSize);
+				zV.copy(belowSurface, surface, layerSize);
+				zV.copy(aboveThermocline, thermocline, layerSize);
+			}
 
-							// for width of model
-							for (int x = 0; x < xSize - 1; x++)
-								// for breadth of model
-								for (int z = 0; z < zSize - 1; z++)
-									{
-										// axesVel = axesVel of neighbour below/above
-										velocityData[getIndex(x, 0, z)] = velocityData[getIndex(x, 1, z)];
-										velocityData[getIndex(x, ySize - 1, z)] = velocityData[getIndex(x, ySize - 2, z)];
-									}
-							break;
-					}
+		/**
+		 * Iterate through the values of non-velocity data, such as pressure, at the surface and at the thermocline and set them to the value of the neighbour
+		 * below/above.
+		 * 
+		 * @param data
+		 *            - The data to be corrected
+		 */
+		private void correctEdgeCases(double[] data)
+			{
+				// for width of model
+				for (int x = 0; x < xSize - 1; x++)
+					// for breadth of model
+					for (int z = 0; z < zSize - 1; z++)
+						{
+							// axesVel = axesVel of neighbour below/above
+							data[getIndex(x, 0, z)] = data[getIndex(x, 1, z)];
+							data[getIndex(x, ySize - 1, z)] = data[getIndex(x, ySize - 2, z)];
+						}
 			}
 
 		/**
-		 * Calculate the new velocity for a particular axis by finding the point at which the old velocity originated and deriving the velocity from the centre
-		 * of the {@link Chunk}s by linear interpolation between them.
+		 * Calculate the new velocities by finding the point at which the old velocity originated and deriving the velocity from the centre of the
+		 * chunks by linear interpolation between them. The source point and the interpolation weights are only worked out once per chunk, and
+		 * are used to calculate all three axes at once.
+		 * <p>
+		 * The friction applied to the faces of the model, and the rules for the surface and thermocline, are applied as part of the same pass. Each layer only
+		 * writes to itself, so the layers are shared out between the worker threads.
 		 * 
-		 * @param dest
-		 *            - Storage for velocities to be calculated for the current axes
-		 * @param src
-		 *            - Old velocities for current axis
+		 * @param xDest
+		 *            - Storage for the new xVelocities
+		 * @param yDest
+		 *            - Storage for the new yVelocities
+		 * @param zDest
+		 *            - Storage for the new zVelocities
 		 * @param xVelocity
 		 *            - Old xVelocities from the last time step
 		 * @param yVelocity
 		 *            - Old yVelocities from the last time step
 		 * @param zVelocity
 		 *            - Old zVelocities from the last time step
-		 * @param axis
-		 *            - the axis currently being worked on.
 		 */
-		private void advect(double[] dest, double[] src, double[] xVelocity, double[] yVelocity, double[] zVelocity, Axis axis)
+		private void advect(final FieldBuffer xDest, final FieldBuffer yDest, final FieldBuffer zDest, final FieldBuffer xVelocity,
+				final FieldBuffer yVelocity, final FieldBuffer zVelocity)
 			{
 				// from just below the surface to the depth just above the thermocline
-				for (int y = 1; y < ySize - 1; y++)
-					// for width of model
-					for (int x = 0; x < xSize; x++)
-						// for breadth of model
-						for (int z = 0; z < zSize; z++)
+				workers.run(ySize - 2, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int task)
 							{
-								int k = getIndex(x, y, z);
-								// Reverse velocity, since we are interpolating backwards
-								// xSrc, ySrc & zSrc is the position of the source density.
-								double xSrc = x - TIMESTEP * xVelocity[k];
-								double ySrc = y - TIMESTEP * yVelocity[k];
-								double zSrc = z - TIMESTEP * zVelocity[k];
-
-								// if x-source is off either end of the axis, wrap to other end
-								if (xSrc < 0)
-									xSrc += xSize;
-								else if (xSrc >= xSize)
-									xSrc -= xSize;
-
-								// if z-source is off either end of the axis, wrap to other end
-								if (zSrc < 0)
-									zSrc += zSize;
-								else if (zSrc >= zSize)
-									zSrc -= zSize;
-
-								// The chunk where our x velocity originated and the chunk after it so we can interpolate
-								int xi0 = (int) xSrc;
-								int xi1 = xi0 + 1;
-								if (xi1 == xSize)
-									xi1 = 0;
-
-								// The chunk where our z velocity originated and the chunk after it so we can interpolate
-								int zi0 = (int) zSrc;
-								int zi1 = zi0 + 1;
-								if (zi1 == zSize)
-									zi1 = 0;
-
-								// if y-source is above surface or below thermocline, restrict to surface/thermocline
-								if (ySrc < 0.5)
-									ySrc = 0.5;
-								else if (ySrc > ySize - 1.5)
-									ySrc = ySize - 1.5;
-
-								int yi0 = (int) ySrc;
-								int yi1 = yi0 + 1;
-
-								// Linear interpolation factors. Ex: 0.6 and 0.4
-								double xProp1 = xSrc - xi0;
-								double xProp0 = 1.0 - xProp1;
-								double yProp1 = ySrc - yi0;
-								double yProp0 = 1.0 - yProp1;
-								double zProp1 = zSrc - zi0;
-								double zProp0 = 1.0 - zProp1;
-
-								/*
-								 * Here we find the velocity at a point in the middle of 8 chunks. We basically interpolate the velocity between all of the
-								 * yAxis neighbours, then we interpolate those values along the x axis, then finally, to combine them into a point we combine
-								 * those velocities along the z axis.
-								 */
-								dest[k] = (zProp0 * (xProp0 * (yProp0 * src[getIndex(xi0, yi0, zi0)] + yProp1 * src[getIndex(xi0, yi1, zi0)]) + xProp1
-										* (yProp0 * src[getIndex(xi1, yi0, zi0)] + yProp1 * src[getIndex(xi1, yi1, zi0)])))
-										+ (zProp1 * (xProp0 * (yProp0 * src[getIndex(xi0, yi0, zi1)] + yProp1 * src[getIndex(xi0, yi1, zi1)]) + xProp1
-												* (yProp0 * src[getIndex(xi1, yi0, zi1)] + yProp1 * src[getIndex(xi1, yi1, zi1)])));
+								if (singlePrecision)
+									advectLayerSingle(task + 1, xDest, yDest, zDest, xVelocity, yVelocity, zVelocity);
+								else
+									advectLayer(task + 1, xDest, yDest, zDest, xVelocity, yVelocity, zVelocity);
 							}
+					});
 
-				correctEdgeCases(axis, dest);
+				correctSurfaceAndThermocline(xDest, yDest, zDest);
 			}
 
 		/**
+		 * Advects a single layer, see {@link #advect(FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer)}.
+		 * 
+		 * @param y
+		 *            - The layer, from 1 to ySize - 2
+		 */
+		private void advectLayer(int y, FieldBuffer xDest, FieldBuffer yDest, FieldBuffer zDest, FieldBuffer xVelocity, FieldBuffer yVelocity,
+				FieldBuffer zVelocity)
+			{
+				final double timestep = this.timestep, friction = this.friction;
+
+				// for breadth of model
+				for (int z = 0; z < zSize; z++)
+					// for width of model, this is the innermost loop as neighbouring x values are next to each other in memory
+					for (int x = 0; x < xSize; x++)
+						{
+							int k = getIndex(x, y, z);
+							// Reverse velocity, since we are interpolating backwards
+							// xSrc, ySrc & zSrc is the position of the source density.
+							double xSrc = x - timestep * xVelocity.get(k);
+							double ySrc = y - timestep * yVelocity.get(k);
+							double zSrc = z - timestep * zVelocity.get(k);
+
+							// if x-source is off either end of the axis, wrap to other end
+							if (xSrc < 0)
+								xSrc += xSize;
+							else if (xSrc >= xSize)
+								xSrc -= xSize;
+
+							// if z-source is off either end of the axis, wrap to other end
+							if (zSrc < 0)
+								zSrc += zSize;
+							else if (zSrc >= zSize)
+								zSrc -= zSize;
+
+							// The chunk where our x velocity originated and the chunk after it so we can interpolate
+							int xi0 = (int) xSrc;
+							// a tiny negative source rounds up to the far end when wrapped
+							if (xi0 == xSize)
+								{
+									xi0 = 0;
+									xSrc = 0;
+								}
+							int xi1 = xi0 + 1;
+							if (xi1 == xSize)
+								xi1 = 0;
+
+							// The chunk where our z velocity originated and the chunk after it so we can interpolate
+							int zi0 = (int) zSrc;
+							// a tiny negative source rounds up to the far end when wrapped
+							if (zi0 == zSize)
+								{
+									zi0 = 0;
+									zSrc = 0;
+								}
+							int zi1 = zi0 + 1;
+							if (zi1 == zSize)
+								zi1 = 0;
+
+							// if y-source is above surface or below thermocline, restrict to surface/thermocline
+							if (ySrc < 0.5)
+								ySrc = 0.5;
+							else if (ySrc > ySize - 1.5)
+								ySrc = ySize - 1.5;
+
+							int yi0 = (int) ySrc;
+							int yi1 = yi0 + 1;
+
+							// Linear interpolation factors. Ex: 0.6 and 0.4
+							double xProp1 = xSrc - xi0;
+							double xProp0 = 1.0 - xProp1;
+							double yProp1 = ySrc - yi0;
+							double yProp0 = 1.0 - yProp1;
+							double zProp1 = zSrc - zi0;
+							double zProp0 = 1.0 - zProp1;
+
+							/*
+							 * Here we find the velocity at a point in the middle of 8 chunks. Each chunk's weighting is the product of its interpolation
+							 * factors along each axis, these are the same for every axis of velocity so are only calculated once.
+							 */
+							double w000 = zProp0 * xProp0 * yProp0, w010 = zProp0 * xProp0 * yProp1;
+							double w100 = zProp0 * xProp1 * yProp0, w110 = zProp0 * xProp1 * yProp1;
+							double w001 = zProp1 * xProp0 * yProp0, w011 = zProp1 * xProp0 * yProp1;
+							double w101 = zProp1 * xProp1 * yProp0, w111 = zProp1 * xProp1 * yProp1;
+
+							int k000 = getIndex(xi0, yi0, zi0), k010 = getIndex(xi0, yi1, zi0);
+							int k100 = getIndex(xi1, yi0, zi0), k110 = getIndex(xi1, yi1, zi0);
+							int k001 = getIndex(xi0, yi0, zi1), k011 = getIndex(xi0, yi1, zi1);
+							int k101 = getIndex(xi1, yi0, zi1), k111 = getIndex(xi1, yi1, zi1);
+
+							double xNew = w000 * xVelocity.get(k000) + w010 * xVelocity.get(k010) + w100 * xVelocity.get(k100) + w110 * xVelocity.get(k110) + w001
+									* xVelocity.get(k001) + w011 * xVelocity.get(k011) + w101 * xVelocity.get(k101) + w111 * xVelocity.get(k111);
+							double yNew = w000 * yVelocity.get(k000) + w010 * yVelocity.get(k010) + w100 * yVelocity.get(k100) + w110 * yVelocity.get(k110) + w001
+									* yVelocity.get(k001) + w011 * yVelocity.get(k011) + w101 * yVelocity.get(k101) + w111 * yVelocity.get(k111);
+							double zNew = w000 * zVelocity.get(k000) + w010 * zVelocity.get(k010) + w100 * zVelocity.get(k100) + w110 * zVelocity.get(k110) + w001
+									* zVelocity.get(k001) + w011 * zVelocity.get(k011) + w101 * zVelocity.get(k101) + w111 * zVelocity.get(k111);
+
+							// Apply friction on the faces at the ends of the x & z axes to prevent perpetual current forming.
+							if (x == 0 || x == xSize - 1)
+								xNew *= friction;
+							if (z == 0 || z == zSize - 1)
+								zNew *= friction;
+
+							xDest.set(k, xNew);
+							yDest.set(k, yNew);
+							zDest.set(k, zNew);
+						}
+			}
+
+		/**
+		 * The same as {@link #advectLayer(int, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer, FieldBuffer)}, but carried out entirely with
+		 * floats for fields stored as floats. Converting every value to and from a double costs more than the memory saved by storing floats.
+		 */
+		private void advectLayerSingle(int y, FieldBuffer xDest, FieldBuffer yDest, FieldBuffer zDest, FieldBuffer xVelocity, FieldBuffer yVelocity,
+				FieldBuffer zVelocity)
+			{
+				final float timestep = (float) this.timestep, friction = (float) this.friction;
+
+				// for breadth of model
+				for (int z = 0; z < zSize; z++)
+					// for width of model, this is the innermost loop as neighbouring x values are next to each other in memory
+					for (int x = 0; x < xSize; x++)
+						{
+							int k = getIndex(x, y, z);
+							// Reverse velocity, since we are interpolating backwards
+							// xSrc, ySrc & zSrc is the position of the source density.
+							float xSrc = x - timestep * xVelocity.getFloat(k);
+							float ySrc = y - timestep * yVelocity.getFloat(k);
+							float zSrc = z - timestep * zVelocity.getFloat(k);
+
+							// if x-source is off either end of the axis, wrap to other end
+							if (xSrc < 0)
+								xSrc += xSize;
+							else if (xSrc >= xSize)
+								xSrc -= xSize;
+
+							// if z-source is off either end of the axis, wrap to other end
+							if (zSrc < 0)
+								zSrc += zSize;
+							else if (zSrc >= zSize)
+								zSrc -= zSize;
+
+							// The chunk where our x velocity originated and the chunk after it so we can interpolate
+							int xi0 = (int) xSrc;
+							// a tiny negative source rounds up to the far end when wrapped in single precision
+							if (xi0 == xSize)
+								{
+									xi0 = 0;
+									xSrc = 0;
+								}
+							int xi1 = xi0 + 1;
+							if (xi1 == xSize)
+								xi1 = 0;
+
+							// The chunk where our z velocity originated and the chunk after it so we can interpolate
+							int zi0 = (int) zSrc;
+							// a tiny negative source rounds up to the far end when wrapped in single precision
+							if (zi0 == zSize)
+								{
+									zi0 = 0;
+									zSrc = 0;
+								}
+							int zi1 = zi0 + 1;
+							if (zi1 == zSize)
+								zi1 = 0;
+
+							// if y-source is above surface or below thermocline, restrict to surface/thermocline
+							if (ySrc < 0.5f)
+								ySrc = 0.5f;
+							else if (ySrc > ySize - 1.5f)
+								ySrc = ySize - 1.5f;
+
+							int yi0 = (int) ySrc;
+							int yi1 = yi0 + 1;
+
+							// Linear interpolation factors. Ex: 0.6 and 0.4
+							float xProp1 = xSrc - xi0;
+							float xProp0 = 1.0f - xProp1;
+							float yProp1 = ySrc - yi0;
+							float yProp0 = 1.0f - yProp1;
+							float zProp1 = zSrc - zi0;
+							float zProp0 = 1.0f - zProp1;
+
+							/*
+							 * Here we find the velocity at a point in the middle of 8 chunks. Each chunk's weighting is the product of its interpolation
+							 * factors along each axis, these are the same for every axis of velocity so are only calculated once.
+							 */
+							float w000 = zProp0 * xProp0 * yProp0, w010 = zProp0 * xProp0 * yProp1;
+							float w100 = zProp0 * xProp1 * yProp0, w110 = zProp0 * xProp1 * yProp1;
+							float w001 = zProp1 * xProp0 * yProp0, w011 = zProp1 * xProp0 * yProp1;
+							float w101 = zProp1 * xProp1 * yProp0, w111 = zProp1 * xProp1 * yProp1;
+
+							int k000 = getIndex(xi0, yi0, zi0), k010 = getIndex(xi0, yi1, zi0);
+							int k100 = getIndex(xi1, yi0, zi0), k110 = getIndex(xi1, yi1, zi0);
+							int k001 = getIndex(xi0, yi0, zi1), k011 = getIndex(xi0, yi1, zi1);
+							int k101 = getIndex(xi1, yi0, zi1), k111 = getIndex(xi1, yi1, zi1);
+
+							float xNew = w000 * xVelocity.getFloat(k000) + w010 * xVelocity.getFloat(k010) + w100 * xVelocity.getFloat(k100) + w110 * xVelocity.getFloat(k110)
+									+ w001 * xVelocity.getFloat(k001) + w011 * xVelocity.getFloat(k011) + w101 * xVelocity.getFloat(k101) + w111 * xVelocity.getFloat(k111);
+							float yNew = w000 * yVelocity.getFloat(k000) + w010 * yVelocity.getFloat(k010) + w100 * yVelocity.getFloat(k100) + w110 * yVelocity.getFloat(k110)
+									+ w001 * yVelocity.getFloat(k001) + w011 * yVelocity.getFloat(k011) + w101 * yVelocity.getFloat(k101) + w111 * yVelocity.getFloat(k111);
+							float zNew = w000 * zVelocity.getFloat(k000) + w010 * zVelocity.getFloat(k010) + w100 * zVelocity.getFloat(k100) + w110 * zVelocity.getFloat(k110)
+									+ w001 * zVelocity.getFloat(k001) + w011 * zVelocity.getFloat(k011) + w101 * zVelocity.getFloat(k101) + w111 * zVelocity.getFloat(k111);
+
+							// Apply friction on the faces at the ends of the x & z axes to prevent perpetual current forming.
+							if (x == 0 || x == xSize - 1)
+								xNew *= friction;
+							if (z == 0 || z == zSize - 1)
+								zNew *= friction;
+
+							xDest.setFloat(k, xNew);
+							yDest.setFloat(k, yNew);
+							zDest.setFloat(k, zNew);
+						}
+			}
+
+		/**
+		 * Removes the divergence from the velocities. The divergence is measured with backward differences and the pressure gradient with forward differences,
+		 * so that one applied to the other is exactly the Laplacian solved by the {@link PoissonGrid}, with the same neighbours and the same wrapping along
+		 * the x & z axes. Once the pressure has been solved for, the velocities are left with no divergence, beyond the tolerance of the solver.
+		 * <p>
+		 * This means that each velocity is the flow through the face of its chunk ahead of it along that axis, e.g. each y velocity is the flow down into
+		 * the chunk below.
+		 * 
 		 * @param xV
 		 *            - the newly calculated xVelocities that need to have this step applied
 		 * @param yV
@@ -466,73 +998,210 @@ public class VectorField
 		 * @param zV
 		 *            - the newly calculated zVelocities that need to have this step applied
 		 * @param p
-		 *            - an array that will be used to store pressure values
+		 *            - the pressure values from the last step, these will be updated for this step
 		 * @param div
 		 *            - an array that will be used to store divergence values
 		 */
-		private void project(double[] xV, double[] yV, double[] zV, double[] p, double[] div)
+		private void project(final FieldBuffer xV, final FieldBuffer yV, final FieldBuffer zV, final double[] p, final double[] div)
 			{
-				double h = 1000.1;
-				// from just below the surface to the depth just above the thermocline
-				for (int k = layerSize; k < div.length - layerSize; k++)
+				final double h = 1000.1;
+				// from just below the surface to the depth just above the thermocline, a layer at a time
+				workers.run(ySize - 2, new WorkerPool.Task()
 					{
-						// int k = getIndex(x, y, z);
-						// Negative divergence
-						div[k] = -0.5 * h * (xV[k + 1] - xV[k - 1] + yV[k + xSize] - yV[k - xSize] + zV[k + layerSize] - zV[k - layerSize]);
-						// Pressure field
-						p[k] = 0;
-					}
+						@Override
+						public void run(int task)
+							{
+								int layer = (task + 1) * layerSize;
+								for (int z = 0; z < zSize; z++)
+									{
+										int row = layer + (z * xSize);
+										int rowBehind = layer + ((z == 0 ? zSize - 1 : z - 1) * xSize);
+
+										for (int x = 0; x < xSize; x++)
+											{
+												int k = row + x;
+												int left = x == 0 ? k + xSize - 1 : k - 1;
+												// Negative divergence, the flow in through the faces behind the chunk less the flow out through those ahead of it
+												div[k] = -h * (xV.get(k) - xV.get(left) + yV.get(k) - yV.get(k - layerSize) + zV.get(k) - zV.get(rowBehind + x));
+											}
+									}
+							}
+					});
 
 				// Fill in data for surface and thermocline layers that we previously missed
-				correctEdgeCases(Axis.undefined, div);
-				correctEdgeCases(Axis.undefined, p);
+				correctEdgeCases(div);
 
 				// Add vortices:
-				// Assign values to p
-				linearSolve(p, div, Axis.undefined);
-				// Make p values interact with velocity data
-				// from just below the surface to the depth just above the thermocline
-				for (int k = layerSize; k < div.length - layerSize; k++)
+				// Assign values to p, starting from the pressure field of the last step
+				final Metrics metrics = this.metrics;
+				long start = metrics.startTimer();
+				int iterations = pressureSolver.solve(p, div);
+				metrics.stopTimer(Metrics.Metric.SOLVE, start);
+				metrics.record(Metrics.Metric.SOLVER_ITERATIONS, iterations);
+				// Make p values interact with velocity data, noting the fastest velocity while they are at hand
+				// from just below the surface to the depth just above the thermocline, a layer at a time
+				workers.run(ySize - 2, new WorkerPool.Task()
 					{
-						xV[k] -= 0.5 * (p[k + 1] - p[k - 1]) / h;
-						yV[k] -= 0.5 * (p[k + xSize] - p[k - xSize]) / h;
-						zV[k] -= 0.5 * (p[k + layerSize] - p[k - layerSize]) / h;
-					}
+						@Override
+						public void run(int task)
+							{
+								double speed = 0;
+								int layer = (task + 1) * layerSize;
+								for (int z = 0; z < zSize; z++)
+									{
+										int row = layer + (z * xSize);
+										int rowAhead = layer + ((z == zSize - 1 ? 0 : z + 1) * xSize);
+
+										for (int x = 0; x < xSize; x++)
+											{
+												int k = row + x;
+												int right = x == xSize - 1 ? k - xSize + 1 : k + 1;
+												double xNew = xV.get(k) - (p[right] - p[k]) / h;
+												double yNew = yV.get(k) - (p[k + layerSize] - p[k]) / h;
+												double zNew = zV.get(k) - (p[rowAhead + x] - p[k]) / h;
+												xV.set(k, xNew);
+												yV.set(k, yNew);
+												zV.set(k, zNew);
+												speed = Math.max(speed, Math.max(Math.abs(xNew), Math.max(Math.abs(yNew), Math.abs(zNew))));
+											}
+									}
+								layerSpeeds[task + 1] = speed;
+							}
+					});
+
+				// The rules for the surface and thermocline can only slow the velocities found
+				double speed = 0;
+				for (int y = 1; y < ySize - 1; y++)
+					speed = Math.max(speed, layerSpeeds[y]);
+				maxSpeed = speed;
 
 				// Do one final check for all velocities to finalise the values
-				correctEdgeCases(Axis.x, xV);
-				correctEdgeCases(Axis.y, yV);
-				correctEdgeCases(Axis.z, zV);
+				correctSurfaceAndThermocline(xV, yV, zV);
 			}
 
 		/**
-		 * 4-10 iterations gives fast results that are not noticeably inaccurate. For real accuracy, upwards of 20 is good. This function causes the leading
-		 * edge of a flow of water to diverge, resulting in vortices.
-		 * 
-		 * @param dest
-		 *            - The pressure data calculated during the {@link VectorField#project(double[], double[], double[], double[], double[])} step.
-		 * @param src
-		 *            - The divergence data calculated during the {@link VectorField#project(double[], double[], double[], double[], double[])} step.
-		 * @param axis
-		 *            - The current {@link Axis} data to which this method is being applied.
+		 * @param solver
+		 *            - The method that will be used to calculate the pressure field from now on
+		 */
+		final void setPressureSolver(Solver solver)
+			{
+				pressureSolver = solver.create(new PoissonGrid(xSize, ySize, zSize), workers);
+				this.solver = solver;
+			}
+
+		/**
+		 * @param metrics
+		 *            - Told how long the phases of each step take, and how many iterations the {@link PressureSolver} needs
 		 */
-		private void linearSolve(double[] dest, double[] src, Axis axis)
+		final void setMetrics(Metrics metrics)
+			{
+				this.metrics = metrics;
+			}
+
+		/**
+		 * Makes this field visible to JMX clients, in place of any field registered earlier, see {@link Telemetry}.
+		 */
+		final void registerMBean()
+			{
+				Telemetry.register("VectorField", this);
+			}
+
+		// The following methods are read by JMX clients, from their own threads, so may see a step that is part way through:
+
+		@Override
+		public final String getSolver()
 			{
-				double w = 2;
-				for (int i = 0; i < 6; i++)
+				return solver.description;
+			}
+
+		@Override
+		public final int getSolverIterations()
+			{
+				return pressureSolver.getIterations();
+			}
+
+		@Override
+		public final double getSolverResidual()
+			{
+				return pressureSolver.getResidual();
+			}
+
+		@Override
+		public final double getKineticEnergy()
+			{
+				FieldBuffer xVel = this.xVel, yVel = this.yVel, zVel = this.zVel;
+				double energy = 0;
+				for (long k = 0; k < xVel.size; k++)
 					{
-						w -= 0.1;
-						// to the depth of the thermocline
-						for (int y = 1; y < ySize - 1; y++)
-							// for width of model
-							for (int x = 0; x < xSize; x++)
-								// for breadth of model
-								for (int z = 0; z < zSize; z++)
-									{
-										int k = getIndex(x, y, z);
-										dest[k] += w * ((dest[k - 1] + dest[k + 1] + dest[k - xSize] + dest[k + xSize] + dest[k - layerSize] + dest[k + layerSize] + src[k]) / 6 - dest[k]);
-									}
+						double x = xVel.get(k), y = yVel.get(k), z = zVel.get(k);
+						energy += 0.5 * (x * x + y * y + z * z);
 					}
-				correctEdgeCases(axis, dest);
+				return energy;
+			}
+
+		@Override
+		public final long getMemoryBytes()
+			{
+				return getBytes();
+			}
+
+		@Override
+		public final double getTimestep()
+			{
+				return timestep;
+			}
+
+		@Override
+		public final double getMaxSpeed()
+			{
+				return maxSpeed;
+			}
+
+		/**
+		 * @return - The solver used to calculate the pressure field during each step, e.g. to find out how well the last step converged
+		 */
+		final PressureSolver getPressureSolver()
+			{
+				return pressureSolver;
+			}
+
+		/**
+		 * Measures the divergence of the current velocities in the same way as
+		 * {@link #project(FieldBuffer, FieldBuffer, FieldBuffer, double[], double[])}, so straight after a step it is only as large as the residual left by
+		 * the {@link PressureSolver} allows.
+		 *
+		 * @return - The root mean square divergence of every chunk between the surface and the thermocline
+		 */
+		final double getDivergence()
+			{
+				double sum = 0;
+				for (int y = 1; y < ySize - 1; y++)
+					for (int z = 0; z < zSize; z++)
+						for (int x = 0; x < xSize; x++)
+							{
+								int k = getIndex(x, y, z);
+								double div = xVel.get(k) - xVel.get(getIndex(x == 0 ? xSize - 1 : x - 1, y, z)) + yVel.get(k) - yVel.get(k - layerSize) + zVel.get(k)
+										- zVel.get(getIndex(x, y, z == 0 ? zSize - 1 : z - 1));
+								sum += div * div;
+							}
+				return Math.sqrt(sum / ((long) layerSize * Math.max(1, ySize - 2)));
+			}
+
+		/**
+		 * @return - The number of bytes used to store the velocity, pressure and divergence data
+		 */
+		final long getBytes()
+			{
+				return xVel.getBytes() + yVel.getBytes() + zVel.getBytes() + xVelP.getBytes() + yVelP.getBytes() + zVelP.getBytes() + 8L
+						* (pressure.length + divergence.length);
+			}
+
+		/**
+		 * @return - The number of bytes used to store the velocity, pressure and divergence data on the Java heap
+		 */
+		final long getHeapBytes()
+			{
+				return xVel.getHeapBytes() + yVel.getHeapBytes() + zVel.getHeapBytes() + xVelP.getHeapBytes() + yVelP.getHeapBytes() + zVelP.getHeapBytes()
+						+ 8L * (pressure.length + divergence.length);
 			}
 	}
\ No newline at end of file
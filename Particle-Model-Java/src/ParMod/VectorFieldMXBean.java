@@ -0,0 +1,44 @@
+package ParMod;
+
+/**
+ * The live state of the {@link VectorField} of a running simulation, as seen by JMX clients, see {@link Telemetry}.
+ *
+ * @author Sebastian Troy
+ */
+public interface VectorFieldMXBean
+	{
+		/**
+		 * @return - The method used to calculate the pressure field
+		 */
+		String getSolver();
+
+		/**
+		 * @return - The number of iterations needed by the last pressure solve
+		 */
+		int getSolverIterations();
+
+		/**
+		 * @return - The residual left by the last pressure solve, see {@link PressureSolver#getResidual()}
+		 */
+		double getSolverResidual();
+
+		/**
+		 * @return - The kinetic energy of the field, the sum of half the squared speed of every chunk
+		 */
+		double getKineticEnergy();
+
+		/**
+		 * @return - The number of bytes used to store the field
+		 */
+		long getMemoryBytes();
+
+		/**
+		 * @return - The length of the last step, which only changes when the field is advanced adaptively
+		 */
+		double getTimestep();
+
+		/**
+		 * @return - The fastest velocity along any axis of any chunk, which limits the length of an adaptive step, see {@link VectorField#advance(double)}
+		 */
+		double getMaxSpeed();
+	}
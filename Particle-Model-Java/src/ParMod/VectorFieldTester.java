@@ -14,7 +14,6 @@ import tComponents.components.TSlider;
 import tComponents.utils.events.TScrollEvent;
 import tools.DrawTools;
 import tools.NumTools;
-import tools.Rand;
 import tools.WindowTools;
 
 public class VectorFieldTester extends RenderableObject
@@ -42,6 +41,7 @@ public class VectorFieldTester extends RenderableObject
 		private final TSlider renderDensitySlider = new TSlider(TSlider.HORIZONTAL, 1, 10);
 		private final TSlider particleDiffusionSlider = new TSlider(TSlider.HORIZONTAL, 0, 10);
 		private final TSlider  particleBrightnessSlider = new TSlider(TSlider.HORIZONTAL, 0, 255);
+		private final TSlider threadsSlider = new TSlider(TSlider.HORIZONTAL, 1, Math.max(2, Runtime.getRuntime().availableProcessors()));
 		private final TButton resetButton = new TButton("Reset"){@Override public void pressed(){refresh();}};
 		private final TCheckBox showParticleBox = new TCheckBox("Show Particles"){@Override public void pressed(){showParticles = isChecked();}};
 		private final TCheckBox showVectorsBox = new TCheckBox("Show Vectors"){@Override public void pressed(){showVectors = isChecked();}};
@@ -60,9 +60,16 @@ public class VectorFieldTester extends RenderableObject
 
 		private double timestep = 0.1;
 
+		// The pressure calculated during the last step is kept as the starting point for the next
+		private double[] pressure;
+		private WorkerPool workers = new WorkerPool(Runtime.getRuntime().availableProcessors());
+		private PressureSolver pressureSolver = new RedBlackSORSolver(new PoissonGrid(xSize, ySize, 1), workers);
+
 		// ~PARTICLE~DATA~VARIABLES~
 		private Particle[] particles;
 		private double particleDiffusionRate = 0.5;
+		private RandomStream random = new RandomStream(1);
+		private double[] particleDiffusion; // The random movements of every particle, 2 per particle
 		private boolean showParticles = false;
 		private Color particleColour = Color.BLUE;
 
@@ -75,6 +82,7 @@ public class VectorFieldTester extends RenderableObject
 				fieldHeight = chunkHeight * NUM_CHUNKS;
 
 				particles = new Particle[20000];
+				particleDiffusion = new double[2 * particles.length];
 				for (int i = 0; i < particles.length; i++)
 					particles[i] = new Particle(fieldWidth / 2, fieldHeight / 2);
 
@@ -85,6 +93,7 @@ public class VectorFieldTester extends RenderableObject
 				iterationsSlider.setValue(6);
 				particleDiffusionSlider.setValue(0.5);
 				particleBrightnessSlider.setValue(0);
+				threadsSlider.setValue(workers.getThreads());
 
 				showParticleBox.setChecked(true);
 				showVectorsBox.setChecked(true);
@@ -94,12 +103,14 @@ public class VectorFieldTester extends RenderableObject
 				menu.add(renderDensitySlider);
 				menu.add(new TLabel("Time Between Calculations (s)"), false);
 				menu.add(tickSpeedSlider);
-				menu.add(new TLabel("Iterations of linear solving"), false);
+				menu.add(new TLabel("Max iterations of linear solving"), false);
 				menu.add(iterationsSlider);
 				menu.add(new TLabel("Particle Diffusion"), false);
 				menu.add(particleDiffusionSlider);
 				menu.add(new TLabel("Particle Brightness"), false);
 				menu.add(particleBrightnessSlider);
+				menu.add(new TLabel("Threads"), false);
+				menu.add(threadsSlider);
 				menu.add(showVectorsBox, false);
 				menu.add(showParticleBox, false);
 				menu.add(resetButton);
@@ -115,6 +126,7 @@ public class VectorFieldTester extends RenderableObject
 
 				xVelP = xVel.clone();
 				yVelP = yVel.clone();
+				pressure = new double[NUM_CHUNKS * NUM_CHUNKS];
 
 				for (int i = 0; i < particles.length; i++)
 					{
@@ -133,6 +145,9 @@ public class VectorFieldTester extends RenderableObject
 						timer -= timePerTick;
 						stepSimulation();
 
+						// Generate the random movement of every particle in one go
+						random.fillUniform(particleDiffusion, 0, particleDiffusion.length, -particleDiffusionRate, particleDiffusionRate);
+
 						Particle p;
 						for (int i = 0; i < particles.length; i++)
 							{
@@ -154,8 +169,8 @@ public class VectorFieldTester extends RenderableObject
 								p.y += getVelocity(p.x / chunkWidth, p.y / chunkHeight, Axis.y);
 
 								// diffuse particles
-								p.x += Rand.double_(-particleDiffusionRate, particleDiffusionRate);
-								p.y += Rand.double_(-particleDiffusionRate, particleDiffusionRate);
+								p.x += particleDiffusion[2 * i];
+								p.y += particleDiffusion[2 * i + 1];
 							}
 					}
 			}
@@ -256,6 +271,18 @@ public class VectorFieldTester extends RenderableObject
 					particleDiffusionRate = particleDiffusionSlider.getValue();
 				else if (e.getSource() == particleBrightnessSlider)
 					particleColour = new Color((int) particleBrightnessSlider.getValue(), (int) particleBrightnessSlider.getValue(), 255);
+				else if (e.getSource() == threadsSlider && (int) threadsSlider.getValue() != workers.getThreads())
+					setThreads((int) threadsSlider.getValue());
+			}
+
+		/**
+		 * Replaces the worker threads, and the pressure solver that uses them, with a new set of the specified size.
+		 */
+		private final void setThreads(int threads)
+			{
+				workers.shutdown();
+				workers = new WorkerPool(threads);
+				pressureSolver = new RedBlackSORSolver(new PoissonGrid(xSize, ySize, 1), workers);
 			}
 
 		private final void stepSimulation()
@@ -272,7 +299,7 @@ public class VectorFieldTester extends RenderableObject
 
 				advect(xVel, xVelP, xVelP, yVelP, Axis.x, timestep);
 				advect(yVel, yVelP, xVelP, yVelP, Axis.y, timestep);
-				project(xVel, yVel, xVelP, yVelP);
+				project(xVel, yVel, pressure, xVelP);
 			}
 
 		private final int getK(int x, int y)
@@ -351,10 +378,11 @@ public class VectorFieldTester extends RenderableObject
 					}
 				else if (axis == Axis.y)// if yVelocities
 					{
-						// No y velocities for top or bottom layer
+						// No y velocities for top or bottom layer, nor for the row above the bottom as each y velocity is the flow down into the row below
 						for (int x = 0; x < xSize; x++)
 							{
 								d[getK(x, 0)] = 0;
+								d[getK(x, ySize - 2)] = 0;
 								d[getK(x, ySize - 1)] = 0;
 							}
 					}
@@ -376,110 +404,118 @@ public class VectorFieldTester extends RenderableObject
 
 			}
 
-		private void advect(double[] dest, double[] src, double[] xVelocity, double[] yVelocity, Axis axis, double dt)
+		private void advect(final double[] dest, final double[] src, final double[] xVelocity, final double[] yVelocity, Axis axis, final double dt)
 			{
-				// for non top/bottom edge chunks
-				for (int y = 1; y < ySize - 1; y++)
+				// for non top/bottom edge chunks, each row is shared out between the worker threads
+				workers.run(ySize - 2, new WorkerPool.Task()
 					{
-						int yIndex = y * xSize;
-						// for all chunks within above range
-						for (int x = 0; x < xSize; x++)
+						@Override
+						public void run(int task)
 							{
-								int k = x + yIndex;
-								// Reverse velocity, since we are interpolating backwards
-								// xSrc and ySrc is the position of the source density.
-								double xSrc = x - dt * xVelocity[k];
-								double ySrc = y - dt * yVelocity[k];
-
-								// if x-source is too close to the left edge, wrap to right edge
-								if (xSrc < 0)
-									xSrc += xSize;
-								if (xSrc >= xSize)
-									xSrc -= xSize;
-
-								int xi0 = (int) xSrc;
-								int xi1 = xi0 + 1;
-								if (xi1 == xSize)
-									xi1 -= xSize;
-
-								if (ySrc < 0.5)
-									{
-										ySrc = 0.5;
-									}
-								if (ySrc > ySize - 1.5)
-									{
-										ySrc = ySize - 1.5;
-									}
-								int yi0 = (int) ySrc;
-								int yi1 = yi0 + 1;
-
-								// Linear interpolation factors. Ex: 0.6 and 0.4
-								double xProp1 = xSrc - xi0;
-								double xProp0 = 1.0 - xProp1;
-								double yProp1 = ySrc - yi0;
-								double yProp0 = 1.0 - yProp1;
-
-								dest[k] = xProp0 * (yProp0 * src[getK(xi0, yi0)] + yProp1 * src[getK(xi0, yi1)]) + xProp1 * (yProp0 * src[getK(xi1, yi0)] + yProp1 * src[getK(xi1, yi1)]);
+								advectRow(task + 1, dest, src, xVelocity, yVelocity, dt);
 							}
-					}
+					});
 
 				setBounds(axis, dest);
 			}
 
-		private void project(double[] xV, double[] yV, double[] p, double[] div)
+		private void advectRow(int y, double[] dest, double[] src, double[] xVelocity, double[] yVelocity, double dt)
 			{
-				double h = 0.00000000000000001;
-				for (int y = 1; y < ySize - 1; y++)
+				int yIndex = y * xSize;
+				// for all chunks within above range
+				for (int x = 0; x < xSize; x++)
 					{
-						int yIndex = y * xSize;
-						for (int x = 0; x < xSize; x++)
+						int k = x + yIndex;
+						// Reverse velocity, since we are interpolating backwards
+						// xSrc and ySrc is the position of the source density.
+						double xSrc = x - dt * xVelocity[k];
+						double ySrc = y - dt * yVelocity[k];
+
+						// if x-source is too close to the left edge, wrap to right edge
+						if (xSrc < 0)
+							xSrc += xSize;
+						if (xSrc >= xSize)
+							xSrc -= xSize;
+
+						int xi0 = (int) xSrc;
+						int xi1 = xi0 + 1;
+						if (xi1 == xSize)
+							xi1 -= xSize;
+
+						if (ySrc < 0.5)
 							{
-								int k = x + yIndex;
-								// Negative divergence
-								div[k] = -0.5 * h * (xV[k + 1] - xV[k - 1] + yV[k + xSize] - yV[k - xSize]);
-								// Pressure field
-								p[k] = 0;
+								ySrc = 0.5;
 							}
-					}
-				setBounds(Axis.undefined, div);
-				setBounds(Axis.undefined, p);
-
-				linearSolve(p, div, Axis.undefined);
-
-				for (int y = 1; y < ySize - 1; y++)
-					{
-						int yIndex = y * xSize;
-						for (int x = 0; x < xSize; x++)
+						if (ySrc > ySize - 1.5)
 							{
-								int k = x + yIndex;
-								xV[k] -= 0.5 * (p[k + 1] - p[k - 1]) / h;
-								yV[k] -= 0.5 * (p[k + xSize] - p[k - xSize]) / h;
+								ySrc = ySize - 1.5;
 							}
+						int yi0 = (int) ySrc;
+						int yi1 = yi0 + 1;
+
+						// Linear interpolation factors. Ex: 0.6 and 0.4
+						double xProp1 = xSrc - xi0;
+						double xProp0 = 1.0 - xProp1;
+						double yProp1 = ySrc - yi0;
+						double yProp0 = 1.0 - yProp1;
+
+						dest[k] = xProp0 * (yProp0 * src[getK(xi0, yi0)] + yProp1 * src[getK(xi0, yi1)]) + xProp1 * (yProp0 * src[getK(xi1, yi0)] + yProp1 * src[getK(xi1, yi1)]);
 					}
-				setBounds(Axis.x, xV);
-				setBounds(Axis.y, yV);
 			}
 
-		// 4-10 iterations is good for real-time, and not noticeably inaccurate. For real accuracy, upwards of 20 is good.
-		private void linearSolve(double[] dest, double[] src, Axis axis)
+		/**
+		 * Removes the divergence from the velocities in the same way as {@link VectorField}, the divergence is measured with backward differences and the
+		 * pressure gradient with forward differences, both wrapping along the x axis, so that one applied to the other is exactly the Laplacian solved by the
+		 * {@link PoissonGrid}.
+		 */
+		private void project(final double[] xV, final double[] yV, final double[] p, final double[] div)
 			{
-				double w = 1.9;
-				for (int i = 0; i < iterationsSlider.getValue(); i++)
+				final double h = 0.00000000000000001;
+				workers.run(ySize - 2, new WorkerPool.Task()
 					{
-						for (int y = 1; y < ySize - 1; y++)
+						@Override
+						public void run(int task)
 							{
-								int yIndex = y * xSize;
+								int yIndex = (task + 1) * xSize;
 								for (int x = 0; x < xSize; x++)
 									{
 										int k = x + yIndex;
-										dest[k] += w * ((dest[k - 1] + dest[k + 1] + dest[k - xSize] + dest[k + xSize] + src[k]) / 4 - dest[k]);
+										int left = x == 0 ? k + xSize - 1 : k - 1;
+										// Negative divergence, the flow in through the faces behind the chunk less the flow out through those ahead of it
+										div[k] = -h * (xV[k] - xV[left] + yV[k] - yV[k - xSize]);
 									}
 							}
-						w -= 0.01;
-						if (w < 1.5)
-							w = 1.5;
+					});
+				setBounds(Axis.undefined, div);
+
+				// Solve for pressure, starting from the pressure of the last step
+				pressureSolver.setMaxIterations((int) iterationsSlider.getValue());
+				pressureSolver.solve(p, div);
+				setBounds(Axis.undefined, p);
+
+				workers.run(ySize - 2, new WorkerPool.Task()
+					{
+						@Override
+						public void run(int task)
+							{
+								int yIndex = (task + 1) * xSize;
+								for (int x = 0; x < xSize; x++)
+									{
+										int k = x + yIndex;
+										int right = x == xSize - 1 ? k - xSize + 1 : k + 1;
+										xV[k] -= (p[right] - p[k]) / h;
+										yV[k] -= (p[k + xSize] - p[k]) / h;
+									}
+							}
+					});
+
+				// The friction was applied while advecting, applying it again would put divergence back, so only the top & bottom rows are corrected
+				for (int x = 0; x < xSize; x++)
+					{
+						xV[getK(x, 0)] = xV[getK(x, 1)];
+						xV[getK(x, ySize - 1)] = xV[getK(x, ySize - 2)];
 					}
-				setBounds(axis, dest);
+				setBounds(Axis.y, yV);
 			}
 
 		private class Particle
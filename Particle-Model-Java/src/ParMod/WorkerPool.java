@@ -0,0 +1,109 @@
+package ParMod;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A pool of worker threads that the simulation uses to split up its work. Work is handed to the pool as a number of independent tasks, each identified by
+ * its index, and the calling thread waits until every task has completed before carrying on.
+ * <p>
+ * Which thread runs which task is not fixed, so for results to be reproducible a task must only depend on its index and never on the thread running it.
+ * <p>
+ * Work may be handed to the pool from more than one thread at once, as the display does while the simulation runs, in which case the tasks share the
+ * pool's threads.
+ *
+ * @author Sebastian Troy
+ */
+public class WorkerPool
+	{
+		/**
+		 * A piece of work that can be split into independent tasks.
+		 */
+		interface Task
+			{
+				/**
+				 * @param task
+				 *            - The index of the task to be carried out, from 0 to the number of tasks - 1
+				 */
+				void run(int task);
+			}
+
+		private final ForkJoinPool pool;
+		private final int threads;
+
+		/**
+		 * @param threads
+		 *            - The number of threads that will carry out tasks, if this is 1 all tasks are run on the calling thread
+		 */
+		WorkerPool(int threads)
+			{
+				this.threads = Math.max(1, threads);
+				pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+			}
+
+		/**
+		 * @return - The number of threads that tasks are split between
+		 */
+		final int getThreads()
+			{
+				return threads;
+			}
+
+		/**
+		 * Carries out tasks 0 to numTasks - 1 and returns once every one of them is complete.
+		 *
+		 * @param numTasks
+		 *            - The number of tasks to be carried out
+		 * @param task
+		 *            - The work to be carried out for each task
+		 */
+		final void run(int numTasks, Task task)
+			{
+				if (pool == null || numTasks <= 1)
+					{
+						for (int i = 0; i < numTasks; i++)
+							task.run(i);
+					}
+				else
+					pool.invoke(new TaskRange(task, 0, numTasks));
+			}
+
+		/**
+		 * Stops the worker threads, the pool cannot be used afterwards.
+		 */
+		final void shutdown()
+			{
+				if (pool != null)
+					pool.shutdown();
+			}
+
+		/**
+		 * Recursively halves a range of tasks until each half holds a single task, so that idle threads can steal work from busy ones.
+		 */
+		private static class TaskRange extends RecursiveAction
+			{
+				private static final long serialVersionUID = 1L;
+
+				private final Task task;
+				private final int start, end;
+
+				private TaskRange(Task task, int start, int end)
+					{
+						this.task = task;
+						this.start = start;
+						this.end = end;
+					}
+
+				@Override
+				protected void compute()
+					{
+						if (end - start == 1)
+							task.run(start);
+						else
+							{
+								int middle = (start + end) >>> 1;
+								invokeAll(new TaskRange(task, start, middle), new TaskRange(task, middle, end));
+							}
+					}
+			}
+	}